@@ -0,0 +1,248 @@
+package com.tymoshenko.controller.verticle;
+
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.User;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of CRUD requests in flight, so a slow database makes the server reject requests early instead
+ * of queueing them until clients time out.
+ * <p>
+ * Reads (GET/HEAD) and writes (everything else) have separate limits, so bulk writers can not take the capacity
+ * dashboards need to read. For each of them:
+ * <ul>
+ * <li>the global limit adapts to the observed latency (AIMD): every request completed within the target latency
+ * while the limit is in use raises it by 1/limit, i.e. by one per limit requests; a slower request or a 5xx response
+ * cuts it by the backoff ratio, at most once per target latency so one slow burst cuts it once.
+ * Requests above the limit are answered with 503</li>
+ * <li>every client (authenticated user, or remote address) has a fixed number of requests in flight, requests above
+ * it are answered with 429, so a single client can not take the whole limit</li>
+ * </ul>
+ * Rejections carry Retry-After. The latency of a request is measured from its admission to the end of its response,
+ * for the CRUD routes that is the CrudService call including the wait for a worker thread.
+ * <p>
+ * One instance is shared by every verticle instance, so the limits are global to the server.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class AdmissionControl {
+
+    // Configuration keys (my-application-conf.json), "read" or "write" is inserted after "admission."
+    public static final String CONF_ENABLED = "admission.enabled";
+    public static final String CONF_INITIAL_LIMIT = "initial-limit";
+    public static final String CONF_MIN_LIMIT = "min-limit";
+    public static final String CONF_MAX_LIMIT = "max-limit";
+    public static final String CONF_TARGET_LATENCY_MS = "target-latency-ms";
+    public static final String CONF_PER_CLIENT_MAX_IN_FLIGHT = "admission.per-client.max-in-flight";
+    public static final String CONF_BACKOFF_RATIO = "admission.backoff-ratio";
+    public static final String CONF_RETRY_AFTER_SECONDS = "admission.retry-after-seconds";
+
+    public static final String READ = "read";
+    public static final String WRITE = "write";
+
+    public static final int DEFAULT_PER_CLIENT_MAX_IN_FLIGHT = 64;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.8;
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+    public static final String RETRY_AFTER = "retry-after";
+    public static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+    public static final int STATUS_CODE_SERVICE_UNAVAILABLE = 503;
+
+    private static final String USERNAME = "username";
+
+    private final boolean enabled;
+    private final String retryAfter;
+    private final Pool reads;
+    private final Pool writes;
+
+    /**
+     * @param config the verticle configuration
+     */
+    public AdmissionControl(JsonObject config) {
+        this.enabled = config.getBoolean(CONF_ENABLED, true);
+        this.retryAfter = String.valueOf(config.getInteger(CONF_RETRY_AFTER_SECONDS, DEFAULT_RETRY_AFTER_SECONDS));
+        int perClient = config.getInteger(CONF_PER_CLIENT_MAX_IN_FLIGHT, DEFAULT_PER_CLIENT_MAX_IN_FLIGHT);
+        double backoffRatio = config.getDouble(CONF_BACKOFF_RATIO, DEFAULT_BACKOFF_RATIO);
+        this.reads = new Pool(config, READ, 64, 4, 512, 100, perClient, backoffRatio);
+        this.writes = new Pool(config, WRITE, 16, 2, 128, 250, perClient, backoffRatio);
+    }
+
+    /**
+     * Route handler, to be registered after authentication and before the routes it protects.
+     */
+    public void handle(RoutingContext routingContext) {
+        if (!enabled) {
+            routingContext.next();
+            return;
+        }
+        HttpMethod method = routingContext.request().method();
+        Pool pool = method == HttpMethod.GET || method == HttpMethod.HEAD ? reads : writes;
+        String client = clientOf(routingContext);
+        AtomicInteger clientInFlight = pool.acquireClient(client);
+        if (clientInFlight == null) {
+            pool.rejectedPerClient.increment();
+            reject(routingContext, STATUS_CODE_TOO_MANY_REQUESTS, "Too many concurrent requests from this client, try again later.");
+            return;
+        }
+        if (!pool.acquire()) {
+            pool.releaseClient(client, clientInFlight);
+            pool.rejectedGlobal.increment();
+            reject(routingContext, STATUS_CODE_SERVICE_UNAVAILABLE, "Server is busy, try again later.");
+            return;
+        }
+        long start = System.nanoTime();
+        AtomicBoolean released = new AtomicBoolean();
+        HttpServerResponse response = routingContext.response();
+        // called when the response ends and when the connection closes before it did
+        response.endHandler(v -> {
+            if (released.compareAndSet(false, true)) {
+                pool.release(System.nanoTime() - start, response.getStatusCode() >= 500 || !response.ended());
+                pool.releaseClient(client, clientInFlight);
+            }
+        });
+        routingContext.next();
+    }
+
+    /**
+     * @return current limits, in-flight requests and rejection counters, suitable for rendering as a REST response
+     */
+    public JsonObject stats() {
+        return new JsonObject()
+                .put("enabled", enabled)
+                .put(READ, reads.stats())
+                .put(WRITE, writes.stats());
+    }
+
+    private void reject(RoutingContext routingContext, int statusCode, String message) {
+        routingContext.response()
+                .setStatusCode(statusCode)
+                .putHeader(RETRY_AFTER, retryAfter)
+                .end(message);
+    }
+
+    // authenticated user, or remote address
+    static String clientOf(RoutingContext routingContext) {
+        User user = routingContext.user();
+        if (user != null && user.principal() != null && user.principal().getString(USERNAME) != null) {
+            return user.principal().getString(USERNAME);
+        }
+        return routingContext.request().remoteAddress().host();
+    }
+
+    /**
+     * Limits of one class of requests (reads or writes).
+     */
+    private static final class Pool {
+
+        private final AdaptiveLimit limit;
+        private final int perClient;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ConcurrentMap<String, AtomicInteger> inFlightByClient = new ConcurrentHashMap<>();
+        private final LongAdder rejectedGlobal = new LongAdder();
+        private final LongAdder rejectedPerClient = new LongAdder();
+
+        private Pool(JsonObject config, String name, int initialLimit, int minLimit, int maxLimit, long targetLatencyMs,
+                     int perClient, double backoffRatio) {
+            String prefix = "admission." + name + ".";
+            this.limit = new AdaptiveLimit(
+                    config.getInteger(prefix + CONF_INITIAL_LIMIT, initialLimit),
+                    config.getInteger(prefix + CONF_MIN_LIMIT, minLimit),
+                    config.getInteger(prefix + CONF_MAX_LIMIT, maxLimit),
+                    config.getLong(prefix + CONF_TARGET_LATENCY_MS, targetLatencyMs) * 1_000_000L,
+                    backoffRatio);
+            this.perClient = perClient;
+        }
+
+        private boolean acquire() {
+            if (inFlight.incrementAndGet() > limit.current()) {
+                inFlight.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void release(long latencyNanos, boolean failed) {
+            int current = inFlight.getAndDecrement();
+            limit.sample(latencyNanos, current, failed);
+        }
+
+        // the client's counter, null if the client is at its limit
+        private AtomicInteger acquireClient(String client) {
+            AtomicInteger counter = inFlightByClient.compute(client, (key, existing) -> {
+                AtomicInteger value = existing == null ? new AtomicInteger() : existing;
+                value.incrementAndGet();
+                return value;
+            });
+            if (counter.get() > perClient) {
+                releaseClient(client, counter);
+                return null;
+            }
+            return counter;
+        }
+
+        // idle clients are dropped, so the map only holds clients with requests in flight
+        private void releaseClient(String client, AtomicInteger counter) {
+            inFlightByClient.computeIfPresent(client, (key, existing) ->
+                    existing.decrementAndGet() == 0 ? null : existing);
+        }
+
+        private JsonObject stats() {
+            return new JsonObject()
+                    .put("limit", limit.current())
+                    .put("inFlight", inFlight.get())
+                    .put("clients", inFlightByClient.size())
+                    .put("rejectedGlobal", rejectedGlobal.sum())
+                    .put("rejectedPerClient", rejectedPerClient.sum());
+        }
+    }
+
+    /**
+     * Additive increase / multiplicative decrease of a concurrency limit.
+     */
+    private static final class AdaptiveLimit {
+
+        private final int minLimit;
+        private final int maxLimit;
+        private final long targetLatencyNanos;
+        private final double backoffRatio;
+
+        // guarded by this
+        private double limit;
+        private long lastDecrease;
+
+        private AdaptiveLimit(int initialLimit, int minLimit, int maxLimit, long targetLatencyNanos, double backoffRatio) {
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.targetLatencyNanos = targetLatencyNanos;
+            this.backoffRatio = backoffRatio;
+            this.limit = initialLimit;
+            this.lastDecrease = System.nanoTime();
+        }
+
+        private synchronized int current() {
+            return (int) limit;
+        }
+
+        private synchronized void sample(long latencyNanos, int inFlight, boolean failed) {
+            if (failed || latencyNanos > targetLatencyNanos) {
+                long now = System.nanoTime();
+                if (now - lastDecrease > targetLatencyNanos) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecrease = now;
+                }
+            } else if (inFlight * 2 >= limit) {
+                // only grow a limit which is actually used, an idle server must not drift to maxLimit
+                limit = Math.min(maxLimit, limit + 1.0 / limit);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.tymoshenko;
+
+import com.tymoshenko.controller.context.SpringConfig;
+import com.tymoshenko.controller.metrics.StartupTimings;
+import com.tymoshenko.controller.verticle.HttpServerVerticle;
+import com.tymoshenko.controller.verticle.SmartCameraCrudRestService;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Boots the Spring context and deploys the HTTP layer.
+ * <p>
+ * {@link HttpServerVerticle} is deployed "http.instances" times (my-application-conf.json, 0 means one instance per
+ * CPU core). All instances listen on the same port, Vert.x spreads the connections over their event loops.
+ * They all share the Spring singletons of one ApplicationContext.
+ * If any instance fails to start, e.g. can not bind the port, the application exits.
+ * <p>
+ * "boot.mode" selects how the application starts:
+ * <ul>
+ * <li>development (default) - the Spring context is created first, the server listens once it can serve requests</li>
+ * <li>production - the server listens right away and answers 503 (and /health/ready with 503) while the Spring
+ * context is created in the background, which also starts in production boot mode, see {@link SpringConfig}</li>
+ * </ul>
+ * How long the phases of the start-up take is logged and served as /metrics/startup, see {@link StartupTimings}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class Application {
+
+    public static final String CONFIG_FILE = "my-application-conf.json";
+    public static final String CONF_HTTP_INSTANCES = "http.instances";
+    // Passed on to SpringConfig as a system property, unless that is set already
+    public static final String CONF_BOOT_MODE = SpringConfig.BOOT_MODE;
+
+    private static final Logger LOG = LoggerFactory.getLogger(Application.class);
+
+    private final Vertx vertx;
+    private final CompletableFuture<ConfigurableApplicationContext> applicationContext;
+    private final Future<Void> listening;
+
+    private Application(Vertx vertx, CompletableFuture<ConfigurableApplicationContext> applicationContext,
+                        Future<Void> listening) {
+        this.vertx = vertx;
+        this.applicationContext = applicationContext;
+        this.listening = listening;
+    }
+
+    /**
+     * @param args optional path of the configuration file, {@value #CONFIG_FILE} from the classpath by default
+     */
+    public static void main(String[] args) throws IOException {
+        StartupTimings.mark(StartupTimings.MAIN);
+        JsonObject config = readConfig(args.length > 0 ? args[0] : null);
+        Application application = start(config);
+
+        application.listening.setHandler(result -> {
+            if (result.succeeded()) {
+                LOG.info("Started {} HttpServerVerticle instance(s) on port {}",
+                        instances(config), config.getInteger("http.port", 8080));
+            } else {
+                LOG.error("Could not start the HTTP server", result.cause());
+                application.vertx.close(closed -> System.exit(1));
+            }
+        });
+        application.applicationContext.whenComplete((applicationContext, e) -> {
+            if (e != null) {
+                LOG.error("Could not create the application context", e);
+                application.vertx.close(closed -> System.exit(1));
+            }
+        });
+    }
+
+    /**
+     * Creates the Spring context and deploys the HTTP layer, in the order of the boot mode.
+     *
+     * @param config the application configuration
+     * @return the started application; in production boot mode the application context may still be in the making
+     */
+    public static Application start(JsonObject config) {
+        String bootMode = System.getProperty(SpringConfig.BOOT_MODE,
+                config.getString(CONF_BOOT_MODE, SpringConfig.BOOT_MODE_DEVELOPMENT));
+        System.setProperty(SpringConfig.BOOT_MODE, bootMode);
+
+        CompletableFuture<ConfigurableApplicationContext> applicationContext = new CompletableFuture<>();
+        if (!SpringConfig.BOOT_MODE_PRODUCTION.equals(bootMode)) {
+            applicationContext.complete(createApplicationContext());
+        }
+        Vertx vertx = Vertx.vertx();
+        StartupTimings.mark(StartupTimings.VERTX);
+        Future<Void> listening = deploy(vertx, applicationContext, config, instances(config));
+        if (!applicationContext.isDone()) {
+            Thread thread = new Thread(() -> {
+                try {
+                    applicationContext.complete(createApplicationContext());
+                } catch (RuntimeException | Error e) {
+                    applicationContext.completeExceptionally(e);
+                }
+            }, "application-context");
+            thread.start();
+        }
+        return new Application(vertx, applicationContext, listening);
+    }
+
+    /**
+     * @return completed once every HttpServerVerticle instance listens
+     */
+    public Future<Void> listening() {
+        return listening;
+    }
+
+    /**
+     * Closes Vert.x and the application context, once it is created.
+     */
+    public void close() {
+        vertx.close();
+        applicationContext.thenAccept(ConfigurableApplicationContext::close);
+    }
+
+    // the context and the REST service with everything it depends on, so no verticle creates beans on its event loop
+    private static ConfigurableApplicationContext createApplicationContext() {
+        AnnotationConfigApplicationContext applicationContext = new AnnotationConfigApplicationContext(SpringConfig.class);
+        StartupTimings.mark(StartupTimings.SPRING_CONTEXT);
+        applicationContext.getBean(SmartCameraCrudRestService.class);
+        StartupTimings.mark(StartupTimings.SPRING_BEANS);
+        return applicationContext;
+    }
+
+    /**
+     * Deploys the configured number of {@link HttpServerVerticle} instances.
+     *
+     * @return a future which fails as soon as one instance fails, all instances are undeployed in that case
+     */
+    public static Future<Void> deploy(Vertx vertx, ApplicationContext applicationContext, JsonObject config) {
+        return deploy(vertx, applicationContext, config, instances(config));
+    }
+
+    public static Future<Void> deploy(Vertx vertx, ApplicationContext applicationContext, JsonObject config, int instances) {
+        return deploy(vertx, CompletableFuture.completedFuture(applicationContext), config, instances);
+    }
+
+    /**
+     * Deploys HttpServerVerticle instances which listen right away and serve requests once the application context
+     * is completed.
+     *
+     * @return a future which fails as soon as one instance fails, all instances are undeployed in that case
+     */
+    public static Future<Void> deploy(Vertx vertx, CompletableFuture<? extends ApplicationContext> applicationContext,
+                                      JsonObject config, int instances) {
+        DeploymentOptions options = new DeploymentOptions().setConfig(config);
+        List<Future<String>> deployments = new ArrayList<>(instances);
+        for (int i = 0; i < instances; i++) {
+            Future<String> deployment = Future.future();
+            vertx.deployVerticle(new HttpServerVerticle(applicationContext), options, deployment.completer());
+            deployments.add(deployment);
+        }
+
+        Future<Void> result = Future.future();
+        CompositeFuture.all(new ArrayList<>(deployments)).setHandler(all -> {
+            if (all.succeeded()) {
+                result.complete();
+                return;
+            }
+            for (Future<String> deployment : deployments) {
+                if (deployment.succeeded()) {
+                    vertx.undeploy(deployment.result());
+                }
+            }
+            result.fail(all.cause());
+        });
+        return result;
+    }
+
+    public static int instances(JsonObject config) {
+        int instances = config.getInteger(CONF_HTTP_INSTANCES, 0);
+        return instances > 0 ? instances : Runtime.getRuntime().availableProcessors();
+    }
+
+    private static JsonObject readConfig(String path) throws IOException {
+        if (path != null) {
+            return new JsonObject(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        }
+        try (InputStream in = Application.class.getClassLoader().getResourceAsStream(CONFIG_FILE)) {
+            if (in == null) {
+                return new JsonObject();
+            }
+            return new JsonObject(new Scanner(in, "UTF-8").useDelimiter("\\A").next());
+        }
+    }
+}
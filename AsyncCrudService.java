@@ -0,0 +1,97 @@
+
+package com.tymoshenko.controller.repository;
+
+import io.vertx.core.Future;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Non-blocking counterpart of {@link CrudService}.
+ * Every call is executed off the Vert.x event loop and its result is delivered back
+ * on the Vert.x context which issued the call.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public interface AsyncCrudService<T> {
+
+    /**
+     * Saves an entity and flushes changes instantly.
+     * Use for both create and update CRUD methods.
+     *
+     * @param entity the entity to insert/update into DB
+     * @return a future completed with the inserted/updated entity
+     */
+    Future<T> save(T entity);
+
+    /**
+     * Saves a batch of entities with as few DB round trips as possible.
+     *
+     * @param entities the entities to insert/update into DB
+     * @return a future completed with one result per entity, in the order of the given list
+     */
+    Future<List<BatchResult<T>>> saveAll(List<T> entities);
+
+    /**
+     * Updates some attributes of an entity in place, without reading it first.
+     *
+     * @param id              must not be {@literal null}.
+     * @param changes         attribute name to new value, only these attributes are written
+     * @param expectedVersion the version the entity must have, {@literal null} to update whichever version it has
+     * @return a future completed with the updated entity or null if none found, failed with
+     * {@link org.springframework.dao.OptimisticLockingFailureException} if the entity has another version
+     */
+    Future<T> patch(Long id, Map<String, Object> changes, Long expectedVersion);
+
+    /**
+     * Retrieves an entity by its id.
+     *
+     * @param id - must not be null.
+     * @return a future completed with the entity with the given id or null if none found
+     */
+    Future<T> readOne(Long id);
+
+    /**
+     * Retrieves the entities with the given ids in as few DB round trips as possible.
+     *
+     * @param ids must not be {@literal null} nor contain {@literal null}.
+     * @return a future completed with the entities found, in no particular order; ids without an entity are skipped
+     */
+    Future<List<T>> readMany(Collection<Long> ids);
+
+    /**
+     * Returns all instances of the type.
+     *
+     * @return a future completed with all entities
+     */
+    Future<List<T>> readAll();
+
+    /**
+     * Returns one page of entities ordered by id (keyset pagination).
+     *
+     * @param filters attribute name to required value, empty to read every entity
+     * @param afterId exclusive lower bound of the page, {@literal null} to start from the first entity
+     * @param limit   max number of entities in the page
+     * @return a future completed with entities matching all filters with id greater than afterId, ordered by id
+     */
+    Future<List<T>> readPage(Map<String, String> filters, Long afterId, int limit);
+
+    /**
+     * Counts the entities matching all filters.
+     *
+     * @param filters attribute name to required value, empty to count every entity
+     * @return a future completed with the number of matching entities
+     */
+    Future<Long> count(Map<String, String> filters);
+
+    /**
+     * Deletes the entity with the given id.
+     *
+     * @param id must not be {@literal null}.
+     * @return a future which fails with {@link org.springframework.dao.EmptyResultDataAccessException}
+     * if there is no entity with the given id
+     */
+    Future<Void> delete(Long id);
+}
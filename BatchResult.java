@@ -0,0 +1,40 @@
+
+package com.tymoshenko.controller.repository;
+
+/**
+ * Outcome of saving one entity as part of a batch: either the saved entity or the reason it was not saved.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class BatchResult<T> {
+
+    private final T entity;
+    private final Throwable failure;
+
+    private BatchResult(T entity, Throwable failure) {
+        this.entity = entity;
+        this.failure = failure;
+    }
+
+    public static <T> BatchResult<T> succeeded(T entity) {
+        return new BatchResult<>(entity, null);
+    }
+
+    public static <T> BatchResult<T> failed(T entity, Throwable failure) {
+        return new BatchResult<>(entity, failure);
+    }
+
+    public boolean succeeded() {
+        return failure == null;
+    }
+
+    //=========== Getters ==============================================================================================
+    public T getEntity() {
+        return entity;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+}
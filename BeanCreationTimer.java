@@ -0,0 +1,74 @@
+package com.tymoshenko.controller.context;
+
+import com.tymoshenko.controller.metrics.StartupTimings;
+import org.springframework.beans.factory.config.InstantiationAwareBeanPostProcessorAdapter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Records how long every bean takes from instantiation to the end of its initialisation in {@link StartupTimings}.
+ * <p>
+ * Dependencies are created while their dependent is being instantiated, so the beans under construction form a
+ * stack per thread; the time of a bean excludes the time of the beans created on the way, so the slowest beans are
+ * the ones which do the work (building the EntityManagerFactory, loading an index) rather than the ones which
+ * happen to depend on them.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class BeanCreationTimer extends InstantiationAwareBeanPostProcessorAdapter {
+
+    private final ThreadLocal<Deque<Creation>> creations = ThreadLocal.withInitial(ArrayDeque::new);
+
+    @Override
+    public Object postProcessBeforeInstantiation(Class<?> beanClass, String beanName) {
+        creations.get().push(new Creation(beanName, System.nanoTime()));
+        return null;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        Deque<Creation> stack = creations.get();
+        // also called for objects obtained from a FactoryBean, which were never instantiated by the container
+        if (!isCreating(stack, beanName)) {
+            return bean;
+        }
+        long now = System.nanoTime();
+        Creation creation;
+        do {
+            // entries above it belong to beans whose creation failed
+            creation = stack.pop();
+        } while (!creation.beanName.equals(beanName));
+        long nanos = now - creation.start;
+        StartupTimings.bean(beanName, nanos - creation.dependencyNanos);
+        if (!stack.isEmpty()) {
+            stack.peek().dependencyNanos += nanos;
+        }
+        return bean;
+    }
+
+    private static boolean isCreating(Deque<Creation> stack, String beanName) {
+        for (Creation creation : stack) {
+            if (creation.beanName.equals(beanName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A bean under construction.
+     */
+    private static final class Creation {
+
+        private final String beanName;
+        private final long start;
+        private long dependencyNanos;
+
+        private Creation(String beanName, long start) {
+            this.beanName = beanName;
+            this.start = start;
+        }
+    }
+}
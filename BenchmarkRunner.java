@@ -0,0 +1,32 @@
+package com.tymoshenko.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of this package and writes machine readable results, so runs can be diffed between changes.
+ * <p>
+ * Usage: BenchmarkRunner [include regexp] [result file], defaults to all benchmarks and jmh-result.json.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class BenchmarkRunner {
+
+    private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*Benchmark";
+        String resultFile = args.length > 1 ? args[1] : DEFAULT_RESULT_FILE;
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
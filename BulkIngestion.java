@@ -0,0 +1,229 @@
+
+package com.tymoshenko.controller.verticle;
+
+import com.tymoshenko.controller.repository.AsyncCrudService;
+import com.tymoshenko.controller.repository.BatchResult;
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonEvent;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+import io.vertx.ext.web.RoutingContext;
+import org.springframework.dao.DataIntegrityViolationException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.tymoshenko.controller.verticle.SmartCameraCrudRestService.*;
+
+/**
+ * Handles one bulk ingestion request: POST /rest/SmartCamera/_bulk.
+ * <p>
+ * The body is either a JSON array of cameras or NDJSON (one camera per line). It is parsed as it arrives,
+ * records are grouped into batches and each batch is persisted with a single {@link AsyncCrudService#saveAll(List)}.
+ * While a batch is being saved the request is paused, so at most one batch is held in memory.
+ * <p>
+ * The response is a chunked JSON array with one entry per record, in request order:
+ * {"index":0,"status":201,"deviceID":42} or {"index":1,"status":400,"error":"..."}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+class BulkIngestion {
+
+    private final RoutingContext routingContext;
+    private final AsyncCrudService<SmartCamera> asyncCrudService;
+    private final int batchSize;
+    private final JsonParser parser = JsonParser.newParser().objectValueMode();
+
+    private List<Item> pending = new ArrayList<>();
+    private int nextIndex;
+    private boolean inFlight;
+    private boolean requestEnded;
+    private boolean malformed;
+    private boolean firstResult = true;
+    private boolean finished;
+
+    BulkIngestion(RoutingContext routingContext, AsyncCrudService<SmartCamera> asyncCrudService, int batchSize) {
+        this.routingContext = routingContext;
+        this.asyncCrudService = asyncCrudService;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Starts consuming the request body. The request must have been paused before the body handler could read it.
+     */
+    void start() {
+        HttpServerRequest request = routingContext.request();
+        routingContext.response()
+                .setChunked(true)
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .write("[");
+
+        parser.handler(this::onJsonEvent);
+        parser.exceptionHandler(this::onMalformedBody);
+        request.handler(this::onData);
+        request.exceptionHandler(this::onAborted);
+        routingContext.response().closeHandler(v -> onAborted(null));
+        request.endHandler(v -> {
+            if (!malformed && !finished) {
+                parser.end();
+            }
+            requestEnded = true;
+            flush();
+        });
+        request.resume();
+    }
+
+    private void onData(Buffer buffer) {
+        // Once the body is known to be malformed the rest of it is drained and ignored
+        if (!malformed && !finished) {
+            parser.handle(buffer);
+        }
+    }
+
+    private void onJsonEvent(JsonEvent event) {
+        if (event.type() != JsonEventType.VALUE) {
+            // START_ARRAY/END_ARRAY of a JSON array body
+            return;
+        }
+        int index = nextIndex++;
+        try {
+            pending.add(new Item(index, event.mapTo(SmartCamera.class), null));
+        } catch (RuntimeException e) {
+            pending.add(new Item(index, null, "Malformed SmartCamera object"));
+        }
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private void onMalformedBody(Throwable cause) {
+        malformed = true;
+        pending.add(new Item(nextIndex++, null, "Malformed JSON: " + cause.getLocalizedMessage()));
+    }
+
+    /**
+     * The connection was reset or closed before the whole body arrived: nothing more is parsed or saved, the records
+     * not yet handed to the service are dropped and the response is closed. A batch in flight still completes.
+     */
+    private void onAborted(Throwable cause) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        malformed = true;
+        pending = new ArrayList<>();
+        // a no-op if the connection is gone already
+        routingContext.response().close();
+    }
+
+    /**
+     * Saves the pending records if there is a full batch (or the last partial one) and no batch in flight.
+     */
+    private void flush() {
+        if (inFlight || finished) {
+            return;
+        }
+        if (pending.isEmpty() || (!requestEnded && pending.size() < batchSize)) {
+            if (requestEnded && pending.isEmpty()) {
+                finish();
+            }
+            return;
+        }
+        final List<Item> batch = pending;
+        pending = new ArrayList<>();
+        List<SmartCamera> entities = new ArrayList<>(batch.size());
+        for (Item item : batch) {
+            if (item.entity != null) {
+                entities.add(item.entity);
+            }
+        }
+        inFlight = true;
+        routingContext.request().pause();
+        asyncCrudService.saveAll(entities).setHandler(result -> {
+            inFlight = false;
+            if (finished) {
+                // the client has gone away while the batch was saved
+                return;
+            }
+            writeResults(batch, result);
+            HttpServerResponse response = routingContext.response();
+            if (response.writeQueueFull()) {
+                response.drainHandler(v -> proceed());
+            } else {
+                proceed();
+            }
+        });
+    }
+
+    private void proceed() {
+        if (!requestEnded) {
+            routingContext.request().resume();
+        }
+        flush();
+    }
+
+    private void writeResults(List<Item> batch, AsyncResult<List<BatchResult<SmartCamera>>> saved) {
+        StringBuilder json = new StringBuilder();
+        int savedIndex = 0;
+        for (Item item : batch) {
+            JsonObject entry = new JsonObject().put("index", item.index);
+            if (item.entity == null) {
+                entry.put("status", STATUS_CODE_BAD_REQUEST).put("error", item.error);
+            } else if (saved.failed()) {
+                entry.put("status", statusOf(saved.cause())).put("error", String.valueOf(saved.cause().getLocalizedMessage()));
+            } else {
+                BatchResult<SmartCamera> result = saved.result().get(savedIndex++);
+                if (result.succeeded()) {
+                    entry.put("status", STATUS_CODE_OK_CREATED).put("deviceID", result.getEntity().getId());
+                } else {
+                    entry.put("status", statusOf(result.getFailure()))
+                            .put("error", String.valueOf(result.getFailure().getLocalizedMessage()));
+                }
+            }
+            if (!firstResult) {
+                json.append(',');
+            }
+            firstResult = false;
+            json.append(entry.encode());
+        }
+        routingContext.response().write(json.toString());
+    }
+
+    private void finish() {
+        finished = true;
+        routingContext.response().end("]");
+    }
+
+    private static int statusOf(Throwable failure) {
+        if (failure instanceof RejectedExecutionException) {
+            return STATUS_CODE_SERVICE_UNAVAILABLE;
+        }
+        if (failure instanceof DataIntegrityViolationException) {
+            return STATUS_CODE_CONFLICT;
+        }
+        return STATUS_CODE_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * One record of the request body: a decoded camera or the reason it could not be decoded.
+     */
+    private static final class Item {
+
+        private final int index;
+        private final SmartCamera entity;
+        private final String error;
+
+        private Item(int index, SmartCamera entity, String error) {
+            this.index = index;
+            this.entity = entity;
+            this.error = error;
+        }
+    }
+}
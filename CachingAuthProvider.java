@@ -0,0 +1,162 @@
+package com.tymoshenko.controller.auth;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.auth.AuthProvider;
+import io.vertx.ext.auth.User;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches successful authentications of another {@link AuthProvider} for a short time.
+ * <p>
+ * Stateless API clients send their credentials with every request, so without a cache the realm (e.g. Shiro over
+ * vertx-users.properties) verifies the same username/password over and over. Here the first successful authentication
+ * of a username/password pair is kept for ttlSeconds and later requests with the same credentials get the same
+ * {@link User} back. Role/permission checks of that user are cached with it, so "role:admin" is also resolved once.
+ * <p>
+ * Only successes are cached, a wrong password always reaches the delegate. Passwords are not kept in memory,
+ * the cache key holds a SHA-256 digest of the credentials. The cache is thread safe, one instance is shared by every
+ * verticle instance.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class CachingAuthProvider implements AuthProvider {
+
+    private static final String USERNAME = "username";
+    private static final String PASSWORD = "password";
+
+    private final AuthProvider delegate;
+    private final Cache<String, User> users;
+
+    /**
+     * @param delegate   the provider which actually verifies credentials
+     * @param maxSize    max number of cached users
+     * @param ttlSeconds how long a verified user (and its role checks) is trusted without asking the delegate again
+     */
+    public CachingAuthProvider(AuthProvider delegate, long maxSize, long ttlSeconds) {
+        this.delegate = delegate;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public void authenticate(JsonObject authInfo, Handler<AsyncResult<User>> resultHandler) {
+        final String key = cacheKey(authInfo);
+        User cached = key == null ? null : users.getIfPresent(key);
+        if (cached != null) {
+            resultHandler.handle(Future.succeededFuture(cached));
+            return;
+        }
+        delegate.authenticate(authInfo, result -> {
+            if (result.succeeded() && key != null) {
+                User user = new CachedAuthorisationsUser(result.result());
+                users.put(key, user);
+                resultHandler.handle(Future.succeededFuture(user));
+            } else {
+                resultHandler.handle(result);
+            }
+        });
+    }
+
+    /**
+     * Forgets every cached user, e.g. after vertx-users.properties was changed.
+     */
+    public void invalidateAll() {
+        users.invalidateAll();
+    }
+
+    /**
+     * @return hit/miss/eviction counters, suitable for rendering as a REST response
+     */
+    public JsonObject stats() {
+        CacheStats stats = users.stats();
+        return new JsonObject()
+                .put("size", users.estimatedSize())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("hitRate", stats.hitRate())
+                .put("evictions", stats.evictionCount());
+    }
+
+    // username + digest of username/password, null if the credentials are incomplete (they are not cached then)
+    private static String cacheKey(JsonObject authInfo) {
+        String username = authInfo.getString(USERNAME);
+        String password = authInfo.getString(PASSWORD);
+        if (username == null || password == null) {
+            return null;
+        }
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(username.getBytes(StandardCharsets.UTF_8));
+            sha256.update((byte) 0);
+            sha256.update(password.getBytes(StandardCharsets.UTF_8));
+            return username + ':' + Base64.getEncoder().encodeToString(sha256.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A verified user whose authority checks are answered from a thread safe map after the first lookup.
+     */
+    private static final class CachedAuthorisationsUser implements User {
+
+        private final User delegate;
+        private final ConcurrentMap<String, Boolean> authorities = new ConcurrentHashMap<>();
+
+        private CachedAuthorisationsUser(User delegate) {
+            this.delegate = delegate;
+        }
+
+        // the deprecated isAuthorised of User defaults to this method
+        @Override
+        public User isAuthorized(String authority, Handler<AsyncResult<Boolean>> resultHandler) {
+            Boolean authorized = authorities.get(authority);
+            if (authorized != null) {
+                resultHandler.handle(Future.succeededFuture(authorized));
+                return this;
+            }
+            delegate.isAuthorized(authority, result -> {
+                if (result.succeeded()) {
+                    authorities.put(authority, result.result());
+                }
+                resultHandler.handle(result);
+            });
+            return this;
+        }
+
+        @Override
+        public User clearCache() {
+            authorities.clear();
+            delegate.clearCache();
+            return this;
+        }
+
+        @Override
+        public JsonObject principal() {
+            return delegate.principal();
+        }
+
+        @Override
+        public void setAuthProvider(AuthProvider authProvider) {
+            delegate.setAuthProvider(authProvider);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+
+package com.tymoshenko.controller.repository;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.tymoshenko.controller.context.ReadConsistency;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Read-through cache in front of another {@link CrudService}.
+ * <p>
+ * readOne/readMany are served from a bounded in-process cache (max size + time to live), readMany loads all of its
+ * misses with one delegate call. save/saveAll/patch/delete invalidate the cached entry: the entity returned by a
+ * write is not cached, a concurrent read which loaded the previous state could otherwise overwrite it, or be
+ * overwritten by it out of order. The next read loads the committed state.
+ * The cache is thread safe, one instance is shared by every verticle instance.
+ * Entities are copied on the way in and out, so callers which mutate a returned entity never touch the cached one.
+ * <p>
+ * Cached entities are served to every session, so a miss is loaded with the {@link ReadConsistency} of the last
+ * write through this cache: a replica which has not caught up with it can not put an outdated entity (or a deleted
+ * one) back into the cache.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class CachingCrudService<T> implements CrudService<T> {
+
+    private final CrudService<T> delegate;
+    private final Function<T, Long> idOf;
+    private final UnaryOperator<T> copyOf;
+    private final Cache<Long, T> cache;
+    // System.currentTimeMillis() after the last write
+    private final AtomicLong lastWrite = new AtomicLong();
+    // incremented by every write before it invalidates, see readMany
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * @param delegate   the service which actually reads/writes the DB
+     * @param idOf       extracts the id of an entity
+     * @param copyOf     creates a detached copy of an entity
+     * @param maxSize    max number of cached entities
+     * @param ttlSeconds time to live of a cached entity
+     */
+    public CachingCrudService(CrudService<T> delegate, Function<T, Long> idOf, UnaryOperator<T> copyOf,
+                              long maxSize, long ttlSeconds) {
+        this.delegate = delegate;
+        this.idOf = idOf;
+        this.copyOf = copyOf;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public T save(T entity) {
+        T saved = null;
+        try {
+            saved = delegate.save(entity);
+            return saved;
+        } finally {
+            written();
+            // a new entity gets its id from the save
+            cache.invalidate(idOf.apply(saved != null ? saved : entity));
+        }
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        List<BatchResult<T>> results = null;
+        try {
+            results = delegate.saveAll(entities);
+            return results;
+        } finally {
+            written();
+            List<Long> ids = new ArrayList<>(entities.size());
+            for (T entity : entities) {
+                ids.add(idOf.apply(entity));
+            }
+            if (results != null) {
+                for (BatchResult<T> result : results) {
+                    if (result.succeeded()) {
+                        ids.add(idOf.apply(result.getEntity()));
+                    }
+                }
+            }
+            cache.invalidateAll(ids);
+        }
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        try {
+            return delegate.patch(id, changes, expectedVersion);
+        } finally {
+            // also after a version conflict, which means the cached entity is outdated
+            written();
+            cache.invalidate(id);
+        }
+    }
+
+    @Override
+    public T readOne(Long id) {
+        // Misses are not cached: the loader returning null leaves no entry behind
+        T cached = cache.get(id, key -> {
+            T loaded = load(() -> delegate.readOne(key));
+            return loaded == null ? null : copyOf.apply(loaded);
+        });
+        return cached == null ? null : copyOf.apply(cached);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        Map<Long, T> cached = cache.getAllPresent(ids);
+        List<T> found = new ArrayList<>(ids.size());
+        List<Long> missing = new ArrayList<>(ids.size() - cached.size());
+        for (Long id : ids) {
+            T entity = cached.get(id);
+            if (entity != null) {
+                found.add(copyOf.apply(entity));
+            } else {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            long generation = this.generation.get();
+            for (T loaded : load(() -> delegate.readMany(missing))) {
+                Long id = idOf.apply(loaded);
+                T copy = copyOf.apply(loaded);
+                cache.put(id, copy);
+                if (this.generation.get() != generation) {
+                    // a write may have invalidated the entry before the put above, do not keep a possibly stale copy
+                    cache.asMap().remove(id, copy);
+                }
+                found.add(loaded);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<T> readAll() {
+        return delegate.readAll();
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return delegate.readPage(filters, afterId, limit);
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        return delegate.count(filters);
+    }
+
+    @Override
+    public void delete(Long id) {
+        try {
+            delegate.delete(id);
+        } finally {
+            written();
+            cache.invalidate(id);
+        }
+    }
+
+    /**
+     * @return hit/miss/eviction counters, suitable for rendering as a REST response
+     */
+    public JsonObject stats() {
+        CacheStats stats = cache.stats();
+        return new JsonObject()
+                .put("size", cache.estimatedSize())
+                .put("hits", stats.hitCount())
+                .put("misses", stats.missCount())
+                .put("hitRate", stats.hitRate())
+                .put("evictions", stats.evictionCount())
+                .put("loadMillisAvg", stats.averageLoadPenalty() / 1_000_000.0);
+    }
+
+    // must be called before the written entities are invalidated
+    private void written() {
+        long now = System.currentTimeMillis();
+        lastWrite.accumulateAndGet(now, Math::max);
+        generation.incrementAndGet();
+    }
+
+    // reads the delegate at least as consistently as the last write requires, for the caller's session too
+    private <R> R load(Supplier<R> read) {
+        long sessionLastWrite = ReadConsistency.lastWrite();
+        ReadConsistency.set(Math.max(sessionLastWrite, lastWrite.get()));
+        try {
+            return read.get();
+        } finally {
+            ReadConsistency.set(sessionLastWrite);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package com.tymoshenko.controller.verticle;
+
+import com.tymoshenko.controller.repository.EventPublishingCrudService;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Delivers the change events of {@link EventPublishingCrudService} to clients over Server-Sent Events or WebSocket.
+ * <p>
+ * One feed is created per verticle instance and consumes the event bus address on that verticle's event loop.
+ * Its subscribers are the SSE responses and WebSockets of the same verticle, so everything here runs on one thread
+ * and every event is filtered and encoded once per verticle, not once per subscriber.
+ * <p>
+ * Every subscriber has a bounded buffer: events are written while the connection's write queue has room and held
+ * back otherwise. A subscriber which lags more than "changes.subscriber.buffer-size" events behind gets an
+ * "overflow" event and is disconnected, it has to re-read the cameras it is interested in and subscribe again.
+ * Idle connections get a heartbeat every "changes.heartbeat-seconds" so the server idle timeout does not close them.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class ChangeFeed {
+
+    // Event bus address of the SmartCamera change events
+    public static final String SMARTCAMERA_CHANGES_ADDRESS = "smartcamera.changes";
+
+    // Configuration keys (my-application-conf.json)
+    public static final String CONF_SUBSCRIBER_BUFFER_SIZE = "changes.subscriber.buffer-size";
+    public static final String CONF_SUBSCRIBER_WRITE_QUEUE_BYTES = "changes.subscriber.write-queue-bytes";
+    public static final String CONF_HEARTBEAT_SECONDS = "changes.heartbeat-seconds";
+
+    public static final int DEFAULT_SUBSCRIBER_BUFFER_SIZE = 1000;
+    public static final int DEFAULT_SUBSCRIBER_WRITE_QUEUE_BYTES = 64 * 1024;
+    public static final int DEFAULT_HEARTBEAT_SECONDS = 20;
+
+    public static final String TEXT_EVENT_STREAM = "text/event-stream";
+    public static final String OVERFLOW = "overflow";
+    public static final String HEARTBEAT = "heartbeat";
+
+    private final int bufferSize;
+    private final int writeQueueBytes;
+    private final Set<Subscriber> subscribers = new HashSet<>();
+
+    /**
+     * Starts consuming change events, must be called on the event loop of the verticle which serves the subscribers.
+     *
+     * @param vertx  the Vertx instance of the verticle
+     * @param config the verticle configuration
+     */
+    public ChangeFeed(Vertx vertx, JsonObject config) {
+        this.bufferSize = config.getInteger(CONF_SUBSCRIBER_BUFFER_SIZE, DEFAULT_SUBSCRIBER_BUFFER_SIZE);
+        this.writeQueueBytes = config.getInteger(CONF_SUBSCRIBER_WRITE_QUEUE_BYTES, DEFAULT_SUBSCRIBER_WRITE_QUEUE_BYTES);
+        vertx.eventBus().<JsonObject>consumer(SMARTCAMERA_CHANGES_ADDRESS, message -> publish(message.body()));
+        long heartbeatMillis = config.getInteger(CONF_HEARTBEAT_SECONDS, DEFAULT_HEARTBEAT_SECONDS) * 1000L;
+        vertx.setPeriodic(heartbeatMillis, timerId -> heartbeat());
+    }
+
+    /**
+     * Streams matching changes as Server-Sent Events until the client disconnects.
+     *
+     * @param response the response of a GET request
+     * @param filters  entity attribute -> required value, e.g. city -> Pune; empty for every change
+     */
+    public void subscribe(HttpServerResponse response, Map<String, String> filters) {
+        response.setChunked(true)
+                .putHeader(HttpHeaders.CONTENT_TYPE, TEXT_EVENT_STREAM)
+                .putHeader(HttpHeaders.CACHE_CONTROL, "no-cache")
+                // compression would hold events back until the compressor's buffer fills
+                .putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY)
+                .setWriteQueueMaxSize(writeQueueBytes);
+        Subscriber subscriber = new SseSubscriber(response, filters);
+        response.closeHandler(v -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        // sends the headers, so the client knows the subscription is established
+        response.write(":subscribed\n\n");
+    }
+
+    /**
+     * Sends matching changes as WebSocket text messages (the event JSON) until the client disconnects.
+     *
+     * @param webSocket an upgraded WebSocket
+     * @param filters   entity attribute -> required value, e.g. city -> Pune; empty for every change
+     */
+    public void subscribe(ServerWebSocket webSocket, Map<String, String> filters) {
+        webSocket.setWriteQueueMaxSize(writeQueueBytes);
+        Subscriber subscriber = new WebSocketSubscriber(webSocket, filters);
+        webSocket.closeHandler(v -> subscribers.remove(subscriber));
+        // nothing is expected from the client
+        webSocket.handler(buffer -> {
+        });
+        subscribers.add(subscriber);
+    }
+
+    public int subscriberCount() {
+        return subscribers.size();
+    }
+
+    private void publish(JsonObject event) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        JsonObject entity = event.getJsonObject(EventPublishingCrudService.ENTITY);
+        String type = event.getString(EventPublishingCrudService.TYPE);
+        String json = event.encode();
+        String sse = "event: " + type + "\ndata: " + json + "\n\n";
+        // offer may disconnect a subscriber, which removes it from the set
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            if (subscriber.accepts(entity)) {
+                subscriber.offer(subscriber instanceof SseSubscriber ? sse : json);
+            }
+        }
+    }
+
+    private void heartbeat() {
+        String json = new JsonObject().put(EventPublishingCrudService.TYPE, HEARTBEAT).encode();
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            if (subscriber.pending.isEmpty()) {
+                subscriber.offer(subscriber instanceof SseSubscriber ? ":" + HEARTBEAT + "\n\n" : json);
+            }
+        }
+    }
+
+    /**
+     * One client, with the events which did not fit into its connection's write queue yet.
+     */
+    private abstract class Subscriber {
+
+        private final Map<String, String> filters;
+        private final ArrayDeque<String> pending = new ArrayDeque<>();
+        private final Handler<Void> drainHandler = v -> drain();
+
+        private Subscriber(Map<String, String> filters) {
+            this.filters = filters;
+        }
+
+        abstract boolean writeQueueFull();
+
+        abstract void write(String message);
+
+        abstract void drainHandler(Handler<Void> handler);
+
+        abstract void overflow();
+
+        private boolean accepts(JsonObject entity) {
+            for (Map.Entry<String, String> filter : filters.entrySet()) {
+                if (entity == null || !filter.getValue().equals(entity.getString(filter.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void offer(String message) {
+            if (pending.isEmpty() && !writeQueueFull()) {
+                write(message);
+                return;
+            }
+            if (pending.size() >= bufferSize) {
+                subscribers.remove(this);
+                pending.clear();
+                overflow();
+                return;
+            }
+            pending.add(message);
+            if (pending.size() == 1) {
+                drainHandler(drainHandler);
+            }
+        }
+
+        private void drain() {
+            while (!pending.isEmpty() && !writeQueueFull()) {
+                write(pending.poll());
+            }
+            if (!pending.isEmpty()) {
+                drainHandler(drainHandler);
+            }
+        }
+    }
+
+    private final class SseSubscriber extends Subscriber {
+
+        private final HttpServerResponse response;
+
+        private SseSubscriber(HttpServerResponse response, Map<String, String> filters) {
+            super(filters);
+            this.response = response;
+        }
+
+        @Override
+        boolean writeQueueFull() {
+            return response.writeQueueFull();
+        }
+
+        @Override
+        void write(String message) {
+            response.write(message);
+        }
+
+        @Override
+        void drainHandler(Handler<Void> handler) {
+            response.drainHandler(handler);
+        }
+
+        @Override
+        void overflow() {
+            response.end("event: " + OVERFLOW + "\ndata: {}\n\n");
+        }
+    }
+
+    private final class WebSocketSubscriber extends Subscriber {
+
+        private final ServerWebSocket webSocket;
+
+        private WebSocketSubscriber(ServerWebSocket webSocket, Map<String, String> filters) {
+            super(filters);
+            this.webSocket = webSocket;
+        }
+
+        @Override
+        boolean writeQueueFull() {
+            return webSocket.writeQueueFull();
+        }
+
+        @Override
+        void write(String message) {
+            webSocket.writeFinalTextFrame(message);
+        }
+
+        @Override
+        void drainHandler(Handler<Void> handler) {
+            webSocket.drainHandler(handler);
+        }
+
+        @Override
+        void overflow() {
+            webSocket.writeFinalTextFrame(new JsonObject().put(EventPublishingCrudService.TYPE, OVERFLOW).encode());
+            webSocket.close();
+        }
+    }
+}
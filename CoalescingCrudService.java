@@ -0,0 +1,275 @@
+package com.tymoshenko.controller.repository;
+
+import com.tymoshenko.controller.context.ReadConsistency;
+import io.vertx.core.json.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Merges concurrent readOne calls of another {@link CrudService} into fewer DB queries:
+ * <ul>
+ * <li>a readOne of an id which is already being read waits for that read instead of querying again</li>
+ * <li>readOne calls of different ids arriving within the batch window are answered by one readMany,
+ * i.e. one IN query. The first caller of a window waits for it to pass (or for the batch to fill up) and runs the
+ * query for everybody, the others wait for their result</li>
+ * </ul>
+ * Every caller gets its own copy of the entity. A write of an entity makes later reads query again, so a read which
+ * started after the write completed never returns what a read started before it found. A batch is read with the
+ * strictest {@link ReadConsistency} of its reads, and a read never waits for a running read which may be less
+ * consistent than it needs.
+ * <p>
+ * Callers are worker threads, see {@link WorkerAsyncCrudService}: a window costs every read of a cold id up to
+ * windowNanos of latency, so it is meant to be short and to sit below the cache.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class CoalescingCrudService<T> implements CrudService<T> {
+
+    private final CrudService<T> delegate;
+    private final Function<T, Long> idOf;
+    private final UnaryOperator<T> copyOf;
+    private final boolean enabled;
+    private final long windowNanos;
+    private final int maxBatchSize;
+
+    // reads which are queued or running, by id
+    private final ConcurrentMap<Long, Read<T>> inFlight = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private Batch<T> open;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder batchedIds = new LongAdder();
+
+    /**
+     * @param delegate     the service which actually reads the DB
+     * @param idOf         extracts the id of an entity
+     * @param copyOf       creates a detached copy of an entity
+     * @param enabled      false passes every call through, only counting the queries
+     * @param windowNanos  how long the first read of a batch waits for others, 0 batches only reads which arrive
+     *                     while a batch is being opened
+     * @param maxBatchSize a batch this large is queried right away
+     */
+    public CoalescingCrudService(CrudService<T> delegate, Function<T, Long> idOf, UnaryOperator<T> copyOf,
+                                 boolean enabled, long windowNanos, int maxBatchSize) {
+        this.delegate = delegate;
+        this.idOf = idOf;
+        this.copyOf = copyOf;
+        this.enabled = enabled;
+        this.windowNanos = windowNanos;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public T save(T entity) {
+        T saved = delegate.save(entity);
+        inFlight.remove(idOf.apply(saved));
+        return saved;
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        List<BatchResult<T>> results = delegate.saveAll(entities);
+        for (BatchResult<T> result : results) {
+            if (result.succeeded()) {
+                inFlight.remove(idOf.apply(result.getEntity()));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        try {
+            return delegate.patch(id, changes, expectedVersion);
+        } finally {
+            inFlight.remove(id);
+        }
+    }
+
+    @Override
+    public T readOne(Long id) {
+        lookups.increment();
+        if (!enabled) {
+            queries.increment();
+            return delegate.readOne(id);
+        }
+        Read<T> result = new Read<>(ReadConsistency.lastWrite());
+        Read<T> running = inFlight.putIfAbsent(id, result);
+        if (running != null) {
+            if (running.lastWrite < result.lastWrite) {
+                // the running read may miss the write this one must see
+                queries.increment();
+                return delegate.readOne(id);
+            }
+            coalesced.increment();
+            T entity = await(running);
+            return entity == null ? null : copyOf.apply(entity);
+        }
+        Batch<T> batch;
+        boolean first;
+        synchronized (this) {
+            first = open == null;
+            if (first) {
+                open = new Batch<>(Thread.currentThread());
+            }
+            batch = open;
+            batch.reads.put(id, result);
+            if (batch.reads.size() >= maxBatchSize) {
+                open = null;
+                batch.full = true;
+            }
+        }
+        if (first) {
+            query(batch);
+        } else if (batch.full) {
+            LockSupport.unpark(batch.owner);
+        }
+        T entity = await(result);
+        return entity == null ? null : copyOf.apply(entity);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        lookups.add(ids.size());
+        queries.increment();
+        return delegate.readMany(ids);
+    }
+
+    @Override
+    public List<T> readAll() {
+        return delegate.readAll();
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return delegate.readPage(filters, afterId, limit);
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        return delegate.count(filters);
+    }
+
+    @Override
+    public void delete(Long id) {
+        try {
+            delegate.delete(id);
+        } finally {
+            inFlight.remove(id);
+        }
+    }
+
+    /**
+     * @return lookups, coalesced lookups and the DB queries they took, suitable for rendering as a REST response
+     */
+    public JsonObject stats() {
+        long batches = queries.sum();
+        return new JsonObject()
+                .put("enabled", enabled)
+                .put("lookups", lookups.sum())
+                .put("coalesced", coalesced.sum())
+                .put("queries", batches)
+                .put("idsPerBatchAvg", batches == 0 ? 0.0 : (double) batchedIds.sum() / batches);
+    }
+
+    // run by the first reader of the batch, on its own thread
+    private void query(Batch<T> batch) {
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining;
+        while (!batch.full && (remaining = deadline - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+            LockSupport.parkNanos(this, remaining);
+        }
+        synchronized (this) {
+            if (open == batch) {
+                open = null;
+            }
+        }
+        // nobody adds to the batch any more
+        long ownLastWrite = ReadConsistency.lastWrite();
+        long lastWrite = ownLastWrite;
+        for (Read<T> read : batch.reads.values()) {
+            lastWrite = Math.max(lastWrite, read.lastWrite);
+        }
+        ReadConsistency.set(lastWrite);
+        Map<Long, T> found = new HashMap<>();
+        try {
+            queries.increment();
+            batchedIds.add(batch.reads.size());
+            if (batch.reads.size() == 1) {
+                Long id = batch.reads.keySet().iterator().next();
+                found.put(id, delegate.readOne(id));
+            } else {
+                for (T entity : delegate.readMany(new ArrayList<>(batch.reads.keySet()))) {
+                    found.put(idOf.apply(entity), entity);
+                }
+            }
+        } catch (RuntimeException | Error e) {
+            for (Map.Entry<Long, Read<T>> read : batch.reads.entrySet()) {
+                inFlight.remove(read.getKey(), read.getValue());
+                read.getValue().completeExceptionally(e);
+            }
+            return;
+        } finally {
+            ReadConsistency.set(ownLastWrite);
+        }
+        for (Map.Entry<Long, Read<T>> read : batch.reads.entrySet()) {
+            inFlight.remove(read.getKey(), read.getValue());
+            read.getValue().complete(found.get(read.getKey()));
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads queried together.
+     */
+    private static final class Batch<T> {
+
+        private final Thread owner;
+        // guarded by the service until the batch is closed
+        private final Map<Long, Read<T>> reads = new LinkedHashMap<>();
+        private volatile boolean full;
+
+        private Batch(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Result of a queued or running read and the {@link ReadConsistency} it was read with.
+     */
+    private static final class Read<T> extends CompletableFuture<T> {
+
+        private final long lastWrite;
+
+        private Read(long lastWrite) {
+            this.lastWrite = lastWrite;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.tymoshenko.controller.context;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import io.vertx.core.json.JsonObject;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects JDBC connection pool metrics: pool occupancy (active, idle, pending threads)
+ * and how long callers wait to acquire a connection.
+ * Used to size the pool against the actual load.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder acquisitionWaitNanos = new LongAdder();
+    private final LongAccumulator maxAcquisitionWaitNanos = new LongAccumulator(Math::max, 0L);
+    private final LongAdder acquisitionTimeouts = new LongAdder();
+    private final LongAdder usageMillis = new LongAdder();
+    private final LongAdder connectionsCreated = new LongAdder();
+
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new Tracker();
+    }
+
+    /**
+     * @return a point-in-time view of the pool, suitable for rendering as a REST response
+     */
+    public JsonObject snapshot() {
+        JsonObject json = new JsonObject();
+        PoolStats stats = poolStats;
+        if (stats != null) {
+            json.put("active", stats.getActiveConnections())
+                    .put("idle", stats.getIdleConnections())
+                    .put("total", stats.getTotalConnections())
+                    .put("pending", stats.getPendingThreads())
+                    .put("max", stats.getMaxConnections())
+                    .put("min", stats.getMinConnections());
+        }
+        long count = acquisitions.sum();
+        long waitNanos = acquisitionWaitNanos.sum();
+        return json
+                .put("acquisitions", count)
+                .put("acquisitionTimeouts", acquisitionTimeouts.sum())
+                .put("connectionsCreated", connectionsCreated.sum())
+                .put("waitMillisTotal", TimeUnit.NANOSECONDS.toMillis(waitNanos))
+                .put("waitMillisAvg", count == 0 ? 0.0 : waitNanos / (double) count / 1_000_000.0)
+                .put("waitMillisMax", TimeUnit.NANOSECONDS.toMillis(maxAcquisitionWaitNanos.get()))
+                .put("usageMillisAvg", count == 0 ? 0.0 : usageMillis.sum() / (double) count);
+    }
+
+    private final class Tracker implements IMetricsTracker {
+
+        @Override
+        public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+            connectionsCreated.increment();
+        }
+
+        @Override
+        public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+            acquisitions.increment();
+            acquisitionWaitNanos.add(elapsedAcquiredNanos);
+            maxAcquisitionWaitNanos.accumulate(elapsedAcquiredNanos);
+        }
+
+        @Override
+        public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+            usageMillis.add(elapsedBorrowedMillis);
+        }
+
+        @Override
+        public void recordConnectionTimeout() {
+            acquisitionTimeouts.increment();
+        }
+    }
+}
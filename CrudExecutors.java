@@ -0,0 +1,159 @@
+
+package com.tymoshenko.controller.repository;
+
+import io.vertx.core.json.JsonObject;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors which run blocking {@link CrudService} calls on behalf of {@link AsyncCrudService}.
+ * <p>
+ * The executor is always bounded: at most "pool size" calls run at once and at most "queue limit" calls wait,
+ * everything above that is rejected with {@link RejectedExecutionException} instead of queueing up unbounded
+ * while the database is slow.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class CrudExecutors {
+
+    // Configuration keys (my-application-conf.json)
+    public static final String CONF_POOL_SIZE = "crud.worker.pool-size";
+    public static final String CONF_QUEUE_LIMIT = "crud.worker.queue-limit";
+    public static final String CONF_VIRTUAL_THREADS = "crud.worker.virtual-threads";
+
+    public static final int DEFAULT_POOL_SIZE = 16;
+    public static final int DEFAULT_QUEUE_LIMIT = 256;
+
+    private static final String THREAD_NAME_PREFIX = "crud-worker-";
+
+    private CrudExecutors() {
+    }
+
+    /**
+     * Creates an executor from the application configuration.
+     * Virtual threads are used only when requested and supported by the running JVM,
+     * otherwise a fixed platform thread pool is created.
+     *
+     * @param config the verticle configuration
+     * @return a bounded executor
+     */
+    public static ExecutorService create(JsonObject config) {
+        int poolSize = config.getInteger(CONF_POOL_SIZE, DEFAULT_POOL_SIZE);
+        int queueLimit = config.getInteger(CONF_QUEUE_LIMIT, DEFAULT_QUEUE_LIMIT);
+        if (config.getBoolean(CONF_VIRTUAL_THREADS, false)) {
+            ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+            if (virtualThreads != null) {
+                return new PermitBoundedExecutor(virtualThreads, poolSize + queueLimit);
+            }
+        }
+        return newBoundedThreadPool(poolSize, queueLimit);
+    }
+
+    /**
+     * @param poolSize   number of worker threads
+     * @param queueLimit max number of tasks waiting for a free worker
+     * @return a fixed thread pool which rejects tasks when the queue is full
+     */
+    public static ExecutorService newBoundedThreadPool(int poolSize, int queueLimit) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                poolSize, poolSize,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueLimit),
+                new WorkerThreadFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() exists since Java 21, look it up reflectively
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Puts an upper bound on the number of in-flight tasks of an otherwise unbounded executor.
+     */
+    private static final class PermitBoundedExecutor extends AbstractExecutorService {
+
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        private PermitBoundedExecutor(ExecutorService delegate, int maxInFlight) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("Too many in-flight CRUD calls");
+            }
+            try {
+                delegate.execute(() -> {
+                    try {
+                        command.run();
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.context.SpringConfig;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.tymoshenko.model.SmartCamera;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CrudService round trips against the embedded database, through the full Spring/JPA/Hibernate stack.
+ * "jpa" is SmartCameraCrudService itself, "primary" is the CrudService the REST layer uses (cache and indexes included).
+ * "memory" is InMemoryCrudService (crud.engine=memory, write-ahead log in a temporary directory) and
+ * "primary-memory" the CrudService of the REST layer on top of it.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrudServiceBenchmark {
+
+    private static final Map<String, String> CITY_FILTER = Collections.singletonMap(SmartCameraCrudService.FILTER_CITY, "Pune");
+
+    @Param({"jpa", "primary", "memory", "primary-memory"})
+    public String service;
+
+    @Param({"10000"})
+    public int cameras;
+
+    private AnnotationConfigApplicationContext applicationContext;
+    private CrudService<SmartCamera> crudService;
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        boolean memory = service.endsWith("memory");
+        System.setProperty(SpringConfig.CRUD_ENGINE, memory ? SpringConfig.CRUD_ENGINE_MEMORY : SpringConfig.CRUD_ENGINE_JPA);
+        applicationContext = EmbeddedApplicationContext.start("crud-benchmark");
+        CrudService<SmartCamera> primaryCrudService = applicationContext.getBean(CrudService.class);
+        if ("jpa".equals(service)) {
+            crudService = applicationContext.getBean(SmartCameraCrudService.class);
+        } else if ("memory".equals(service)) {
+            crudService = applicationContext.getBean("smartCameraStore", CrudService.class);
+        } else {
+            crudService = primaryCrudService;
+        }
+        ids = SyntheticCameras.populate(primaryCrudService, cameras, 42L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationContext.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        private final Random random = new Random();
+    }
+
+    @Benchmark
+    public SmartCamera readOne(ThreadRandom threadRandom) {
+        return crudService.readOne(ids.get(threadRandom.random.nextInt(ids.size())));
+    }
+
+    @Benchmark
+    public List<SmartCamera> readPage(ThreadRandom threadRandom) {
+        return crudService.readPage(Collections.emptyMap(), ids.get(threadRandom.random.nextInt(ids.size())), 100);
+    }
+
+    @Benchmark
+    public long countByCity() {
+        return crudService.count(CITY_FILTER);
+    }
+
+    @Benchmark
+    public SmartCamera save(ThreadRandom threadRandom) {
+        return crudService.save(SyntheticCameras.next(threadRandom.random));
+    }
+}
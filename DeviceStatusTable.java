@@ -0,0 +1,190 @@
+package com.tymoshenko.controller.telemetry;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Latest heartbeat per device, in an open addressing hash table keyed by the primitive device id.
+ * <p>
+ * Ids, timestamps, statuses and temperatures are kept in parallel primitive arrays, so a million devices cost
+ * a few tens of MB and no object per device or per update. Writers take the write lock of a {@link StampedLock},
+ * readers probe optimistically and fall back to the read lock only if a write interfered.
+ * Device id 0 marks a free slot and cannot be stored.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class DeviceStatusTable {
+
+    private static final float MAX_LOAD = 0.6f;
+
+    /**
+     * Latest heartbeat of one device, a copy taken when it was read.
+     */
+    public static final class Status {
+
+        private final long deviceId;
+        private final long timestamp;
+        private final int status;
+        private final float temperature;
+
+        private Status(long deviceId, long timestamp, int status, float temperature) {
+            this.deviceId = deviceId;
+            this.timestamp = timestamp;
+            this.status = status;
+            this.temperature = temperature;
+        }
+
+        public long getDeviceId() {
+            return deviceId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public float getTemperature() {
+            return temperature;
+        }
+    }
+
+    // the arrays of one capacity, replaced as a whole when the table grows
+    private static final class Slots {
+
+        private final long[] deviceIds;
+        private final long[] timestamps;
+        private final int[] statuses;
+        private final float[] temperatures;
+        private final int mask;
+
+        private Slots(int capacity) {
+            deviceIds = new long[capacity];
+            timestamps = new long[capacity];
+            statuses = new int[capacity];
+            temperatures = new float[capacity];
+            mask = capacity - 1;
+        }
+
+        // slot of the device, or the free slot where it belongs
+        private int find(long deviceId) {
+            int slot = hash(deviceId) & mask;
+            while (deviceIds[slot] != 0 && deviceIds[slot] != deviceId) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    private final StampedLock lock = new StampedLock();
+    private volatile Slots slots;
+    private int size;
+
+    /**
+     * @param expectedDevices number of devices the table is sized for, it grows beyond that as needed
+     */
+    public DeviceStatusTable(int expectedDevices) {
+        slots = new Slots(capacityFor(expectedDevices));
+    }
+
+    /**
+     * Stores a heartbeat unless the device already has a newer one (heartbeats may arrive out of order).
+     *
+     * @return false if the stored heartbeat is newer
+     */
+    public boolean update(long deviceId, long timestamp, int status, float temperature) {
+        if (deviceId == 0) {
+            throw new IllegalArgumentException("Device id 0 is reserved");
+        }
+        long stamp = lock.writeLock();
+        try {
+            Slots current = slots;
+            int slot = current.find(deviceId);
+            if (current.deviceIds[slot] == 0) {
+                if (size + 1 > current.deviceIds.length * MAX_LOAD) {
+                    current = grow(current);
+                    slot = current.find(deviceId);
+                }
+                current.deviceIds[slot] = deviceId;
+                size++;
+            } else if (current.timestamps[slot] > timestamp) {
+                return false;
+            }
+            current.timestamps[slot] = timestamp;
+            current.statuses[slot] = status;
+            current.temperatures[slot] = temperature;
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the latest heartbeat of the device, null if it never sent one
+     */
+    public Status get(long deviceId) {
+        long stamp = lock.tryOptimisticRead();
+        Status status = read(deviceId);
+        if (lock.validate(stamp)) {
+            return status;
+        }
+        stamp = lock.readLock();
+        try {
+            return read(deviceId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // may see a torn entry when racing with a writer, the caller validates
+    private Status read(long deviceId) {
+        Slots current = slots;
+        int slot = current.find(deviceId);
+        if (current.deviceIds[slot] != deviceId) {
+            return null;
+        }
+        return new Status(deviceId, current.timestamps[slot], current.statuses[slot], current.temperatures[slot]);
+    }
+
+    // under the write lock
+    private Slots grow(Slots current) {
+        Slots grown = new Slots(current.deviceIds.length * 2);
+        for (int i = 0; i < current.deviceIds.length; i++) {
+            long deviceId = current.deviceIds[i];
+            if (deviceId != 0) {
+                int slot = grown.find(deviceId);
+                grown.deviceIds[slot] = deviceId;
+                grown.timestamps[slot] = current.timestamps[i];
+                grown.statuses[slot] = current.statuses[i];
+                grown.temperatures[slot] = current.temperatures[i];
+            }
+        }
+        slots = grown;
+        return grown;
+    }
+
+    private static int capacityFor(int expectedDevices) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedDevices) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    // ids are mostly sequential, spread them over the table
+    private static int hash(long deviceId) {
+        long h = deviceId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,98 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.context.SpringConfig;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Starts the real Spring configuration against an in-memory H2 database (MySQL mode) instead of MySQL,
+ * so benchmarks and load tests run anywhere without external services.
+ * <p>
+ * jdbc.properties is overridden through system properties, which take precedence over the property file.
+ * Files kept on local disk (heartbeat log, in-memory camera store) go to a fresh temporary directory.
+ * Read replicas are in-memory databases too, {@link EmbeddedReplication} copies the primary to them.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class EmbeddedApplicationContext {
+
+    public static final String EMBEDDED_INIT_DB_SQL = "init-embedded-db.sql";
+
+    private EmbeddedApplicationContext() {
+    }
+
+    /**
+     * @param databaseName name of the in-memory database, contexts with the same name share the data
+     * @return a started context
+     */
+    public static AnnotationConfigApplicationContext start(String databaseName) {
+        return start(databaseName, 0);
+    }
+
+    /**
+     * @param databaseName name of the in-memory database, contexts with the same name share the data
+     * @param replicas     number of read replicas, see {@link #replicaUrl(String, int)}
+     * @return a started context
+     */
+    public static AnnotationConfigApplicationContext start(String databaseName, int replicas) {
+        configure(databaseName, replicas);
+        return new AnnotationConfigApplicationContext(SpringConfig.class);
+    }
+
+    /**
+     * Points SpringConfig at the embedded databases, for contexts which are created by someone else, e.g. Application.
+     *
+     * @param databaseName name of the in-memory database, contexts with the same name share the data
+     * @param replicas     number of read replicas, see {@link #replicaUrl(String, int)}
+     */
+    public static void configure(String databaseName, int replicas) {
+        if (replicas > 0) {
+            StringBuilder replicaUrls = new StringBuilder();
+            for (int replica = 1; replica <= replicas; replica++) {
+                replicaUrls.append(replica > 1 ? "," : "").append(replicaUrl(databaseName, replica));
+            }
+            System.setProperty(SpringConfig.JDBC_REPLICA_URLS, replicaUrls.toString());
+            System.setProperty(SpringConfig.JDBC_REPLICA_INIT_SCRIPT, EMBEDDED_INIT_DB_SQL);
+        } else {
+            System.clearProperty(SpringConfig.JDBC_REPLICA_URLS);
+            System.clearProperty(SpringConfig.JDBC_REPLICA_INIT_SCRIPT);
+        }
+        System.setProperty(SpringConfig.JDBC_DRIVER_CLASS_NAME, "org.h2.Driver");
+        System.setProperty(SpringConfig.JDBC_URL, primaryUrl(databaseName));
+        System.setProperty(SpringConfig.JDBC_USERNAME, "sa");
+        System.setProperty(SpringConfig.JDBC_PASSWORD, "");
+        System.setProperty(SpringConfig.JDBC_INIT_SCRIPT, EMBEDDED_INIT_DB_SQL);
+        System.setProperty(SpringConfig.HIBERNATE_SHOW_SQL, "false");
+        // used in production boot mode, where it is not detected
+        System.setProperty(SpringConfig.HIBERNATE_DIALECT, "org.hibernate.dialect.H2Dialect");
+        try {
+            Path directory = Files.createTempDirectory(databaseName);
+            System.setProperty(SpringConfig.HEARTBEAT_LOG_DIR, directory.resolve("heartbeat-log").toString());
+            System.setProperty(SpringConfig.CRUD_MEMORY_DIR, directory.resolve("smartcamera-store").toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param databaseName name of the primary database
+     * @param replica      number of the replica, starting at 1
+     * @return JDBC URL of a read replica of the database
+     */
+    public static String replicaUrl(String databaseName, int replica) {
+        return "jdbc:h2:mem:" + databaseName + "-replica-" + replica + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+    }
+
+    /**
+     * @param databaseName name of the database
+     * @return JDBC URL of the primary database
+     */
+    public static String primaryUrl(String databaseName) {
+        return "jdbc:h2:mem:" + databaseName + ";MODE=MySQL;DB_CLOSE_DELAY=-1";
+    }
+}
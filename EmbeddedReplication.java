@@ -0,0 +1,130 @@
+package com.tymoshenko.benchmark;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous replication between in-memory databases, standing in for MySQL replication in benchmarks:
+ * every delayMillis the camera table and the replication heartbeat of the primary are copied to every replica,
+ * each replica in one transaction. A replica is therefore up to delayMillis (plus the copy time) behind the primary,
+ * and its heartbeat never claims more than its data has.
+ * <p>
+ * {@link #pause()} stops the copying, so the replicas fall behind until {@link #resume()}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class EmbeddedReplication implements Closeable {
+
+    private static final String TABLE = "smartcamera";
+    private static final String HEARTBEAT = "SELECT ts FROM replication_heartbeat WHERE id = 1";
+
+    private final String primaryUrl;
+    private final List<String> replicaUrls;
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean paused;
+
+    /**
+     * @param databaseName name of the primary database, see {@link EmbeddedApplicationContext}
+     * @param replicas     number of replicas
+     * @param delayMillis  time between two copies
+     */
+    public EmbeddedReplication(String databaseName, int replicas, long delayMillis) {
+        this.primaryUrl = EmbeddedApplicationContext.primaryUrl(databaseName);
+        this.replicaUrls = new ArrayList<>();
+        for (int replica = 1; replica <= replicas; replica++) {
+            replicaUrls.add(EmbeddedApplicationContext.replicaUrl(databaseName, replica));
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "embedded-replication");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::replicate, delayMillis, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void replicate() {
+        if (paused || replicaUrls.isEmpty()) {
+            return;
+        }
+        try (Connection primary = DriverManager.getConnection(primaryUrl, "sa", "")) {
+            // the heartbeat first: the rows read after it are at least as recent
+            long heartbeat;
+            try (Statement statement = primary.createStatement();
+                 ResultSet resultSet = statement.executeQuery(HEARTBEAT)) {
+                heartbeat = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+            List<Object[]> rows = new ArrayList<>();
+            try (Statement statement = primary.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT * FROM " + TABLE)) {
+                int columns = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    Object[] row = new Object[columns];
+                    for (int column = 0; column < columns; column++) {
+                        row[column] = resultSet.getObject(column + 1);
+                    }
+                    rows.add(row);
+                }
+            }
+            for (String replicaUrl : replicaUrls) {
+                copy(replicaUrl, rows, heartbeat);
+            }
+        } catch (SQLException e) {
+            // the replicas fall behind and the routing stops reading from them
+            System.err.println("Replication failed: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static void copy(String replicaUrl, List<Object[]> rows, long heartbeat) throws SQLException {
+        try (Connection replica = DriverManager.getConnection(replicaUrl, "sa", "")) {
+            replica.setAutoCommit(false);
+            try (Statement delete = replica.createStatement()) {
+                delete.executeUpdate("DELETE FROM " + TABLE);
+            }
+            if (!rows.isEmpty()) {
+                StringBuilder insert = new StringBuilder("INSERT INTO ").append(TABLE).append(" VALUES (?");
+                for (int column = 1; column < rows.get(0).length; column++) {
+                    insert.append(", ?");
+                }
+                try (PreparedStatement statement = replica.prepareStatement(insert.append(')').toString())) {
+                    for (Object[] row : rows) {
+                        for (int column = 0; column < row.length; column++) {
+                            statement.setObject(column + 1, row[column]);
+                        }
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+            try (PreparedStatement update = replica.prepareStatement(
+                    "UPDATE replication_heartbeat SET ts = ? WHERE id = 1")) {
+                update.setLong(1, heartbeat);
+                update.executeUpdate();
+            }
+            replica.commit();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.tymoshenko.controller.repository;
+
+import io.vertx.core.eventbus.EventBus;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Publishes a change event on the Vert.x event bus for every successful write of another {@link CrudService}.
+ * <p>
+ * Events are JSON objects:
+ * <pre>
+ * {"type": "created" | "updated" | "deleted", "id": 123, "entity": {...}}
+ * </pre>
+ * "entity" is the saved state, for "deleted" the state before the delete (read right before deleting it,
+ * so subscribers can filter deletions like any other change). Failed writes publish nothing.
+ * Events are published, not sent, so every consumer of the address receives them.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class EventPublishingCrudService<T> implements CrudService<T> {
+
+    public static final String TYPE = "type";
+    public static final String ID = "id";
+    public static final String ENTITY = "entity";
+
+    public static final String CREATED = "created";
+    public static final String UPDATED = "updated";
+    public static final String DELETED = "deleted";
+
+    private final CrudService<T> delegate;
+    private final EventBus eventBus;
+    private final String address;
+    private final Function<T, Long> idOf;
+
+    /**
+     * @param delegate the service which actually reads/writes the DB
+     * @param eventBus event bus to publish on, thread safe so events can be published from worker threads
+     * @param address  event bus address of the change events
+     * @param idOf     extracts the id of an entity, null or 0 for an entity which was not saved yet
+     */
+    public EventPublishingCrudService(CrudService<T> delegate, EventBus eventBus, String address, Function<T, Long> idOf) {
+        this.delegate = delegate;
+        this.eventBus = eventBus;
+        this.address = address;
+        this.idOf = idOf;
+    }
+
+    @Override
+    public T save(T entity) {
+        boolean created = isNew(entity);
+        T saved = delegate.save(entity);
+        publish(created ? CREATED : UPDATED, saved);
+        return saved;
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        boolean[] created = new boolean[entities.size()];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = isNew(entities.get(i));
+        }
+        List<BatchResult<T>> results = delegate.saveAll(entities);
+        // one result per entity, in the same order
+        for (int i = 0; i < results.size(); i++) {
+            BatchResult<T> result = results.get(i);
+            if (result.succeeded()) {
+                publish(i < created.length && created[i] ? CREATED : UPDATED, result.getEntity());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        T patched = delegate.patch(id, changes, expectedVersion);
+        if (patched != null) {
+            publish(UPDATED, patched);
+        }
+        return patched;
+    }
+
+    @Override
+    public T readOne(Long id) {
+        return delegate.readOne(id);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        return delegate.readMany(ids);
+    }
+
+    @Override
+    public List<T> readAll() {
+        return delegate.readAll();
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return delegate.readPage(filters, afterId, limit);
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        return delegate.count(filters);
+    }
+
+    @Override
+    public void delete(Long id) {
+        T deleted = delegate.readOne(id);
+        delegate.delete(id);
+        if (deleted != null) {
+            publish(DELETED, deleted);
+        }
+    }
+
+    private boolean isNew(T entity) {
+        Long id = idOf.apply(entity);
+        return id == null || id == 0L;
+    }
+
+    private void publish(String type, T entity) {
+        eventBus.publish(address, new JsonObject()
+                .put(TYPE, type)
+                .put(ID, idOf.apply(entity))
+                .put(ENTITY, new JsonObject(Json.encode(entity))));
+    }
+}
@@ -0,0 +1,299 @@
+
+package com.tymoshenko.controller.repository;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory spatial index of entities by latitude/longitude.
+ * <p>
+ * The globe is split into a uniform grid of square cells (in degrees). Every entity lives in exactly one cell,
+ * so a query only visits the cells overlapping the searched area instead of scanning every entity.
+ * Columns wrap around at the antimeridian (longitude 180 is longitude -180), rows end at the poles.
+ * Latitudes must be in [-90, 90] and longitudes in [-180, 180], callers validate them.
+ * Reads are lock-free; writes are serialized, they are rare compared to reads.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class GeoGridIndex<T> {
+
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+
+    private final double cellSizeDegrees;
+    private final int rows;
+    private final int columns;
+
+    private final Map<Long, Entry<T>> entriesById = new ConcurrentHashMap<>();
+    private final Map<Long, Map<Long, Entry<T>>> entriesByCell = new ConcurrentHashMap<>();
+
+    /**
+     * @param cellSizeDegrees edge of a grid cell; should be close to the typical query radius
+     */
+    public GeoGridIndex(double cellSizeDegrees) {
+        this.cellSizeDegrees = cellSizeDegrees;
+        this.rows = (int) Math.ceil(180.0 / cellSizeDegrees);
+        this.columns = (int) Math.ceil(360.0 / cellSizeDegrees);
+    }
+
+    /**
+     * Adds an entity or moves it to its new location.
+     */
+    public synchronized void put(long id, double latitude, double longitude, T value) {
+        Entry<T> entry = new Entry<>(id, latitude, longitude, cellOf(latitude, longitude), value);
+        Entry<T> previous = entriesById.put(id, entry);
+        if (previous != null && previous.cell != entry.cell) {
+            removeFromCell(previous);
+        }
+        entriesByCell.computeIfAbsent(entry.cell, cell -> new ConcurrentHashMap<>()).put(id, entry);
+    }
+
+    public synchronized void remove(long id) {
+        Entry<T> previous = entriesById.remove(id);
+        if (previous != null) {
+            removeFromCell(previous);
+        }
+    }
+
+    public synchronized void clear() {
+        entriesById.clear();
+        entriesByCell.clear();
+    }
+
+    public int size() {
+        return entriesById.size();
+    }
+
+    /**
+     * Finds the k entities closest to the given point.
+     * Cells are visited in growing square rings around the point until no unvisited cell can hold anything closer
+     * than the k-th best match found so far, every entity has been seen or the ring covers the whole grid.
+     * A ring visits only the cells of its border, so the cost grows with the ring, not with its area.
+     *
+     * @return up to k matches, closest first
+     */
+    public List<Match<T>> nearest(double latitude, double longitude, int k) {
+        int total = entriesById.size();
+        if (k <= 0 || total == 0) {
+            return Collections.emptyList();
+        }
+        // max-heap on distance, holds the k best matches
+        PriorityQueue<Match<T>> best = new PriorityQueue<>(k, Comparator.comparingDouble(Match<T>::getDistanceMeters).reversed());
+        int row = rowOf(latitude);
+        int column = columnOf(longitude);
+        // column offsets -westOffsets..eastOffsets reach every column exactly once
+        int westOffsets = columns / 2;
+        int eastOffsets = columns - 1 - westOffsets;
+        int maxRing = Math.max(Math.max(row, rows - 1 - row), westOffsets);
+        int seen = 0;
+        for (int ring = 0; ring <= maxRing && seen < total; ring++) {
+            if (best.size() == k && best.peek().getDistanceMeters() < minDistanceToRing(latitude, ring)) {
+                break;
+            }
+            int west = Math.min(ring, westOffsets);
+            int east = Math.min(ring, eastOffsets);
+            // top and bottom edges (one row for ring 0)
+            for (int c = column - west; c <= column + east; c++) {
+                seen += visit(best, k, latitude, longitude, row - ring, c);
+                if (ring > 0) {
+                    seen += visit(best, k, latitude, longitude, row + ring, c);
+                }
+            }
+            // left and right edges without their corners, unless the ring wrapped past the opposite column
+            for (int r = Math.max(0, row - ring + 1); r <= Math.min(rows - 1, row + ring - 1); r++) {
+                if (ring <= westOffsets) {
+                    seen += visit(best, k, latitude, longitude, r, column - ring);
+                }
+                if (ring <= eastOffsets) {
+                    seen += visit(best, k, latitude, longitude, r, column + ring);
+                }
+            }
+        }
+        List<Match<T>> result = new ArrayList<>(best);
+        result.sort(Comparator.comparingDouble(Match::getDistanceMeters));
+        return result;
+    }
+
+    // offers the entities of one cell to the k best matches, returns the number of entities in the cell
+    private int visit(PriorityQueue<Match<T>> best, int k, double latitude, double longitude, int row, int column) {
+        int visited = 0;
+        for (Entry<T> entry : cell(row, column)) {
+            visited++;
+            Match<T> match = new Match<>(entry, distanceMeters(latitude, longitude, entry.latitude, entry.longitude));
+            if (best.size() < k) {
+                best.add(match);
+            } else if (match.getDistanceMeters() < best.peek().getDistanceMeters()) {
+                best.poll();
+                best.add(match);
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Finds the entities within the given distance of a point.
+     *
+     * @return at most limit matches, closest first
+     */
+    public List<Match<T>> withinRadius(double latitude, double longitude, double radiusMeters, int limit) {
+        double angle = radiusMeters / EARTH_RADIUS_METERS;
+        double latitudeDelta = Math.toDegrees(angle);
+        // longitude extent of the circle, every longitude when the circle contains a pole
+        double sinLongitudeDelta = Math.sin(angle) / Math.cos(Math.toRadians(latitude));
+        boolean allColumns = Math.abs(latitude) + latitudeDelta >= 90.0 || angle >= Math.PI / 2 || sinLongitudeDelta >= 1.0;
+        double longitudeDelta = allColumns ? 180.0 : Math.toDegrees(Math.asin(sinLongitudeDelta));
+        int firstColumn = (int) Math.floor((longitude - longitudeDelta + 180.0) / cellSizeDegrees);
+        int lastColumn = Math.min((int) Math.floor((longitude + longitudeDelta + 180.0) / cellSizeDegrees), firstColumn + columns - 1);
+        List<Match<T>> result = new ArrayList<>();
+        for (int r = rowOf(latitude - latitudeDelta); r <= rowOf(latitude + latitudeDelta); r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                for (Entry<T> entry : cell(r, c)) {
+                    double distance = distanceMeters(latitude, longitude, entry.latitude, entry.longitude);
+                    if (distance <= radiusMeters) {
+                        result.add(new Match<>(entry, distance));
+                    }
+                }
+            }
+        }
+        result.sort(Comparator.comparingDouble(Match::getDistanceMeters));
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    /**
+     * Finds the entities inside a latitude/longitude bounding box (bounds included).
+     * A box with minLongitude greater than maxLongitude crosses the antimeridian.
+     *
+     * @return at most limit matches, in no particular order
+     */
+    public List<T> withinBox(double minLatitude, double minLongitude, double maxLatitude, double maxLongitude, int limit) {
+        boolean crossesAntimeridian = minLongitude > maxLongitude;
+        int firstColumn = columnOf(minLongitude);
+        int columnCount = Math.floorMod(columnOf(maxLongitude) - firstColumn, columns) + 1;
+        List<T> result = new ArrayList<>();
+        for (int r = rowOf(minLatitude); r <= rowOf(maxLatitude); r++) {
+            for (int c = firstColumn; c < firstColumn + columnCount; c++) {
+                for (Entry<T> entry : cell(r, c)) {
+                    boolean inLongitude = crossesAntimeridian
+                            ? entry.longitude >= minLongitude || entry.longitude <= maxLongitude
+                            : entry.longitude >= minLongitude && entry.longitude <= maxLongitude;
+                    if (entry.latitude >= minLatitude && entry.latitude <= maxLatitude && inLongitude) {
+                        result.add(entry.value);
+                        if (result.size() == limit) {
+                            return result;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    //=========== Grid helpers =========================================================================================
+    // column is taken modulo columns, rows beyond the poles are empty
+    private Iterable<Entry<T>> cell(int row, int column) {
+        if (row < 0 || row >= rows) {
+            return Collections.emptyList();
+        }
+        Map<Long, Entry<T>> entries = entriesByCell.get((long) row * columns + Math.floorMod(column, columns));
+        return entries == null ? Collections.emptyList() : entries.values();
+    }
+
+    private long cellOf(double latitude, double longitude) {
+        return (long) rowOf(latitude) * columns + columnOf(longitude);
+    }
+
+    private int rowOf(double latitude) {
+        return clamp((int) Math.floor((latitude + 90.0) / cellSizeDegrees), rows);
+    }
+
+    private int columnOf(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180.0) / cellSizeDegrees), columns);
+    }
+
+    private static int clamp(int index, int size) {
+        return Math.max(0, Math.min(size - 1, index));
+    }
+
+    private void removeFromCell(Entry<T> entry) {
+        Map<Long, Entry<T>> entries = entriesByCell.get(entry.cell);
+        if (entries != null) {
+            entries.remove(entry.id);
+            if (entries.isEmpty()) {
+                entriesByCell.remove(entry.cell);
+            }
+        }
+    }
+
+    /**
+     * Lower bound of the distance from a point to any cell of the given ring or beyond (ring 0 is the point's own
+     * cell). Such a cell is at least ring - 1 cells away in latitude or in longitude. The latitude part is an arc of
+     * a meridian. The longitude part is the distance to the nearest meridian that far away, which is exact up to
+     * the poles: it drops to 0 for a point on a pole, where every longitude is close.
+     */
+    private double minDistanceToRing(double latitude, int ring) {
+        if (ring == 0) {
+            return 0.0;
+        }
+        double angle = Math.toRadians((ring - 1) * cellSizeDegrees);
+        double byLatitude = EARTH_RADIUS_METERS * angle;
+        double byLongitude = EARTH_RADIUS_METERS
+                * Math.asin(Math.cos(Math.toRadians(latitude)) * Math.sin(Math.min(angle, Math.PI / 2)));
+        return Math.min(byLatitude, byLongitude);
+    }
+
+    /**
+     * Great-circle (haversine) distance.
+     */
+    public static double distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double dLatitude = Math.toRadians(latitude2 - latitude1);
+        double dLongitude = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    private static final class Entry<T> {
+
+        private final long id;
+        private final double latitude;
+        private final double longitude;
+        private final long cell;
+        private final T value;
+
+        private Entry(long id, double latitude, double longitude, long cell, T value) {
+            this.id = id;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.cell = cell;
+            this.value = value;
+        }
+    }
+
+    /**
+     * An indexed entity and its distance from the query point.
+     */
+    public static final class Match<T> {
+
+        private final T value;
+        private final double distanceMeters;
+
+        private Match(Entry<T> entry, double distanceMeters) {
+            this.value = entry.value;
+            this.distanceMeters = distanceMeters;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public double getDistanceMeters() {
+            return distanceMeters;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+
+package com.tymoshenko.controller.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Keeps a {@link GeoGridIndex} in sync with the entities written through another {@link CrudService}.
+ * The index is filled from the DB once on startup ({@link #rebuild()}), afterwards every save/saveAll/delete
+ * going through this service updates it.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class GeoIndexingCrudService<T> implements CrudService<T> {
+
+    private static final int REBUILD_PAGE_SIZE = 10000;
+
+    private final CrudService<T> delegate;
+    private final GeoGridIndex<T> index;
+    private final Function<T, Long> idOf;
+    private final Function<T, Double> latitudeOf;
+    private final Function<T, Double> longitudeOf;
+    private final UnaryOperator<T> copyOf;
+
+    /**
+     * @param delegate    the service which actually reads/writes the DB
+     * @param index       the index to maintain
+     * @param idOf        extracts the id of an entity
+     * @param latitudeOf  extracts the latitude of an entity, may return null
+     * @param longitudeOf extracts the longitude of an entity, may return null
+     * @param copyOf      creates a detached copy of an entity, the index never holds caller-owned instances
+     */
+    public GeoIndexingCrudService(CrudService<T> delegate, GeoGridIndex<T> index, Function<T, Long> idOf,
+                                  Function<T, Double> latitudeOf, Function<T, Double> longitudeOf, UnaryOperator<T> copyOf) {
+        this.delegate = delegate;
+        this.index = index;
+        this.idOf = idOf;
+        this.latitudeOf = latitudeOf;
+        this.longitudeOf = longitudeOf;
+        this.copyOf = copyOf;
+    }
+
+    /**
+     * Reloads the whole index from the DB, page by page.
+     */
+    public void rebuild() {
+        index.clear();
+        Long after = null;
+        List<T> page;
+        do {
+            page = delegate.readPage(Collections.emptyMap(), after, REBUILD_PAGE_SIZE);
+            for (T entity : page) {
+                index(entity);
+            }
+            if (!page.isEmpty()) {
+                after = idOf.apply(page.get(page.size() - 1));
+            }
+        } while (page.size() == REBUILD_PAGE_SIZE);
+    }
+
+    public GeoGridIndex<T> getIndex() {
+        return index;
+    }
+
+    @Override
+    public T save(T entity) {
+        T saved = delegate.save(entity);
+        index(saved);
+        return saved;
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        List<BatchResult<T>> results = delegate.saveAll(entities);
+        for (BatchResult<T> result : results) {
+            if (result.succeeded()) {
+                index(result.getEntity());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        T patched = delegate.patch(id, changes, expectedVersion);
+        if (patched != null) {
+            index(patched);
+        }
+        return patched;
+    }
+
+    @Override
+    public T readOne(Long id) {
+        return delegate.readOne(id);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        return delegate.readMany(ids);
+    }
+
+    @Override
+    public List<T> readAll() {
+        return delegate.readAll();
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return delegate.readPage(filters, afterId, limit);
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        return delegate.count(filters);
+    }
+
+    @Override
+    public void delete(Long id) {
+        delegate.delete(id);
+        index.remove(id);
+    }
+
+    private void index(T entity) {
+        long id = idOf.apply(entity);
+        Double latitude = latitudeOf.apply(entity);
+        Double longitude = longitudeOf.apply(entity);
+        if (latitude == null || longitude == null) {
+            // an entity which lost its location must not be found by its old one
+            index.remove(id);
+        } else {
+            index.put(id, latitude, longitude, copyOf.apply(entity));
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package com.tymoshenko.controller.telemetry;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of camera heartbeats: fixed size binary records in memory-mapped segment files on local disk.
+ * <p>
+ * Record layout (big endian, {@value #RECORD_SIZE} bytes):
+ * <pre>
+ * deviceId (8) | timestamp millis (8) | status (4) | temperature, float (4) | CRC32 of the first 24 bytes (4)
+ * </pre>
+ * An append copies the record into the current segment and returns at once. Durability comes from group commit:
+ * a committer thread wakes up every commitIntervalMs, forces everything appended since its last round to disk with
+ * one msync per dirty segment and only then completes the futures of those appends. Under load one force covers
+ * thousands of heartbeats instead of one fsync/transaction each.
+ * <p>
+ * Segments are named after the sequence number of their first record and hold segmentRecords records.
+ * When a segment is full the next one is created, beyond maxSegments the oldest one is deleted.
+ * On startup the existing segments are scanned, the log continues after the last record with a valid CRC
+ * (a record torn by a crash is overwritten).
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class HeartbeatLog implements Closeable {
+
+    public static final int RECORD_SIZE = 28;
+
+    private static final Logger LOG = LoggerFactory.getLogger(HeartbeatLog.class);
+    private static final int PAYLOAD_SIZE = RECORD_SIZE - 4;
+    private static final String SEGMENT_PREFIX = "heartbeat-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Receives the records of {@link #replay(RecordConsumer)}.
+     */
+    public interface RecordConsumer {
+        void accept(long deviceId, long timestamp, int status, float temperature);
+    }
+
+    private final Path directory;
+    private final int segmentRecords;
+    private final int maxSegments;
+    private final long commitIntervalNanos;
+    private final Thread committer;
+
+    // guarded by this
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final List<Segment> unforcedFullSegments = new ArrayList<>();
+    private final byte[] scratch = new byte[RECORD_SIZE];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    private final CRC32 crc = new CRC32();
+    private List<CompletableFuture<Void>> uncommitted = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * Opens the log in the given directory, creating it if needed, and starts the committer thread.
+     *
+     * @param directory        where the segment files are kept
+     * @param segmentRecords   records per segment file
+     * @param maxSegments      number of segment files kept, at least 2
+     * @param commitIntervalMs how long the committer waits for more appends to join a group commit
+     */
+    public HeartbeatLog(Path directory, int segmentRecords, int maxSegments, long commitIntervalMs) throws IOException {
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("maxSegments must be at least 2");
+        }
+        this.directory = directory;
+        this.segmentRecords = segmentRecords;
+        this.maxSegments = maxSegments;
+        this.commitIntervalNanos = TimeUnit.MILLISECONDS.toNanos(commitIntervalMs);
+
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // zero padded sequence numbers, so the names sort like the segments
+        files.sort(null);
+        for (Path file : files) {
+            Segment segment = new Segment(file, firstSequenceOf(file));
+            segment.recover();
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(segmentPath(0L), 0L));
+        }
+
+        committer = new Thread(this::commitLoop, "heartbeat-log-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends a heartbeat. Thread safe.
+     *
+     * @return a future completed once the record is on disk, failed if it could not be forced there
+     */
+    public CompletableFuture<Void> append(long deviceId, long timestamp, int status, float temperature) {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        synchronized (this) {
+            if (closed) {
+                committed.completeExceptionally(new IllegalStateException("Heartbeat log is closed"));
+                return committed;
+            }
+            Segment segment = segments.getLast();
+            try {
+                if (segment.isFull()) {
+                    segment = roll();
+                }
+            } catch (IOException e) {
+                committed.completeExceptionally(e);
+                return committed;
+            }
+            scratchBuffer.clear();
+            scratchBuffer.putLong(deviceId).putLong(timestamp).putInt(status).putFloat(temperature);
+            crc.reset();
+            crc.update(scratch, 0, PAYLOAD_SIZE);
+            scratchBuffer.putInt((int) crc.getValue());
+            segment.append(scratch);
+
+            uncommitted.add(committed);
+            if (uncommitted.size() == 1) {
+                notifyAll();
+            }
+        }
+        return committed;
+    }
+
+    /**
+     * Reads every valid record, oldest first. Meant for startup, before heartbeats are appended.
+     */
+    public synchronized void replay(RecordConsumer consumer) {
+        for (Segment segment : segments) {
+            segment.replay(consumer);
+        }
+    }
+
+    /**
+     * @return number of records in the log, including the ones of deleted segments
+     */
+    public synchronized long nextSequence() {
+        Segment last = segments.getLast();
+        return last.firstSequence + last.records;
+    }
+
+    /**
+     * Commits what was appended so far and stops the committer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+        }
+    }
+
+    // guarded by this
+    private Segment roll() throws IOException {
+        Segment full = segments.getLast();
+        unforcedFullSegments.add(full);
+        Segment next = new Segment(segmentPath(full.firstSequence + full.records), full.firstSequence + full.records);
+        segments.add(next);
+        while (segments.size() > maxSegments) {
+            Segment oldest = segments.removeFirst();
+            // still waiting for its last force, it goes when the committer is done with it
+            if (!unforcedFullSegments.contains(oldest)) {
+                oldest.delete();
+            }
+        }
+        return next;
+    }
+
+    private void commitLoop() {
+        while (true) {
+            synchronized (this) {
+                while (uncommitted.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (uncommitted.isEmpty()) {
+                    return;
+                }
+            }
+            // give concurrent appends the chance to join this group commit
+            if (commitIntervalNanos > 0) {
+                LockSupport.parkNanos(commitIntervalNanos);
+            }
+
+            List<CompletableFuture<Void>> group;
+            List<Segment> dirty;
+            synchronized (this) {
+                group = uncommitted;
+                uncommitted = new ArrayList<>();
+                dirty = new ArrayList<>(unforcedFullSegments);
+                unforcedFullSegments.clear();
+                dirty.add(segments.getLast());
+            }
+            // any failure fails this group only, the committer must keep running for the next ones
+            try {
+                for (Segment segment : dirty) {
+                    segment.force();
+                }
+                for (CompletableFuture<Void> committed : group) {
+                    committed.complete(null);
+                }
+            } catch (Throwable e) {
+                Throwable cause = e instanceof UncheckedIOException ? e.getCause() : e;
+                LOG.error("Could not force heartbeat segments to disk", cause);
+                for (CompletableFuture<Void> committed : group) {
+                    committed.completeExceptionally(cause);
+                }
+            }
+            synchronized (this) {
+                // full segments which were rotated out while they were forced
+                for (Segment segment : dirty) {
+                    if (segment != segments.getLast() && !segments.contains(segment)) {
+                        segment.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private static long firstSequenceOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * One mapped segment file. Appends happen under the lock of the log, force may run concurrently with them.
+     */
+    private final class Segment {
+
+        private final Path file;
+        private final long firstSequence;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int records;
+
+        private Segment(Path file, long firstSequence) throws IOException {
+            this.file = file;
+            this.firstSequence = firstSequence;
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        }
+
+        private boolean isFull() {
+            return records == segmentRecords;
+        }
+
+        private void append(byte[] record) {
+            buffer.position(records * RECORD_SIZE);
+            buffer.put(record, 0, RECORD_SIZE);
+            records++;
+        }
+
+        private void force() {
+            buffer.force();
+        }
+
+        // counts the valid records, the first record with a bad CRC ends the segment
+        private void recover() {
+            ByteBuffer view = buffer.duplicate();
+            CRC32 check = new CRC32();
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            records = 0;
+            while (records < segmentRecords) {
+                view.position(records * RECORD_SIZE);
+                view.get(payload);
+                check.reset();
+                check.update(payload, 0, PAYLOAD_SIZE);
+                if (view.getInt() != (int) check.getValue()) {
+                    break;
+                }
+                records++;
+            }
+        }
+
+        private void replay(RecordConsumer consumer) {
+            ByteBuffer view = buffer.duplicate();
+            for (int i = 0; i < records; i++) {
+                view.position(i * RECORD_SIZE);
+                consumer.accept(view.getLong(), view.getLong(), view.getInt(), view.getFloat());
+            }
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+
+        // a segment which can not be deleted is left behind, neither an append nor the committer may fail on it
+        private void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (Throwable e) {
+                LOG.warn("Could not delete heartbeat segment " + file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.tymoshenko.controller.telemetry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery, rollover and group commit of {@link HeartbeatLog}, on segment files in a temporary directory.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class HeartbeatLogTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("heartbeat-log-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(files::add);
+        }
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void replaysRecordsAfterRestart() throws Exception {
+        try (HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1)) {
+            for (int i = 0; i < 10; i++) {
+                log.append(i, 1000L + i, i % 3, 20.5f + i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+
+        try (HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1)) {
+            List<Record> records = replay(log);
+            assertEquals(10, records.size());
+            for (int i = 0; i < 10; i++) {
+                Record record = records.get(i);
+                assertEquals(i, record.deviceId);
+                assertEquals(1000L + i, record.timestamp);
+                assertEquals(i % 3, record.status);
+                assertEquals(20.5f + i, record.temperature, 0.0f);
+            }
+            // the log continues after the replayed records
+            assertEquals(10L, log.nextSequence());
+            log.append(10, 1010L, 0, 0.0f).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            assertEquals(11L, log.nextSequence());
+        }
+    }
+
+    @Test
+    public void overwritesTornTailOnRecovery() throws Exception {
+        try (HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1)) {
+            for (int i = 0; i < 3; i++) {
+                log.append(i, 1000L + i, 0, 0.0f).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+        // a crash in the middle of the third record: its payload no longer matches its CRC
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xFF}), 2L * HeartbeatLog.RECORD_SIZE + 10);
+        }
+
+        try (HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1)) {
+            assertEquals(2, replay(log).size());
+            assertEquals(2L, log.nextSequence());
+            log.append(42, 2000L, 1, 0.0f).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        try (HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1)) {
+            List<Record> records = replay(log);
+            assertEquals(3, records.size());
+            assertEquals(42L, records.get(2).deviceId);
+        }
+    }
+
+    @Test
+    public void rollsOverAndDeletesOldestSegments() throws Exception {
+        try (HeartbeatLog log = new HeartbeatLog(directory, 2, 2, 1)) {
+            for (int i = 0; i < 5; i++) {
+                log.append(i, 1000L + i, 0, 0.0f).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            assertEquals(5L, log.nextSequence());
+        }
+
+        // records 0-1 went with the oldest segment, 2-3 and 4 are kept
+        List<Path> segments = segments();
+        assertEquals(2, segments.size());
+        assertTrue(segments.get(0).getFileName().toString().endsWith(String.format("%020d.log", 2)));
+        assertTrue(segments.get(1).getFileName().toString().endsWith(String.format("%020d.log", 4)));
+
+        try (HeartbeatLog log = new HeartbeatLog(directory, 2, 2, 1)) {
+            List<Record> records = replay(log);
+            assertEquals(3, records.size());
+            assertEquals(2L, records.get(0).deviceId);
+            assertEquals(4L, records.get(2).deviceId);
+            assertEquals(5L, log.nextSequence());
+        }
+    }
+
+    @Test
+    public void concurrentAppendsAreCommittedInGroups() throws Exception {
+        final int threads = 8;
+        final int appendsPerThread = 2000;
+        List<CompletableFuture<Void>> committed = new ArrayList<>();
+        try (HeartbeatLog log = new HeartbeatLog(directory, 1000, 100, 5)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Thread> appenders = new ArrayList<>();
+            List<List<CompletableFuture<Void>>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final long deviceId = t;
+                final List<CompletableFuture<Void>> own = new ArrayList<>(appendsPerThread);
+                futures.add(own);
+                Thread appender = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int i = 0; i < appendsPerThread; i++) {
+                        own.add(log.append(deviceId, i, 0, 0.0f));
+                    }
+                });
+                appender.start();
+                appenders.add(appender);
+            }
+            start.countDown();
+            for (Thread appender : appenders) {
+                appender.join();
+            }
+            for (List<CompletableFuture<Void>> own : futures) {
+                committed.addAll(own);
+            }
+            CompletableFuture.allOf(committed.toArray(new CompletableFuture<?>[0])).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        for (CompletableFuture<Void> future : committed) {
+            assertFalse(future.isCompletedExceptionally());
+        }
+
+        try (HeartbeatLog log = new HeartbeatLog(directory, 1000, 100, 5)) {
+            List<Record> records = replay(log);
+            assertEquals(threads * appendsPerThread, records.size());
+            // the records of one appender keep their order
+            long[] nextTimestamp = new long[threads];
+            for (Record record : records) {
+                assertEquals(nextTimestamp[(int) record.deviceId]++, record.timestamp);
+            }
+        }
+    }
+
+    @Test
+    public void failsAppendsAfterClose() throws Exception {
+        HeartbeatLog log = new HeartbeatLog(directory, 100, 4, 1);
+        log.close();
+        assertTrue(log.append(1, 1000L, 0, 0.0f).isCompletedExceptionally());
+    }
+
+    private List<Path> segments() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "heartbeat-*.log")) {
+            stream.forEach(files::add);
+        }
+        files.sort(Comparator.naturalOrder());
+        return files;
+    }
+
+    private static List<Record> replay(HeartbeatLog log) {
+        List<Record> records = new ArrayList<>();
+        log.replay((deviceId, timestamp, status, temperature) -> records.add(new Record(deviceId, timestamp, status, temperature)));
+        return records;
+    }
+
+    private static final class Record {
+
+        private final long deviceId;
+        private final long timestamp;
+        private final int status;
+        private final float temperature;
+
+        private Record(long deviceId, long timestamp, int status, float temperature) {
+            this.deviceId = deviceId;
+            this.timestamp = timestamp;
+            this.status = status;
+            this.temperature = temperature;
+        }
+    }
+}
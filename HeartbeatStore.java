@@ -0,0 +1,78 @@
+package com.tymoshenko.controller.telemetry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongPredicate;
+
+/**
+ * Ingestion path of camera heartbeats, next to the CRUD path: a heartbeat is checked against the camera registry,
+ * appended to the {@link HeartbeatLog} and becomes the latest status of its camera in the {@link DeviceStatusTable}.
+ * No DB transaction is involved, durability comes from the group commit of the log.
+ * <p>
+ * The table is rebuilt from the log on startup, see {@link #recover()}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class HeartbeatStore implements Closeable {
+
+    private final HeartbeatLog log;
+    private final DeviceStatusTable table;
+    private final LongPredicate registry;
+    private final boolean registryBlocking;
+
+    /**
+     * @param log              where heartbeats are persisted
+     * @param table            latest status per camera
+     * @param registry         tells whether a camera with the given id exists
+     * @param registryBlocking true if the registry may read the DB, then it must not be asked on an event loop
+     */
+    public HeartbeatStore(HeartbeatLog log, DeviceStatusTable table, LongPredicate registry, boolean registryBlocking) {
+        this.log = log;
+        this.table = table;
+        this.registry = registry;
+        this.registryBlocking = registryBlocking;
+    }
+
+    /**
+     * Loads the latest status of every camera from the log.
+     */
+    public void recover() {
+        log.replay(table::update);
+    }
+
+    public boolean isRegistered(long deviceId) {
+        return deviceId != 0 && registry.test(deviceId);
+    }
+
+    public boolean isRegistryBlocking() {
+        return registryBlocking;
+    }
+
+    /**
+     * Records a heartbeat of a registered camera. It is the latest status right away, the returned future
+     * completes once it is on disk. Never blocks.
+     */
+    public CompletableFuture<Void> record(long deviceId, long timestamp, int status, float temperature) {
+        CompletableFuture<Void> committed = log.append(deviceId, timestamp, status, temperature);
+        table.update(deviceId, timestamp, status, temperature);
+        return committed;
+    }
+
+    /**
+     * @return the latest heartbeat of the camera, null if it never sent one
+     */
+    public DeviceStatusTable.Status latest(long deviceId) {
+        return table.get(deviceId);
+    }
+
+    public int deviceCount() {
+        return table.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
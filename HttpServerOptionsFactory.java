@@ -0,0 +1,109 @@
+package com.tymoshenko.controller.verticle;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Creates the options of the HTTP server of {@link HttpServerVerticle} from the application configuration.
+ * <p>
+ * Covers response compression (gzip/deflate, negotiated with Accept-Encoding), HTTP/2 over cleartext (h2c, both
+ * with the HTTP/1.1 upgrade and with prior knowledge) next to HTTP/1.1, the idle timeout and TCP options.
+ * Responses smaller than "http.compression.min-size" are sent uncompressed, see {@link #compressionThreshold(JsonObject)}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class HttpServerOptionsFactory {
+
+    // Configuration keys (my-application-conf.json)
+    public static final String CONF_COMPRESSION_ENABLED = "http.compression.enabled";
+    public static final String CONF_COMPRESSION_LEVEL = "http.compression.level";
+    public static final String CONF_COMPRESSION_MIN_SIZE = "http.compression.min-size";
+    public static final String CONF_HTTP2_ENABLED = "http.http2.enabled";
+    public static final String CONF_HTTP2_MAX_CONCURRENT_STREAMS = "http.http2.max-concurrent-streams";
+    public static final String CONF_IDLE_TIMEOUT_SECONDS = "http.idle-timeout-seconds";
+    public static final String CONF_TCP_NO_DELAY = "http.tcp.no-delay";
+    public static final String CONF_TCP_KEEP_ALIVE = "http.tcp.keep-alive";
+    public static final String CONF_ACCEPT_BACKLOG = "http.tcp.accept-backlog";
+    public static final String CONF_RECEIVE_BUFFER_SIZE = "http.tcp.receive-buffer-size";
+    public static final String CONF_SEND_BUFFER_SIZE = "http.tcp.send-buffer-size";
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+    public static final int DEFAULT_COMPRESSION_MIN_SIZE = 1024;
+    public static final long DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS = 100;
+    public static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 60;
+    public static final int DEFAULT_ACCEPT_BACKLOG = 1024;
+
+    private HttpServerOptionsFactory() {
+    }
+
+    /**
+     * @param config the verticle configuration
+     * @return options for vertx.createHttpServer
+     */
+    public static HttpServerOptions create(JsonObject config) {
+        HttpServerOptions options = new HttpServerOptions()
+                .setCompressionSupported(config.getBoolean(CONF_COMPRESSION_ENABLED, true))
+                .setCompressionLevel(config.getInteger(CONF_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL))
+                .setIdleTimeout(config.getInteger(CONF_IDLE_TIMEOUT_SECONDS, DEFAULT_IDLE_TIMEOUT_SECONDS))
+                .setTcpNoDelay(config.getBoolean(CONF_TCP_NO_DELAY, true))
+                .setTcpKeepAlive(config.getBoolean(CONF_TCP_KEEP_ALIVE, true))
+                .setAcceptBacklog(config.getInteger(CONF_ACCEPT_BACKLOG, DEFAULT_ACCEPT_BACKLOG));
+
+        // -1 keeps the OS default
+        int receiveBufferSize = config.getInteger(CONF_RECEIVE_BUFFER_SIZE, -1);
+        if (receiveBufferSize > 0) {
+            options.setReceiveBufferSize(receiveBufferSize);
+        }
+        int sendBufferSize = config.getInteger(CONF_SEND_BUFFER_SIZE, -1);
+        if (sendBufferSize > 0) {
+            options.setSendBufferSize(sendBufferSize);
+        }
+
+        if (config.getBoolean(CONF_HTTP2_ENABLED, true)) {
+            // h2c: no TLS, so no ALPN; a plain-text server accepts the HTTP/1.1 upgrade and the HTTP/2 preface
+            options.setAlpnVersions(Arrays.asList(HttpVersion.HTTP_2, HttpVersion.HTTP_1_1))
+                    .setInitialSettings(new Http2Settings().setMaxConcurrentStreams(
+                            config.getLong(CONF_HTTP2_MAX_CONCURRENT_STREAMS, DEFAULT_HTTP2_MAX_CONCURRENT_STREAMS)));
+        } else {
+            options.setAlpnVersions(Collections.singletonList(HttpVersion.HTTP_1_1));
+        }
+        return options;
+    }
+
+    /**
+     * Vert.x compresses every response the client accepts compressed. For small bodies the compression headers and
+     * CPU time cost more than they save, so responses with a Content-Length below "http.compression.min-size" are
+     * marked "content-encoding: identity", which makes the server send them as they are.
+     * Chunked responses (streams, bulk results) have no length up front and are always compressed.
+     *
+     * @param config the verticle configuration
+     * @return a route handler to be registered before every other handler, null if compression is disabled
+     */
+    public static Handler<RoutingContext> compressionThreshold(JsonObject config) {
+        if (!config.getBoolean(CONF_COMPRESSION_ENABLED, true)) {
+            return null;
+        }
+        int minSize = config.getInteger(CONF_COMPRESSION_MIN_SIZE, DEFAULT_COMPRESSION_MIN_SIZE);
+        return routingContext -> {
+            HttpServerResponse response = routingContext.response();
+            routingContext.addHeadersEndHandler(v -> {
+                String contentLength = response.headers().get(HttpHeaders.CONTENT_LENGTH);
+                if (contentLength != null && !response.headers().contains(HttpHeaders.CONTENT_ENCODING)
+                        && Long.parseLong(contentLength) < minSize) {
+                    response.putHeader(HttpHeaders.CONTENT_ENCODING, HttpHeaders.IDENTITY);
+                }
+            });
+            routingContext.next();
+        };
+    }
+}
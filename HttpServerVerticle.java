@@ -1,22 +1,51 @@
 package com.tymoshenko.controller.verticle;
 
+import com.tymoshenko.controller.metrics.StartupTimings;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
 import org.springframework.context.ApplicationContext;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * The Verticle which runs HttpServer for our application.
+ * <p>
+ * The server can listen before the application context is ready: until then every request is answered with 503,
+ * except for the health checks. {@value #HEALTH_LIVE_PATH} answers 200 as soon as the server listens,
+ * {@value #HEALTH_READY_PATH} once the REST routes are served.
  *
  * @author Yakiv Tymoshenko
  * @since 15.03.2016
  */
 public class HttpServerVerticle extends AbstractVerticle {
 
-    private final WhiskyCrudRestService _smartcameraCrudRestService;
+    public static final String HEALTH_LIVE_PATH = "/health/live";
+    public static final String HEALTH_READY_PATH = "/health/ready";
+
+    public static final int STATUS_CODE_OK = 200;
+    public static final int STATUS_CODE_SERVICE_UNAVAILABLE = 503;
+
+    private final CompletableFuture<? extends ApplicationContext> applicationContext;
+
+    // null until the application context is ready, only accessed on the event loop of this instance
+    private Router router;
+    private boolean listening;
+    private boolean firstRequestServed;
 
     public HttpServerVerticle(final ApplicationContext applicationContext) {
-        this._SmartCameraCrudRestService = (SmartCameraCrudRestService) applicationContext.getBean("smartcameraCrudRestService");
+        this(CompletableFuture.completedFuture(applicationContext));
+    }
+
+    /**
+     * @param applicationContext completed when the application context is ready, the server listens before
+     */
+    public HttpServerVerticle(final CompletableFuture<? extends ApplicationContext> applicationContext) {
+        this.applicationContext = applicationContext;
     }
 
     /**
@@ -27,27 +56,77 @@ public class HttpServerVerticle extends AbstractVerticle {
     @Override
     public void start(Future<Void> future) throws Exception {
         super.start();
+        if (applicationContext.isDone()) {
+            // fails the start if the application context could not be created
+            router = createRouter(applicationContext.join());
+        } else {
+            Context context = vertx.getOrCreateContext();
+            applicationContext.thenAccept(ready -> context.runOnContext(v -> {
+                router = createRouter(ready);
+                markReady();
+            }));
+        }
         launchHttpServer(future);
     }
 
-    private void launchHttpServer(Future<Void> fut) {
-        Router httpRequestRouter = _smartcameraCrudRestService.createHttpRequestRouter(vertx);
+    private Router createRouter(ApplicationContext ready) {
+        Router httpRequestRouter = ready.getBean(SmartCameraCrudRestService.class).createHttpRequestRouter(vertx, config());
+        Handler<RoutingContext> compressionThreshold = HttpServerOptionsFactory.compressionThreshold(config());
+        if (compressionThreshold != null) {
+            // must see every response, so it goes before the routes of the REST service
+            httpRequestRouter.route().order(-1).handler(compressionThreshold);
+        }
+        return httpRequestRouter;
+    }
 
+    private void launchHttpServer(Future<Void> fut) {
         vertx
-                .createHttpServer()
+                // compression, HTTP/2 (h2c), idle timeout and TCP options from my-application-conf.json
+                .createHttpServer(HttpServerOptionsFactory.create(config()))
                 // Register REST (HTTP) request handler
-                .requestHandler(httpRequestRouter::accept)
+                .requestHandler(this::handle)
                 .listen(
                         // Retrieve the port from the configuration,
                         // default to 8080.
                         config().getInteger("http.port", 8080),
                         result -> {
                             if (result.succeeded()) {
+                                listening = true;
+                                StartupTimings.mark(StartupTimings.LISTENING);
+                                markReady();
                                 fut.complete();
                             } else {
+                                // fails the whole deployment, see Application
                                 fut.fail(result.cause());
                             }
                         }
                 );
     }
+
+    private void handle(HttpServerRequest request) {
+        String path = request.path();
+        if (HEALTH_LIVE_PATH.equals(path)) {
+            request.response().setStatusCode(STATUS_CODE_OK).end();
+        } else if (HEALTH_READY_PATH.equals(path)) {
+            request.response().setStatusCode(router != null ? STATUS_CODE_OK : STATUS_CODE_SERVICE_UNAVAILABLE).end();
+        } else if (router == null) {
+            request.response()
+                    .setStatusCode(STATUS_CODE_SERVICE_UNAVAILABLE)
+                    .putHeader(AdmissionControl.RETRY_AFTER, "1")
+                    .end("Starting, try again later.");
+        } else {
+            if (!firstRequestServed) {
+                firstRequestServed = true;
+                StartupTimings.mark(StartupTimings.FIRST_REQUEST);
+            }
+            router.accept(request);
+        }
+    }
+
+    // ready once both listening and routing, whichever comes last
+    private void markReady() {
+        if (listening && router != null && StartupTimings.mark(StartupTimings.READY)) {
+            StartupTimings.log();
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,599 @@
+package com.tymoshenko.controller.repository;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.zip.CRC32;
+
+/**
+ * {@link CrudService} which keeps every entity in memory and persists writes to a local write-ahead log
+ * instead of a DB.
+ * <p>
+ * Reads never touch the disk: entities live in a concurrent map ordered by id, so readOne is a map lookup and
+ * readPage a range scan. Writes are serialized: each one is appended to the log ("wal-&lt;generation&gt;.log") and
+ * applied to the map under one lock, then the log is forced to disk outside of it. Concurrent writers share
+ * the force (group commit), a write returns once its record is durable.
+ * <p>
+ * Every snapshotIntervalSeconds, if anything was written, the log is rolled over to the next generation and the
+ * map is written to "snapshot-&lt;generation&gt;.snap" in a compact binary form; older logs and snapshots are
+ * deleted afterwards. On startup the newest snapshot is loaded and the logs from its generation on are replayed,
+ * a record torn by a crash ends the replay. close() takes a final snapshot, so a clean restart replays nothing.
+ * <p>
+ * Semantics follow SmartCameraCrudService: saving an entity without a known id creates it with a new id,
+ * saving or patching an entity with an outdated version throws OptimisticLockingFailureException,
+ * deleting an unknown id throws EmptyResultDataAccessException. Entities are copied on the way in and out.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class InMemoryCrudService<T> implements CrudService<T>, Closeable {
+
+    /**
+     * Binary form of an entity in the log and in snapshots. The id is stored apart from it.
+     */
+    public interface Codec<T> {
+
+        void write(T entity, DataOutput out) throws IOException;
+
+        T read(long id, DataInput in) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemoryCrudService.class);
+
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    // length and CRC32 of the payload
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final String WAL_PREFIX = "wal-";
+    private static final String WAL_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final Function<T, Long> idOf;
+    private final BiFunction<Long, T, T> withId;
+    private final ToLongFunction<T> versionOf;
+    private final BiFunction<T, Map<String, Object>, T> patcher;
+    private final Map<String, Function<T, String>> attributes;
+    private final Codec<T> codec;
+    private final boolean syncWrites;
+    private final ScheduledExecutorService snapshots;
+
+    private final ConcurrentSkipListMap<Long, T> entities = new ConcurrentSkipListMap<>();
+
+    private final Object writeLock = new Object();
+    // guarded by writeLock
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+    private FileChannel wal;
+    private long walGeneration;
+    private long walPosition;
+    private long lastId;
+    private long writesSinceSnapshot;
+
+    private final Object syncLock = new Object();
+    // guarded by syncLock
+    private long syncedGeneration = -1;
+    private long syncedPosition;
+
+    /**
+     * Loads the newest snapshot and replays the log written after it.
+     *
+     * @param directory               where the log and snapshots are kept
+     * @param idOf                    extracts the id of an entity, 0 for an entity which was not saved yet
+     * @param withId                  creates a detached copy of an entity with the given id
+     * @param versionOf               extracts the version of an entity
+     * @param patcher                 creates a copy of an entity with changes applied and the version incremented
+     * @param attributes              filter name to attribute extractor, for every attribute readPage/count can filter on
+     * @param codec                   binary form of an entity
+     * @param syncWrites              false to leave flushing the log to the OS, writes are then lost on a power failure
+     * @param snapshotIntervalSeconds how often a snapshot is taken, 0 for snapshots on close only
+     */
+    public InMemoryCrudService(Path directory, Function<T, Long> idOf, BiFunction<Long, T, T> withId,
+                               ToLongFunction<T> versionOf, BiFunction<T, Map<String, Object>, T> patcher,
+                               Map<String, Function<T, String>> attributes, Codec<T> codec,
+                               boolean syncWrites, long snapshotIntervalSeconds) throws IOException {
+        this.directory = directory;
+        this.idOf = idOf;
+        this.withId = withId;
+        this.versionOf = versionOf;
+        this.patcher = patcher;
+        this.attributes = attributes;
+        this.codec = codec;
+        this.syncWrites = syncWrites;
+
+        Files.createDirectories(directory);
+        recover();
+
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "in-memory-crud-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (snapshotIntervalSeconds > 0) {
+            snapshots.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException | RuntimeException e) {
+                    // the log keeps growing, the next attempt may succeed
+                    LOG.error("Snapshot failed: " + e.getLocalizedMessage(), e);
+                }
+            }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    public T save(T entity) {
+        T stored;
+        long generation;
+        long end;
+        synchronized (writeLock) {
+            stored = store(entity);
+            generation = walGeneration;
+            end = walPosition;
+        }
+        sync(generation, end);
+        return copy(stored);
+    }
+
+    /**
+     * All entities are logged and applied under one lock hold and share one force.
+     * An entity which can not be saved (outdated version, log write failure) fails alone.
+     */
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        List<BatchResult<T>> results = new ArrayList<>(entities.size());
+        try {
+            synchronized (writeLock) {
+                for (T entity : entities) {
+                    try {
+                        results.add(BatchResult.succeeded(store(entity)));
+                    } catch (RuntimeException e) {
+                        results.add(BatchResult.failed(entity, e));
+                    }
+                }
+            }
+        } finally {
+            // whatever was applied is visible to readers already, it must be forced even if the loop failed
+            long generation;
+            long end;
+            synchronized (writeLock) {
+                generation = walGeneration;
+                end = walPosition;
+            }
+            sync(generation, end);
+        }
+        for (int i = 0; i < results.size(); i++) {
+            if (results.get(i).succeeded()) {
+                results.set(i, BatchResult.succeeded(copy(results.get(i).getEntity())));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        T stored;
+        long generation;
+        long end;
+        synchronized (writeLock) {
+            T current = entities.get(id);
+            if (current == null) {
+                return null;
+            }
+            checkVersion(id, current, expectedVersion);
+            stored = patcher.apply(current, changes);
+            append(PUT, id, stored);
+            entities.put(id, stored);
+            generation = walGeneration;
+            end = walPosition;
+        }
+        sync(generation, end);
+        return copy(stored);
+    }
+
+    @Override
+    public T readOne(Long id) {
+        T entity = entities.get(id);
+        return entity == null ? null : copy(entity);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        List<T> found = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            T entity = entities.get(id);
+            if (entity != null) {
+                found.add(copy(entity));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<T> readAll() {
+        List<T> all = new ArrayList<>(entities.size());
+        for (T entity : entities.values()) {
+            all.add(copy(entity));
+        }
+        return all;
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        checkFilters(filters);
+        Collection<T> candidates = afterId == null ? entities.values() : entities.tailMap(afterId, false).values();
+        List<T> page = new ArrayList<>(Math.min(limit, 1024));
+        for (T entity : candidates) {
+            if (page.size() == limit) {
+                break;
+            }
+            if (matches(entity, filters)) {
+                page.add(copy(entity));
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        checkFilters(filters);
+        if (filters.isEmpty()) {
+            return entities.size();
+        }
+        long count = 0;
+        for (T entity : entities.values()) {
+            if (matches(entity, filters)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void delete(Long id) {
+        if (id == null) {
+            throw new IllegalArgumentException("The given id must not be null!");
+        }
+        long generation;
+        long end;
+        synchronized (writeLock) {
+            if (!entities.containsKey(id)) {
+                throw new EmptyResultDataAccessException("No entity with id " + id + " exists!", 1);
+            }
+            append(DELETE, id, null);
+            entities.remove(id);
+            generation = walGeneration;
+            end = walPosition;
+        }
+        sync(generation, end);
+    }
+
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Writes the current state to a snapshot and deletes the logs it covers. Does nothing if nothing was written
+     * since the last snapshot. Writes are blocked only while the log is rolled over and the map is copied.
+     */
+    public void snapshot() throws IOException {
+        List<T> state;
+        long generation;
+        long nextId;
+        synchronized (writeLock) {
+            if (writesSinceSnapshot == 0) {
+                return;
+            }
+            generation = walGeneration + 1;
+            openWal(generation);
+            // stored entities are never mutated, copying the references is enough
+            state = new ArrayList<>(entities.values());
+            nextId = lastId;
+            writesSinceSnapshot = 0;
+        }
+
+        Path tmp = directory.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX + TMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tmp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 checksum = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            out.writeLong(nextId);
+            out.writeInt(state.size());
+            for (T entity : state) {
+                writeSnapshotEntry(entity, checksum, out);
+            }
+            out.writeLong(checksum.getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+
+        for (Map.Entry<Long, Path> file : list(WAL_PREFIX, WAL_SUFFIX).entrySet()) {
+            if (file.getKey() < generation) {
+                Files.deleteIfExists(file.getValue());
+            }
+        }
+        for (Map.Entry<Long, Path> file : list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).entrySet()) {
+            if (file.getKey() < generation) {
+                Files.deleteIfExists(file.getValue());
+            }
+        }
+    }
+
+    /**
+     * Takes a final snapshot, so the next start has no log to replay.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshots.shutdown();
+        try {
+            snapshots.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshot();
+        synchronized (writeLock) {
+            wal.force(false);
+            wal.close();
+        }
+    }
+
+    // under writeLock
+    private T store(T entity) {
+        Long given = idOf.apply(entity);
+        long id = given == null ? 0L : given;
+        T current = id == 0 ? null : entities.get(id);
+        T stored;
+        if (current == null) {
+            // like a JPA merge, an id which is not stored gets a new one
+            id = ++lastId;
+            stored = withId.apply(id, entity);
+        } else {
+            checkVersion(id, current, versionOf.applyAsLong(entity));
+            stored = patcher.apply(withId.apply(id, entity), Collections.emptyMap());
+        }
+        append(PUT, id, stored);
+        entities.put(id, stored);
+        return stored;
+    }
+
+    // under writeLock
+    private void append(byte type, long id, T entity) {
+        try {
+            recordBytes.reset();
+            recordOut.writeInt(0);
+            recordOut.writeInt(0);
+            recordOut.writeByte(type);
+            recordOut.writeLong(id);
+            if (entity != null) {
+                codec.write(entity, recordOut);
+            }
+            recordOut.flush();
+            ByteBuffer record = ByteBuffer.wrap(recordBytes.toByteArray());
+            int payloadLength = record.limit() - RECORD_HEADER_SIZE;
+            crc.reset();
+            crc.update(record.array(), RECORD_HEADER_SIZE, payloadLength);
+            record.putInt(0, payloadLength).putInt(4, (int) crc.getValue());
+            while (record.hasRemaining()) {
+                walPosition += wal.write(record, walPosition);
+            }
+            writesSinceSnapshot++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Forces the log up to the given position, unless a concurrent writer already did.
+     * One force covers every record appended before it started.
+     */
+    private void sync(long generation, long position) {
+        if (!syncWrites) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedGeneration > generation || (syncedGeneration == generation && syncedPosition >= position)) {
+                return;
+            }
+            FileChannel channel;
+            long currentGeneration;
+            long currentPosition;
+            synchronized (writeLock) {
+                channel = wal;
+                currentGeneration = walGeneration;
+                currentPosition = walPosition;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // rolled over in the meantime, the old log was forced before it was closed
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            syncedGeneration = currentGeneration;
+            syncedPosition = currentPosition;
+        }
+    }
+
+    // under writeLock, or during recovery
+    private void openWal(long generation) throws IOException {
+        if (wal != null) {
+            wal.force(false);
+            wal.close();
+        }
+        wal = FileChannel.open(directory.resolve(WAL_PREFIX + generation + WAL_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        walGeneration = generation;
+        walPosition = wal.size();
+    }
+
+    private void recover() throws IOException {
+        TreeMap<Long, Path> snapshotFiles = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long generation = 0;
+        if (!snapshotFiles.isEmpty()) {
+            generation = snapshotFiles.lastKey();
+            loadSnapshot(snapshotFiles.lastEntry().getValue());
+        }
+        for (Map.Entry<Long, Path> file : list(WAL_PREFIX, WAL_SUFFIX).entrySet()) {
+            if (file.getKey() >= generation) {
+                generation = file.getKey();
+                replay(file.getValue());
+            }
+        }
+        openWal(generation);
+    }
+
+    private void loadSnapshot(Path file) throws IOException {
+        CRC32 checksum = new CRC32();
+        try (InputStream raw = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            DataInputStream in = new DataInputStream(raw);
+            lastId = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long id = in.readLong();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                checksum.update(bytes);
+                entities.put(id, codec.read(id, new DataInputStream(new ByteArrayInputStream(bytes))));
+            }
+            if (in.readLong() != checksum.getValue()) {
+                throw new IOException("Corrupt snapshot " + file);
+            }
+        }
+    }
+
+    // applies the valid records of one log and cuts off a torn tail
+    private void replay(Path file) throws IOException {
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            CRC32 checksum = new CRC32();
+            while (true) {
+                byte[] payload;
+                int expectedCrc;
+                try {
+                    int length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (length <= 0) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                checksum.reset();
+                checksum.update(payload);
+                if ((int) checksum.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = record.readByte();
+                long id = record.readLong();
+                if (type == PUT) {
+                    entities.put(id, codec.read(id, record));
+                } else {
+                    entities.remove(id);
+                }
+                lastId = Math.max(lastId, id);
+                writesSinceSnapshot++;
+                valid += RECORD_HEADER_SIZE + payload.length;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (channel.size() > valid) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    // id, then the length prefixed entity, so an entity can be decoded from its own bytes
+    private void writeSnapshotEntry(T entity, CRC32 checksum, DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        codec.write(entity, new DataOutputStream(bytes));
+        byte[] encoded = bytes.toByteArray();
+        checksum.update(encoded);
+        out.writeLong(idOf.apply(entity));
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*" + suffix)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                files.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), file);
+            }
+        }
+        return files;
+    }
+
+    private void checkVersion(long id, T current, Long expectedVersion) {
+        if (expectedVersion != null && versionOf.applyAsLong(current) != expectedVersion) {
+            throw new OptimisticLockingFailureException("Entity " + id + " has version " + versionOf.applyAsLong(current)
+                    + ", expected " + expectedVersion);
+        }
+    }
+
+    private void checkFilters(Map<String, String> filters) {
+        for (String filter : filters.keySet()) {
+            if (!attributes.containsKey(filter)) {
+                throw new IllegalArgumentException("Can not filter on " + filter);
+            }
+        }
+    }
+
+    private boolean matches(T entity, Map<String, String> filters) {
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            if (!filter.getValue().equals(attributes.get(filter.getKey()).apply(entity))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private T copy(T entity) {
+        return withId.apply(idOf.apply(entity), entity);
+    }
+}
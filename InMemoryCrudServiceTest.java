@@ -0,0 +1,244 @@
+package com.tymoshenko.controller.repository;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recovery, log rollover and group commit of {@link InMemoryCrudService}, on files in a temporary directory.
+ * A service which is not closed stands for a crashed process: the next one has to replay its log.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class InMemoryCrudServiceTest {
+
+    private Path directory;
+    private final List<InMemoryCrudService<Item>> opened = new ArrayList<>();
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("in-memory-crud-test");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        for (InMemoryCrudService<Item> service : opened) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                // a later instance rolled its log over already
+            }
+        }
+        for (Path file : files()) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void replaysLogAfterCrash() throws Exception {
+        InMemoryCrudService<Item> crashed = open();
+        Item first = crashed.save(new Item(0, 0, "first"));
+        Item second = crashed.save(new Item(0, 0, "second"));
+        Item third = crashed.save(new Item(0, 0, "third"));
+        crashed.patch(second.id, Collections.singletonMap("name", "patched"), second.version);
+        crashed.delete(third.id);
+
+        InMemoryCrudService<Item> restarted = open();
+        assertEquals(2, restarted.size());
+        assertEquals("first", restarted.readOne(first.id).name);
+        assertEquals("patched", restarted.readOne(second.id).name);
+        assertEquals(second.version + 1, restarted.readOne(second.id).version);
+        assertNull(restarted.readOne(third.id));
+        // ids are not reused after a restart
+        assertTrue(restarted.save(new Item(0, 0, "fourth")).id > third.id);
+    }
+
+    @Test
+    public void cutsOffTornTailOnRecovery() throws Exception {
+        InMemoryCrudService<Item> crashed = open();
+        for (int i = 0; i < 3; i++) {
+            crashed.save(new Item(0, 0, "item-" + i));
+        }
+        // a crash in the middle of the next record: its header promises more bytes than were written
+        Path wal = directory.resolve("wal-0.log");
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer tornRecord = ByteBuffer.allocate(13).putInt(64).putInt(12345).put((byte) 1).putInt(7);
+            tornRecord.flip();
+            channel.write(tornRecord);
+        }
+
+        InMemoryCrudService<Item> restarted = open();
+        assertEquals(3, restarted.size());
+        Item added = restarted.save(new Item(0, 0, "after-recovery"));
+
+        // the record appended after recovery is not hidden behind the torn one
+        InMemoryCrudService<Item> again = open();
+        assertEquals(4, again.size());
+        assertEquals("after-recovery", again.readOne(added.id).name);
+    }
+
+    @Test
+    public void snapshotRollsLogOverAndDeletesOldFiles() throws Exception {
+        InMemoryCrudService<Item> service = open();
+        Item first = service.save(new Item(0, 0, "first"));
+        service.snapshot();
+        assertEquals(new HashSet<>(Arrays.asList("snapshot-1.snap", "wal-1.log")), fileNames());
+
+        Item second = service.save(new Item(0, 0, "second"));
+        service.snapshot();
+        assertEquals(new HashSet<>(Arrays.asList("snapshot-2.snap", "wal-2.log")), fileNames());
+
+        // nothing written since the last snapshot, nothing to do
+        service.snapshot();
+        assertEquals(new HashSet<>(Arrays.asList("snapshot-2.snap", "wal-2.log")), fileNames());
+
+        // snapshot plus the log written after it
+        Item third = service.save(new Item(0, 0, "third"));
+        InMemoryCrudService<Item> restarted = open();
+        assertEquals(3, restarted.size());
+        assertEquals("first", restarted.readOne(first.id).name);
+        assertEquals("second", restarted.readOne(second.id).name);
+        assertEquals("third", restarted.readOne(third.id).name);
+    }
+
+    @Test
+    public void concurrentWritersShareGroupCommit() throws Exception {
+        final int writers = 8;
+        final int savesPerWriter = 250;
+        InMemoryCrudService<Item> service = open();
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<List<Long>>> saved = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            saved.add(executor.submit(() -> {
+                start.await();
+                List<Long> ids = new ArrayList<>(savesPerWriter);
+                for (int i = 0; i < savesPerWriter; i++) {
+                    ids.add(service.save(new Item(0, 0, writer + "-" + i)).id);
+                }
+                return ids;
+            }));
+        }
+        start.countDown();
+        Set<Long> ids = new HashSet<>();
+        for (Future<List<Long>> writer : saved) {
+            ids.addAll(writer.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        assertEquals(writers * savesPerWriter, ids.size());
+
+        InMemoryCrudService<Item> restarted = open();
+        assertEquals(writers * savesPerWriter, restarted.size());
+        for (Long id : ids) {
+            assertFalse(restarted.readOne(id) == null);
+        }
+    }
+
+    @Test
+    public void saveAllFailsOnlyTheOutdatedEntityAndKeepsTheOthers() throws Exception {
+        InMemoryCrudService<Item> crashed = open();
+        Item stored = crashed.save(new Item(0, 0, "stored"));
+        crashed.patch(stored.id, Collections.singletonMap("name", "changed"), stored.version);
+
+        List<BatchResult<Item>> results = crashed.saveAll(Arrays.asList(
+                new Item(0, 0, "new-1"),
+                new Item(stored.id, stored.version, "outdated"),
+                new Item(0, 0, "new-2")));
+        assertTrue(results.get(0).succeeded());
+        assertFalse(results.get(1).succeeded());
+        assertTrue(results.get(1).getFailure() instanceof OptimisticLockingFailureException);
+        assertTrue(results.get(2).succeeded());
+
+        InMemoryCrudService<Item> restarted = open();
+        assertEquals(3, restarted.size());
+        assertEquals("changed", restarted.readOne(stored.id).name);
+        assertEquals("new-2", restarted.readOne(results.get(2).getEntity().id).name);
+    }
+
+    private InMemoryCrudService<Item> open() throws IOException {
+        InMemoryCrudService<Item> service = new InMemoryCrudService<>(directory,
+                item -> item.id, (id, item) -> new Item(id, item.version, item.name), item -> item.version,
+                InMemoryCrudServiceTest::patched, Collections.emptyMap(), new ItemCodec(), true, 0);
+        opened.add(service);
+        return service;
+    }
+
+    private static Item patched(Item item, Map<String, Object> changes) {
+        String name = changes.containsKey("name") ? (String) changes.get("name") : item.name;
+        return new Item(item.id, item.version + 1, name);
+    }
+
+    private List<Path> files() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+
+    private Set<String> fileNames() throws IOException {
+        Set<String> names = new HashSet<>();
+        for (Path file : files()) {
+            names.add(file.getFileName().toString());
+        }
+        return names;
+    }
+
+    private static final class Item {
+
+        private final long id;
+        private final long version;
+        private final String name;
+
+        private Item(long id, long version, String name) {
+            this.id = id;
+            this.version = version;
+            this.name = name;
+        }
+    }
+
+    private static final class ItemCodec implements InMemoryCrudService.Codec<Item> {
+
+        @Override
+        public void write(Item item, DataOutput out) throws IOException {
+            out.writeLong(item.version);
+            out.writeUTF(item.name);
+        }
+
+        @Override
+        public Item read(long id, DataInput in) throws IOException {
+            return new Item(id, in.readLong(), in.readUTF());
+        }
+    }
+}
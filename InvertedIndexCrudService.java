@@ -0,0 +1,216 @@
+
+package com.tymoshenko.controller.repository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps an in-memory inverted index (attribute value -> ids) of the entities written through another
+ * {@link CrudService} and answers {@link #count(Map)} from it, so filtered responses can report their size without
+ * a COUNT(*) over the DB.
+ * <p>
+ * Counting visits only the ids of the rarest filter value, the remaining filters are checked against the per-entity
+ * attribute values kept next to the index. Pages are still read from the DB, where they are an index range scan.
+ * Filters on attributes which are not indexed are delegated.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class InvertedIndexCrudService<T> implements CrudService<T> {
+
+    private static final int REBUILD_PAGE_SIZE = 10000;
+
+    private final CrudService<T> delegate;
+    private final Function<T, Long> idOf;
+    private final Map<String, Function<T, String>> attributes;
+    private final boolean enabled;
+
+    // attribute -> value -> ids
+    private final Map<String, Map<String, Set<Long>>> postings = new ConcurrentHashMap<>();
+    // id -> attribute -> value, needed to unindex an entity which is updated or deleted
+    private final Map<Long, Map<String, String>> valuesById = new ConcurrentHashMap<>();
+
+    /**
+     * @param delegate   the service which actually reads/writes the DB
+     * @param idOf       extracts the id of an entity
+     * @param attributes filter name to attribute extractor, for every attribute to index
+     * @param enabled    false to delegate everything and keep no index
+     */
+    public InvertedIndexCrudService(CrudService<T> delegate, Function<T, Long> idOf,
+                                    Map<String, Function<T, String>> attributes, boolean enabled) {
+        this.delegate = delegate;
+        this.idOf = idOf;
+        this.attributes = attributes;
+        this.enabled = enabled;
+        for (String attribute : attributes.keySet()) {
+            postings.put(attribute, new ConcurrentHashMap<>());
+        }
+    }
+
+    /**
+     * Reloads the whole index from the DB, page by page.
+     */
+    public synchronized void rebuild() {
+        if (!enabled) {
+            return;
+        }
+        valuesById.clear();
+        for (Map<String, Set<Long>> values : postings.values()) {
+            values.clear();
+        }
+        Long after = null;
+        List<T> page;
+        do {
+            page = delegate.readPage(Collections.emptyMap(), after, REBUILD_PAGE_SIZE);
+            for (T entity : page) {
+                index(entity);
+            }
+            if (!page.isEmpty()) {
+                after = idOf.apply(page.get(page.size() - 1));
+            }
+        } while (page.size() == REBUILD_PAGE_SIZE);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Tells whether an entity exists without reading the DB. Only meaningful if the index is enabled.
+     */
+    public boolean contains(long id) {
+        return valuesById.containsKey(id);
+    }
+
+    @Override
+    public T save(T entity) {
+        T saved = delegate.save(entity);
+        index(saved);
+        return saved;
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        List<BatchResult<T>> results = delegate.saveAll(entities);
+        for (BatchResult<T> result : results) {
+            if (result.succeeded()) {
+                index(result.getEntity());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        T patched = delegate.patch(id, changes, expectedVersion);
+        if (patched != null) {
+            index(patched);
+        }
+        return patched;
+    }
+
+    @Override
+    public T readOne(Long id) {
+        return delegate.readOne(id);
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        return delegate.readMany(ids);
+    }
+
+    @Override
+    public List<T> readAll() {
+        return delegate.readAll();
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return delegate.readPage(filters, afterId, limit);
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        if (!enabled || filters.isEmpty() || !attributes.keySet().containsAll(filters.keySet())) {
+            return delegate.count(filters);
+        }
+        // start from the rarest value
+        Set<Long> smallest = null;
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            Set<Long> ids = postings.get(filter.getKey()).get(filter.getValue());
+            if (ids == null) {
+                return 0;
+            }
+            if (smallest == null || ids.size() < smallest.size()) {
+                smallest = ids;
+            }
+        }
+        if (filters.size() == 1) {
+            return smallest.size();
+        }
+        long count = 0;
+        for (Long id : smallest) {
+            Map<String, String> values = valuesById.get(id);
+            if (values != null && matches(values, filters)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void delete(Long id) {
+        delegate.delete(id);
+        if (enabled) {
+            unindex(id);
+        }
+    }
+
+    private synchronized void index(T entity) {
+        if (!enabled) {
+            return;
+        }
+        long id = idOf.apply(entity);
+        unindex(id);
+        Map<String, String> values = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Function<T, String>> attribute : attributes.entrySet()) {
+            String value = attribute.getValue().apply(entity);
+            if (value != null) {
+                values.put(attribute.getKey(), value);
+                postings.get(attribute.getKey()).computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(id);
+            }
+        }
+        valuesById.put(id, values);
+    }
+
+    private synchronized void unindex(long id) {
+        Map<String, String> previous = valuesById.remove(id);
+        if (previous == null) {
+            return;
+        }
+        for (Map.Entry<String, String> value : previous.entrySet()) {
+            Map<String, Set<Long>> values = postings.get(value.getKey());
+            Set<Long> ids = values.get(value.getValue());
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    values.remove(value.getValue());
+                }
+            }
+        }
+    }
+
+    private static boolean matches(Map<String, String> values, Map<String, String> filters) {
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            if (!filter.getValue().equals(values.get(filter.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
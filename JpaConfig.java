@@ -0,0 +1,195 @@
+package com.tymoshenko.controller.context;
+
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.type.AnnotatedTypeMetadata;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.datasource.init.DatabasePopulator;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.orm.jpa.JpaTransactionManager;
+import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
+import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import javax.sql.DataSource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static com.tymoshenko.controller.context.SpringConfig.*;
+
+/**
+ * The database part of {@link SpringConfig}: pooled DataSource, EntityManagerFactory, transaction manager,
+ * the Spring Data repository and SmartCameraCrudService.
+ * <p>
+ * Only loaded for crud.engine=jpa (the default). With crud.engine=memory the cameras live in InMemoryCrudService
+ * and no connection pool is opened, no schema script is run and Hibernate is not bootstrapped.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@Configuration
+@Conditional(JpaConfig.JpaEngine.class)
+@Import(SmartCameraCrudService.class)
+@EnableJpaRepositories(basePackages = {"com.tymoshenko.controller.repository"})
+public class JpaConfig {
+
+    @Autowired
+    private Environment jdbcProperties;
+
+    /**
+     * Pooled DataSource: physical MySQL connections are opened once and reused by every JPA operation.
+     * Pool size, timeouts, leak detection and the driver side prepared statement cache are read from jdbc.properties.
+     * The schema script is run unless in production boot mode, where the schema is expected to be in place.
+     * <p>
+     * With read replicas configured (jdbc.replica.urls) every replica gets a pool of its own and read-only
+     * transactions are routed to them, see {@link ReplicaRoutingDataSource}.
+     */
+    @Bean(destroyMethod = "close")
+    @Autowired
+    @SuppressWarnings("unused")
+    public DataSource dataSource(DatabasePopulator populator, ConnectionPoolMetrics connectionPoolMetrics) {
+        final HikariConfig config = poolConfig(POOL_NAME, jdbcProperties.getProperty(JDBC_URL),
+                jdbcProperties.getProperty(JDBC_USERNAME), jdbcProperties.getProperty(JDBC_PASSWORD));
+        config.setMinimumIdle(jdbcProperties.getProperty(POOL_MIN_IDLE, Integer.class, 4));
+        config.setMaximumPoolSize(jdbcProperties.getProperty(POOL_MAX_SIZE, Integer.class, 16));
+        config.setMetricsTrackerFactory(connectionPoolMetrics);
+
+        final HikariDataSource dataSource = new HikariDataSource(config);
+        if (!isProductionBoot(jdbcProperties)) {
+            DatabasePopulatorUtils.execute(populator, dataSource);
+        }
+
+        String replicaUrls = jdbcProperties.getProperty(JDBC_REPLICA_URLS, "").trim();
+        if (replicaUrls.isEmpty()) {
+            return dataSource;
+        }
+        String replicaInitScript = jdbcProperties.getProperty(JDBC_REPLICA_INIT_SCRIPT, "").trim();
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        for (String replicaUrl : replicaUrls.split(",")) {
+            String name = REPLICA_POOL_NAME_PREFIX + (replicas.size() + 1);
+            HikariConfig replicaConfig = poolConfig(name, replicaUrl.trim(),
+                    jdbcProperties.getProperty(JDBC_REPLICA_USERNAME, jdbcProperties.getProperty(JDBC_USERNAME)),
+                    jdbcProperties.getProperty(JDBC_REPLICA_PASSWORD, jdbcProperties.getProperty(JDBC_PASSWORD)));
+            replicaConfig.setMinimumIdle(jdbcProperties.getProperty(POOL_MIN_IDLE, Integer.class, 4));
+            replicaConfig.setMaximumPoolSize(jdbcProperties.getProperty(JDBC_REPLICA_POOL_MAX_SIZE, Integer.class, 16));
+            HikariDataSource replica = new HikariDataSource(replicaConfig);
+            if (!replicaInitScript.isEmpty()) {
+                DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(new ClassPathResource(replicaInitScript)), replica);
+            }
+            replicas.put(name, replica);
+        }
+        return new ReplicaRoutingDataSource(dataSource, replicas,
+                jdbcProperties.getProperty(JDBC_REPLICA_MAX_LAG_MS, Long.class, 2000L),
+                jdbcProperties.getProperty(JDBC_REPLICA_CHECK_INTERVAL_MS, Long.class, 500L));
+    }
+
+    // settings shared by the pools of the primary and the replicas
+    private HikariConfig poolConfig(String poolName, String url, String username, String password) {
+        final HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        config.setDriverClassName(jdbcProperties.getProperty(JDBC_DRIVER_CLASS_NAME));
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+
+        config.setConnectionTimeout(jdbcProperties.getProperty(POOL_CONNECTION_TIMEOUT_MS, Long.class, 2000L));
+        config.setIdleTimeout(jdbcProperties.getProperty(POOL_IDLE_TIMEOUT_MS, Long.class, 600000L));
+        config.setMaxLifetime(jdbcProperties.getProperty(POOL_MAX_LIFETIME_MS, Long.class, 1800000L));
+        config.setLeakDetectionThreshold(jdbcProperties.getProperty(POOL_LEAK_DETECTION_THRESHOLD_MS, Long.class, 0L));
+
+        // MySQL Connector/J client side prepared statement cache
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", jdbcProperties.getProperty(POOL_STATEMENT_CACHE_SIZE, "250"));
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", jdbcProperties.getProperty(POOL_STATEMENT_CACHE_SQL_LIMIT, "2048"));
+        // sends a JDBC batch as one multi-row INSERT instead of one round trip per statement
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+
+        config.setRegisterMbeans(true);
+        return config;
+    }
+
+    /**
+     * In production boot mode the entities are listed instead of scanned for, the schema is not validated, SQL is
+     * not logged and the dialect is taken from jdbc.properties instead of being detected from JDBC metadata.
+     */
+    @Bean
+    @Autowired
+    @SuppressWarnings("unused")
+    public LocalContainerEntityManagerFactoryBean entityManagerFactory(final DataSource dataSource) {
+        final boolean production = isProductionBoot(jdbcProperties);
+        final LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
+        factory.setDataSource(dataSource);
+        HibernateJpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
+        vendorAdapter.setGenerateDdl(!production);
+        vendorAdapter.setShowSql(!production);
+        factory.setDataSource(dataSource);
+        factory.setJpaVendorAdapter(vendorAdapter);
+        Properties jpaProperties = new Properties();
+        if (production) {
+            // nothing to scan: the default persistence unit gets the entity classes added to it
+            factory.setPackagesToScan();
+            factory.setPersistenceUnitPostProcessors(unit -> {
+                for (Class<?> entityClass : ENTITY_CLASSES) {
+                    unit.addManagedClassName(entityClass.getName());
+                }
+            });
+            jpaProperties.put(HIBERNATE_ARCHIVE_AUTODETECTION, "none");
+            jpaProperties.put(HIBERNATE_HBM2DDL_AUTO, "none");
+            jpaProperties.put(HIBERNATE_SHOW_SQL, "false");
+            jpaProperties.put(HIBERNATE_DIALECT, jdbcProperties.getProperty(HIBERNATE_DIALECT));
+            jpaProperties.put(HIBERNATE_USE_JDBC_METADATA_DEFAULTS, "false");
+        } else {
+            factory.setPackagesToScan(PKG_TO_SCAN);
+            jpaProperties.put(HIBERNATE_HBM2DDL_AUTO, jdbcProperties.getProperty(HIBERNATE_HBM2DDL_AUTO));
+            jpaProperties.put(HIBERNATE_SHOW_SQL, jdbcProperties.getProperty(HIBERNATE_SHOW_SQL));
+        }
+        // JDBC batching for saveAll; IDENTITY ids would silently disable insert batching
+        jpaProperties.put(HIBERNATE_JDBC_BATCH_SIZE, jdbcProperties.getProperty(HIBERNATE_JDBC_BATCH_SIZE, "50"));
+        jpaProperties.put(HIBERNATE_ORDER_INSERTS, jdbcProperties.getProperty(HIBERNATE_ORDER_INSERTS, "true"));
+        jpaProperties.put(HIBERNATE_ORDER_UPDATES, jdbcProperties.getProperty(HIBERNATE_ORDER_UPDATES, "true"));
+        jpaProperties.put(HIBERNATE_ID_NEW_GENERATOR_MAPPINGS, "true");
+        factory.setJpaProperties(jpaProperties);
+        return factory;
+    }
+
+    @Bean
+    @Autowired
+    @SuppressWarnings("unused")
+    public PlatformTransactionManager transactionManager(LocalContainerEntityManagerFactoryBean entityManagerFactory) {
+        return new JpaTransactionManager(entityManagerFactory.getObject());
+    }
+
+    @Bean
+    @Autowired
+    @SuppressWarnings("unused")
+    public DatabasePopulator databasePopulator() {
+        final ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
+        populator.setContinueOnError(false);
+        populator.addScript(new ClassPathResource(jdbcProperties.getProperty(JDBC_INIT_SCRIPT, INIT_DB_SQL)));
+        return populator;
+    }
+
+    /**
+     * Matches unless crud.engine is "memory". Evaluated after SpringConfig has added jdbc.properties.
+     */
+    static class JpaEngine implements Condition {
+
+        @Override
+        public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+            return !isMemoryEngine(context.getEnvironment());
+        }
+    }
+}
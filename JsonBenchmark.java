@@ -0,0 +1,71 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.json.Json;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON hot paths of SmartCameraCrudRestService: encoding of camera lists (getAll) pretty vs compact,
+ * and decoding of a request body (addOne).
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark {
+
+    @Param({"1", "100", "1000"})
+    public int cameras;
+
+    private List<SmartCamera> smartCameraList;
+    private String addOneBody;
+
+    @Setup
+    public void setUp() {
+        smartCameraList = SyntheticCameras.generate(cameras, 42L);
+        // what a client posts: id and version are assigned by the server and rejected in the body
+        SmartCamera first = smartCameraList.get(0);
+        addOneBody = new JsonObject()
+                .put("domain", first.getDomain())
+                .put("state", first.getState())
+                .put("city", first.getCity())
+                .put("latitude", first.getLatitude())
+                .put("longitude", first.getLongitude())
+                .put("deviceType", first.getDeviceType())
+                .encode();
+    }
+
+    @Benchmark
+    public String encodePrettily() {
+        return Json.encodePrettily(smartCameraList);
+    }
+
+    @Benchmark
+    public String encodeCompact() {
+        return Json.encode(smartCameraList);
+    }
+
+    @Benchmark
+    public SmartCamera decodeAddOneBody() {
+        return Json.decodeValue(addOneBody, SmartCamera.class);
+    }
+}
@@ -0,0 +1,282 @@
+package com.tymoshenko.controller.verticle;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tymoshenko.controller.repository.BatchResult;
+import com.tymoshenko.controller.repository.CrudService;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Compact JSON encodings of single entities, kept together with their strong ETag, so getOne neither re-serialises
+ * an unchanged entity nor (for If-None-Match) needs the entity at all.
+ * <p>
+ * The ETag of an entity is its version (<code>"&lt;version&gt;"</code>), which every update increments, so an
+ * If-Match header can be checked by the store itself, see {@link #versionOf(String)}.
+ * <p>
+ * Entries are dropped when the entity is written through {@link #invalidating(CrudService)}. Every write also advances
+ * a generation counter which serves two purposes:
+ * <ul>
+ * <li>an encoding is only kept if no write happened while its entity was read, so a slow reader can not put back
+ * the state from before a concurrent update</li>
+ * <li>list responses are tagged with it ({@link #listETag(String)}): as long as nothing was written, a page is unchanged</li>
+ * </ul>
+ * The cache is thread safe, one instance is shared by every verticle instance.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class JsonResponseCache<T> {
+
+    private final Function<T, Long> idOf;
+    private final ToLongFunction<T> versionOf;
+    private final Cache<Long, Encoded> encodings;
+    private final AtomicLong generation = new AtomicLong();
+    // System.currentTimeMillis() of the last write
+    private volatile long lastWriteMillis;
+    // list ETags must not repeat after a restart, when the generation starts at 0 again
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    /**
+     * @param idOf       extracts the id of an entity
+     * @param versionOf  extracts the version of an entity
+     * @param maxSize    max number of cached encodings
+     * @param ttlSeconds time to live of a cached encoding
+     */
+    public JsonResponseCache(Function<T, Long> idOf, ToLongFunction<T> versionOf, long maxSize, long ttlSeconds) {
+        this.idOf = idOf;
+        this.versionOf = versionOf;
+        this.encodings = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Compact JSON of an entity and its strong ETag.
+     */
+    public static final class Encoded {
+
+        private final Buffer body;
+        private final String etag;
+
+        private Encoded(Buffer body, String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+
+        public Buffer getBody() {
+            return body;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    /**
+     * @return the cached encoding of the entity with the given id, null if there is none
+     */
+    public Encoded get(Long id) {
+        return encodings.getIfPresent(id);
+    }
+
+    /**
+     * @return the current write generation, to be passed to {@link #put(Object, Encoded, long)}
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Encodes an entity, the result is not cached.
+     */
+    public Encoded encode(T entity) {
+        byte[] json = Json.encode(entity).getBytes(StandardCharsets.UTF_8);
+        return new Encoded(Buffer.buffer(json), etagOf(versionOf.applyAsLong(entity)));
+    }
+
+    /**
+     * @return the ETag of an entity with the given version
+     */
+    public static String etagOf(long version) {
+        return "\"" + version + "\"";
+    }
+
+    /**
+     * @param ifMatch value of an If-Match request header, a single entity ETag
+     * @return the version the ETag stands for, null if it is not the ETag of any version (a weak or unknown ETag)
+     */
+    public static Long versionOf(String ifMatch) {
+        String tag = ifMatch.trim();
+        if (tag.length() < 3 || !tag.startsWith("\"") || !tag.endsWith("\"")) {
+            return null;
+        }
+        try {
+            return Long.valueOf(tag.substring(1, tag.length() - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Caches the encoding of an entity unless it was written since generation was read.
+     *
+     * @param generation {@link #generation()} from before the entity was read
+     */
+    public void put(T entity, Encoded encoded, long generation) {
+        Long id = idOf.apply(entity);
+        encodings.put(id, encoded);
+        if (this.generation.get() != generation) {
+            // a write may have invalidated the entry before the put above, do not keep a possibly stale encoding
+            encodings.asMap().remove(id, encoded);
+        }
+    }
+
+    /**
+     * @param query the normalized query of a list request (filters, paging, format), two different pages or two
+     *              encodings of one page must not share an ETag
+     * @return the ETag of the response to that query while no entity is written
+     */
+    public String listETag(String query) {
+        return "\"" + epoch + "-" + generation.get() + "-" + Long.toUnsignedString(fnv1a(query), 36) + "\"";
+    }
+
+    // 64-bit FNV-1a, String.hashCode would make colliding queries easy to come by
+    private static long fnv1a(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * @return when an entity was last written through {@link #invalidating(CrudService)}, 0 if never
+     */
+    public long lastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    /**
+     * @param ifNoneMatch value of the If-None-Match request header, may be null
+     * @param etag        ETag of the current representation
+     * @return true if the client already has the current representation (weak comparison, as If-None-Match requires)
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a CrudService which drops the cached encodings of every entity written through it
+     */
+    public CrudService<T> invalidating(CrudService<T> delegate) {
+        return new InvalidatingCrudService(delegate);
+    }
+
+    private void invalidate(Long id) {
+        generation.incrementAndGet();
+        encodings.invalidate(id);
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    private final class InvalidatingCrudService implements CrudService<T> {
+
+        private final CrudService<T> delegate;
+
+        private InvalidatingCrudService(CrudService<T> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public T save(T entity) {
+            try {
+                T saved = delegate.save(entity);
+                invalidate(idOf.apply(saved));
+                return saved;
+            } catch (RuntimeException e) {
+                invalidate(idOf.apply(entity));
+                throw e;
+            }
+        }
+
+        @Override
+        public List<BatchResult<T>> saveAll(List<T> entities) {
+            try {
+                List<BatchResult<T>> results = delegate.saveAll(entities);
+                for (BatchResult<T> result : results) {
+                    invalidate(idOf.apply(result.getEntity()));
+                }
+                return results;
+            } catch (RuntimeException e) {
+                for (T entity : entities) {
+                    invalidate(idOf.apply(entity));
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+            try {
+                return delegate.patch(id, changes, expectedVersion);
+            } finally {
+                invalidate(id);
+            }
+        }
+
+        @Override
+        public T readOne(Long id) {
+            return delegate.readOne(id);
+        }
+
+        @Override
+        public List<T> readMany(Collection<Long> ids) {
+            return delegate.readMany(ids);
+        }
+
+        @Override
+        public List<T> readAll() {
+            return delegate.readAll();
+        }
+
+        @Override
+        public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+            return delegate.readPage(filters, afterId, limit);
+        }
+
+        @Override
+        public long count(Map<String, String> filters) {
+            return delegate.count(filters);
+        }
+
+        @Override
+        public void delete(Long id) {
+            try {
+                delegate.delete(id);
+            } finally {
+                invalidate(id);
+            }
+        }
+    }
+}
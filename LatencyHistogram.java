@@ -0,0 +1,93 @@
+package com.tymoshenko.controller.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HDR-style log-linear buckets.
+ * <p>
+ * Values are recorded in microseconds. Every power-of-two range is split into linear sub-buckets,
+ * so any percentile is reported with a relative error of about 3% from 1 microsecond up to days,
+ * with a fixed memory footprint. Recording does not allocate.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // values up to 2^42 microseconds (~50 days)
+    private static final int MAX_EXPONENT = 42 - SUB_BUCKET_BITS;
+    private static final long MAX_VALUE = (1L << 42) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT + 2) * (SUB_BUCKETS / 2));
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0L);
+
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMicros(long micros) {
+        long value = Math.max(0L, Math.min(MAX_VALUE, micros));
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.increment();
+        totalMicros.add(value);
+        maxMicros.accumulate(value);
+    }
+
+    public long count() {
+        return totalCount.sum();
+    }
+
+    public long sumMicros() {
+        return totalMicros.sum();
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the highest value of the bucket holding the given quantile, 0 if nothing was recorded
+     */
+    public long quantileMicros(double quantile) {
+        long total = count();
+        if (total == 0) {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length(); bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= target) {
+                return Math.min(highestValueOf(bucket), maxMicros());
+            }
+        }
+        return maxMicros();
+    }
+
+    // values below SUB_BUCKETS map 1:1, above that the top SUB_BUCKET_BITS + 1 bits select the bucket
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> exponent);
+        return exponent * (SUB_BUCKETS / 2) + mantissa;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / (SUB_BUCKETS / 2) - 1;
+        long mantissa = bucket - exponent * (SUB_BUCKETS / 2);
+        return ((mantissa + 1) << exponent) - 1;
+    }
+}
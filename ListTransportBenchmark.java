@@ -0,0 +1,154 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.Application;
+import com.tymoshenko.controller.metrics.LatencyHistogram;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.json.JsonObject;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.tymoshenko.controller.verticle.SmartCameraCrudRestService.REST_SMARTCAMERA_URL;
+
+/**
+ * Compares bytes on the wire and latency of the list endpoint (GET /rest/SmartCamera?limit=...) over
+ * HTTP/1.1 and HTTP/2 cleartext (h2c), each with and without gzip.
+ * <p>
+ * The server is started once against the embedded database, see {@link EmbeddedApplicationContext}. For every
+ * transport a closed-loop client keeps bench.concurrency requests in flight: over HTTP/1.1 on as many connections,
+ * over h2c multiplexed on a single connection. The client asks for gzip itself and does not inflate the responses,
+ * so the recorded body size is the payload actually transferred.
+ * <p>
+ * System properties: bench.port, bench.cameras, bench.limit, bench.concurrency, bench.warmupSeconds, bench.seconds.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class ListTransportBenchmark {
+
+    private static final int PORT = Integer.getInteger("bench.port", 8084);
+    private static final int CAMERAS = Integer.getInteger("bench.cameras", 10000);
+    private static final int LIMIT = Integer.getInteger("bench.limit", 1000);
+    private static final int CONCURRENCY = Integer.getInteger("bench.concurrency", 32);
+    private static final int WARMUP_SECONDS = Integer.getInteger("bench.warmupSeconds", 5);
+    private static final int SECONDS = Integer.getInteger("bench.seconds", 15);
+
+    private static final String AUTHORIZATION = "Basic " + Base64.getEncoder()
+            .encodeToString("tim:preetys".getBytes(StandardCharsets.UTF_8));
+
+    private static final class Result {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder bodyBytes = new LongAdder();
+    }
+
+    public static void main(String[] args) throws Exception {
+        AnnotationConfigApplicationContext applicationContext = EmbeddedApplicationContext.start("list-transport-benchmark");
+        @SuppressWarnings("unchecked")
+        CrudService<SmartCamera> crudService = applicationContext.getBean(CrudService.class);
+        List<Long> ids = SyntheticCameras.populate(crudService, CAMERAS, 42L);
+
+        Vertx server = Vertx.vertx();
+        // min-size 0: whatever the client accepts compressed is compressed
+        JsonObject config = new JsonObject().put("http.port", PORT).put("http.compression.min-size", 0);
+        await(Application.deploy(server, applicationContext, config));
+
+        System.out.println("transport,requests,avg_body_bytes,requests_per_second,p50_ms,p99_ms,max_ms");
+        measure("http/1.1", HttpVersion.HTTP_1_1, false, ids);
+        measure("http/1.1+gzip", HttpVersion.HTTP_1_1, true, ids);
+        measure("h2c", HttpVersion.HTTP_2, false, ids);
+        measure("h2c+gzip", HttpVersion.HTTP_2, true, ids);
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        server.close(v -> closed.complete(null));
+        closed.get(30, TimeUnit.SECONDS);
+        applicationContext.close();
+        System.exit(0);
+    }
+
+    private static void measure(String name, HttpVersion version, boolean gzip, List<Long> ids) throws Exception {
+        Vertx clientVertx = Vertx.vertx();
+        HttpClientOptions options = new HttpClientOptions()
+                .setDefaultHost("localhost")
+                .setDefaultPort(PORT)
+                .setKeepAlive(true)
+                .setProtocolVersion(version)
+                // never inflate, the body size is what came over the wire
+                .setTryUseCompression(false);
+        if (version == HttpVersion.HTTP_2) {
+            options.setHttp2ClearTextUpgrade(false)
+                    .setHttp2MaxPoolSize(1)
+                    .setHttp2MultiplexingLimit(CONCURRENCY);
+        } else {
+            options.setMaxPoolSize(CONCURRENCY);
+        }
+        HttpClient client = clientVertx.createHttpClient(options);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicReference<Result> result = new AtomicReference<>(new Result());
+        for (int i = 0; i < CONCURRENCY; i++) {
+            clientVertx.runOnContext(v -> send(client, gzip, ids, result, running));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+        Result measured = new Result();
+        result.set(measured);
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+
+        long count = measured.latency.count();
+        System.out.printf("%s,%d,%d,%.0f,%.2f,%.2f,%.2f%n", name, count,
+                count == 0 ? 0 : measured.bodyBytes.sum() / count, count / (elapsed / 1e9),
+                measured.latency.quantileMicros(0.5) / 1000.0, measured.latency.quantileMicros(0.99) / 1000.0,
+                measured.latency.maxMicros() / 1000.0);
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        clientVertx.close(v -> closed.complete(null));
+        closed.get(30, TimeUnit.SECONDS);
+    }
+
+    // one request in flight per call chain, the next one is sent when the response body arrived
+    private static void send(HttpClient client, boolean gzip, List<Long> ids, AtomicReference<Result> result, AtomicBoolean running) {
+        if (!running.get()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long after = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+        client.get(REST_SMARTCAMERA_URL + "?limit=" + LIMIT + "&after=" + after, response -> response.bodyHandler(body -> {
+            Result current = result.get();
+            current.latency.recordNanos(System.nanoTime() - start);
+            current.bodyBytes.add(body.length());
+            send(client, gzip, ids, result, running);
+        }))
+                .exceptionHandler(e -> send(client, gzip, ids, result, running))
+                .putHeader("Authorization", AUTHORIZATION)
+                .putHeader("Accept-Encoding", gzip ? "gzip" : "identity")
+                .end();
+    }
+
+    private static void await(Future<Void> future) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        future.setHandler(result -> {
+            if (result.succeeded()) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(result.cause());
+            }
+        });
+        done.get(60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,329 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.Application;
+import com.tymoshenko.controller.metrics.LatencyHistogram;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.tymoshenko.controller.verticle.SmartCameraCrudRestService.REST_SMARTCAMERA_URL;
+
+/**
+ * End-to-end load test of the whole stack: router, auth chain, async CRUD layer, cache/indexes and JPA.
+ * <p>
+ * Boots the application against the embedded database (see {@link EmbeddedApplicationContext}) seeded with
+ * load.cameras synthetic cameras, then replays a mix of GET-by-id, list, POST, PUT and DELETE requests at a fixed
+ * rate. The load is an open model: request i is due at start + i / rate regardless of how fast responses come back,
+ * and its latency is measured from that intended start time. Requests waiting for a free connection therefore count
+ * as slow instead of silently lowering the offered load (coordinated omission).
+ * <p>
+ * Throughput and latency percentiles are printed per route as CSV. DELETE only removes cameras created by POST during
+ * the run, so GET and PUT always target existing ids; while there is nothing to delete the slot is sent as a POST.
+ * A run in which more than load.maxWriteErrorRatio of the POST, PUT and DELETE requests were not answered with 2xx
+ * is not a measurement of the write path, so it is reported as such and the harness exits with status 1.
+ * <p>
+ * System properties: load.port, load.instances, load.cameras, load.rate (requests/second), load.warmupSeconds,
+ * load.seconds, load.connections, load.mix (e.g. getOne=60,list=20,post=10,put=5,delete=5), load.listLimit,
+ * load.user, load.password, load.maxWriteErrorRatio.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class LoadTestHarness {
+
+    private static final int PORT = Integer.getInteger("load.port", 8083);
+    private static final int INSTANCES = Integer.getInteger("load.instances", 0);
+    private static final int CAMERAS = Integer.getInteger("load.cameras", 10000);
+    private static final int RATE = Integer.getInteger("load.rate", 2000);
+    private static final int WARMUP_SECONDS = Integer.getInteger("load.warmupSeconds", 10);
+    private static final int SECONDS = Integer.getInteger("load.seconds", 30);
+    private static final int CONNECTIONS = Integer.getInteger("load.connections", 64);
+    private static final String MIX = System.getProperty("load.mix", "getOne=60,list=20,post=10,put=5,delete=5");
+    private static final int LIST_LIMIT = Integer.getInteger("load.listLimit", 100);
+    private static final String USER = System.getProperty("load.user", "tim");
+    private static final String PASSWORD = System.getProperty("load.password", "preetys");
+    private static final double MAX_WRITE_ERROR_RATIO = Double.parseDouble(System.getProperty("load.maxWriteErrorRatio", "0.01"));
+
+    // how long in-flight requests may take to finish after the last one was sent
+    private static final long DRAIN_TIMEOUT_MS = 30000;
+
+    private enum Route {
+        getOne(HttpMethod.GET, REST_SMARTCAMERA_URL + "/:id"),
+        list(HttpMethod.GET, REST_SMARTCAMERA_URL),
+        post(HttpMethod.POST, REST_SMARTCAMERA_URL),
+        put(HttpMethod.PUT, REST_SMARTCAMERA_URL + "/:id"),
+        delete(HttpMethod.DELETE, REST_SMARTCAMERA_URL + "/:id");
+
+        private final HttpMethod method;
+        private final String url;
+
+        Route(HttpMethod method, String url) {
+            this.method = method;
+            this.url = url;
+        }
+    }
+
+    private static final class RouteStats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    private final Map<Route, Integer> weights;
+    private final int totalWeight;
+    private final List<Long> seededIds;
+    private final Queue<Long> createdIds = new ConcurrentLinkedQueue<>();
+    private final String authorization = "Basic " + Base64.getEncoder()
+            .encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+    private final LongAdder inFlight = new LongAdder();
+
+    // replaced when the measurement starts, so warm-up requests are not reported
+    private volatile Map<Route, RouteStats> stats = newStats();
+
+    private LoadTestHarness(Map<Route, Integer> weights, List<Long> seededIds) {
+        this.weights = weights;
+        this.totalWeight = weights.values().stream().mapToInt(Integer::intValue).sum();
+        this.seededIds = seededIds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<Route, Integer> weights = parseMix(MIX);
+
+        AnnotationConfigApplicationContext applicationContext = EmbeddedApplicationContext.start("load-test");
+        @SuppressWarnings("unchecked")
+        CrudService<SmartCamera> crudService = applicationContext.getBean(CrudService.class);
+        List<Long> seededIds = SyntheticCameras.populate(crudService, CAMERAS, 42L);
+
+        Vertx server = Vertx.vertx();
+        JsonObject config = new JsonObject().put("http.port", PORT).put(Application.CONF_HTTP_INSTANCES, INSTANCES);
+        await(Application.deploy(server, applicationContext, config));
+
+        boolean writesSucceeded = new LoadTestHarness(weights, seededIds).run();
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        server.close(v -> closed.complete(null));
+        closed.get(30, TimeUnit.SECONDS);
+        applicationContext.close();
+        System.exit(writesSucceeded ? 0 : 1);
+    }
+
+    // true unless too many writes failed
+    private boolean run() throws Exception {
+        Vertx clientVertx = Vertx.vertx();
+        HttpClient client = clientVertx.createHttpClient(new HttpClientOptions()
+                .setDefaultHost("localhost")
+                .setDefaultPort(PORT)
+                .setKeepAlive(true)
+                .setMaxPoolSize(CONNECTIONS)
+                .setMaxWaitQueueSize(-1));
+
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long totalRequests = (long) RATE * (WARMUP_SECONDS + SECONDS);
+        long warmupRequests = (long) RATE * WARMUP_SECONDS;
+        long start = System.nanoTime();
+        long[] sent = {0};
+        long[] measurementStart = {0};
+        CompletableFuture<Void> allSent = new CompletableFuture<>();
+
+        // fires every millisecond and sends every request that became due since the previous tick
+        clientVertx.setPeriodic(1, timerId -> {
+            long due = Math.min(totalRequests, (System.nanoTime() - start) / intervalNanos + 1);
+            for (; sent[0] < due; sent[0]++) {
+                if (sent[0] == warmupRequests) {
+                    stats = newStats();
+                    measurementStart[0] = System.nanoTime();
+                }
+                send(client, start + sent[0] * intervalNanos);
+            }
+            if (sent[0] == totalRequests) {
+                clientVertx.cancelTimer(timerId);
+                allSent.complete(null);
+            }
+        });
+
+        allSent.get(WARMUP_SECONDS + SECONDS + 60, TimeUnit.SECONDS);
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        while (inFlight.sum() > 0 && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        long elapsedNanos = System.nanoTime() - measurementStart[0];
+        boolean writesSucceeded = report(stats, elapsedNanos, inFlight.sum());
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        clientVertx.close(v -> closed.complete(null));
+        closed.get(30, TimeUnit.SECONDS);
+        return writesSucceeded;
+    }
+
+    private void send(HttpClient client, long intendedStartNanos) {
+        Route route = pickRoute();
+        Long createdId = null;
+        if (route == Route.delete) {
+            createdId = createdIds.poll();
+            if (createdId == null) {
+                route = Route.post;
+            }
+        }
+
+        final Route sentRoute = route;
+        final RouteStats routeStats = stats.get(sentRoute);
+        String uri;
+        String body = null;
+        switch (sentRoute) {
+            case getOne:
+                uri = REST_SMARTCAMERA_URL + "/" + randomSeededId();
+                break;
+            case list:
+                uri = REST_SMARTCAMERA_URL + "?limit=" + LIST_LIMIT + "&after=" + randomSeededId();
+                break;
+            case post:
+                uri = REST_SMARTCAMERA_URL;
+                body = requestBody(SyntheticCameras.next(ThreadLocalRandom.current()));
+                break;
+            case put:
+                uri = REST_SMARTCAMERA_URL + "/" + randomSeededId();
+                body = requestBody(SyntheticCameras.next(ThreadLocalRandom.current()));
+                break;
+            default:
+                uri = REST_SMARTCAMERA_URL + "/" + createdId;
+        }
+
+        inFlight.increment();
+        HttpClientRequest request = client.request(sentRoute.method, uri, response -> response.bodyHandler(responseBody -> {
+            routeStats.latency.recordNanos(System.nanoTime() - intendedStartNanos);
+            int status = response.statusCode();
+            if (status < 200 || status >= 300) {
+                routeStats.errors.increment();
+            } else if (sentRoute == Route.post) {
+                createdIds.add(new JsonObject(responseBody.toString()).getLong("id"));
+            }
+            inFlight.decrement();
+        }));
+        request.exceptionHandler(e -> {
+            routeStats.latency.recordNanos(System.nanoTime() - intendedStartNanos);
+            routeStats.errors.increment();
+            inFlight.decrement();
+        });
+        request.putHeader("Authorization", authorization);
+        if (body != null) {
+            request.putHeader("Content-Type", "application/json").end(body);
+        } else {
+            request.end();
+        }
+    }
+
+    private Route pickRoute() {
+        int pick = ThreadLocalRandom.current().nextInt(totalWeight);
+        for (Map.Entry<Route, Integer> weight : weights.entrySet()) {
+            pick -= weight.getValue();
+            if (pick < 0) {
+                return weight.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty request mix");
+    }
+
+    private long randomSeededId() {
+        return seededIds.get(ThreadLocalRandom.current().nextInt(seededIds.size()));
+    }
+
+    // only the fields a client sets: addOne rejects a body with id or version
+    private static String requestBody(SmartCamera smartCamera) {
+        return new JsonObject()
+                .put("domain", smartCamera.getDomain())
+                .put("state", smartCamera.getState())
+                .put("city", smartCamera.getCity())
+                .put("latitude", smartCamera.getLatitude())
+                .put("longitude", smartCamera.getLongitude())
+                .put("deviceType", smartCamera.getDeviceType())
+                .encode();
+    }
+
+    // true unless more than MAX_WRITE_ERROR_RATIO of the writes failed
+    private static boolean report(Map<Route, RouteStats> stats, long elapsedNanos, long unfinished) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("route,requests,errors,requests_per_second,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+        for (Map.Entry<Route, RouteStats> entry : stats.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            if (latency.count() == 0) {
+                continue;
+            }
+            System.out.printf("%s %s,%d,%d,%.1f,%.2f,%.2f,%.2f,%.2f,%.2f%n",
+                    entry.getKey().method, entry.getKey().url,
+                    latency.count(), entry.getValue().errors.sum(), latency.count() / seconds,
+                    latency.quantileMicros(0.5) / 1000.0, latency.quantileMicros(0.9) / 1000.0,
+                    latency.quantileMicros(0.99) / 1000.0, latency.quantileMicros(0.999) / 1000.0,
+                    latency.maxMicros() / 1000.0);
+        }
+        if (unfinished > 0) {
+            System.out.printf("# %d request(s) still unanswered after %d ms, not included above%n", unfinished, DRAIN_TIMEOUT_MS);
+        }
+
+        long writes = 0;
+        long writeErrors = 0;
+        for (Route route : new Route[]{Route.post, Route.put, Route.delete}) {
+            writes += stats.get(route).latency.count();
+            writeErrors += stats.get(route).errors.sum();
+        }
+        if (writes > 0 && writeErrors > writes * MAX_WRITE_ERROR_RATIO) {
+            System.err.printf("# %d of %d writes failed (more than %.1f%%), the write latencies above are not meaningful%n",
+                    writeErrors, writes, MAX_WRITE_ERROR_RATIO * 100);
+            return false;
+        }
+        return true;
+    }
+
+    private static Map<Route, RouteStats> newStats() {
+        Map<Route, RouteStats> stats = new EnumMap<>(Route.class);
+        for (Route route : Route.values()) {
+            stats.put(route, new RouteStats());
+        }
+        return stats;
+    }
+
+    // "getOne=60,list=20" -> {getOne=60, list=20}
+    private static Map<Route, Integer> parseMix(String mix) {
+        Map<Route, Integer> weights = new EnumMap<>(Route.class);
+        for (String part : mix.split(",")) {
+            String[] routeAndWeight = part.trim().split("=");
+            int weight = Integer.parseInt(routeAndWeight[1].trim());
+            if (weight > 0) {
+                weights.put(Route.valueOf(routeAndWeight[0].trim()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("load.mix selects no requests: " + mix);
+        }
+        return weights;
+    }
+
+    private static void await(Future<Void> future) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        future.setHandler(result -> {
+            if (result.succeeded()) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(result.cause());
+            }
+        });
+        done.get(60, TimeUnit.SECONDS);
+    }
+}
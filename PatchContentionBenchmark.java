@@ -0,0 +1,123 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.context.SpringConfig;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.tymoshenko.model.SmartCamera;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.dao.OptimisticLockingFailureException;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent updates of the same few cameras through the CrudService of the REST layer:
+ * <ul>
+ * <li>readModifyWrite - what PUT does: readOne, set the field, save the whole entity; retried on a version conflict</li>
+ * <li>patch - PATCH without If-Match: one UPDATE of the changed field, never conflicts</li>
+ * <li>patchIfMatch - PATCH with If-Match: readOne for the version, then the guarded UPDATE; retried on 412</li>
+ * </ul>
+ * Every operation counts once it succeeded, so retries show up as lower throughput. Fewer hot cameras mean
+ * more contention.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class PatchContentionBenchmark {
+
+    @Param({"jpa", "memory"})
+    public String engine;
+
+    @Param({"1", "16", "1024"})
+    public int hotCameras;
+
+    private AnnotationConfigApplicationContext applicationContext;
+    private CrudService<SmartCamera> crudService;
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        System.setProperty(SpringConfig.CRUD_ENGINE, engine);
+        applicationContext = EmbeddedApplicationContext.start("patch-contention-benchmark");
+        crudService = applicationContext.getBean(CrudService.class);
+        ids = SyntheticCameras.populate(crudService, hotCameras, 42L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationContext.close();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        private final Random random = new Random();
+    }
+
+    @Benchmark
+    public SmartCamera readModifyWrite(ThreadRandom threadRandom) {
+        Long id = ids.get(threadRandom.random.nextInt(ids.size()));
+        String city = city(threadRandom);
+        while (true) {
+            SmartCamera smartcamera = crudService.readOne(id);
+            smartcamera.setCity(city);
+            try {
+                return crudService.save(smartcamera);
+            } catch (OptimisticLockingFailureException e) {
+                // someone else was faster, read again
+            }
+        }
+    }
+
+    @Benchmark
+    public SmartCamera patch(ThreadRandom threadRandom) {
+        Long id = ids.get(threadRandom.random.nextInt(ids.size()));
+        return crudService.patch(id, cityChange(threadRandom), null);
+    }
+
+    @Benchmark
+    public SmartCamera patchIfMatch(ThreadRandom threadRandom) {
+        Long id = ids.get(threadRandom.random.nextInt(ids.size()));
+        Map<String, Object> changes = cityChange(threadRandom);
+        while (true) {
+            long version = crudService.readOne(id).getVersion();
+            try {
+                return crudService.patch(id, changes, version);
+            } catch (OptimisticLockingFailureException e) {
+                // 412, read the current version again
+            }
+        }
+    }
+
+    private static String city(ThreadRandom threadRandom) {
+        return "City-" + threadRandom.random.nextInt(100);
+    }
+
+    private static Map<String, Object> cityChange(ThreadRandom threadRandom) {
+        return Collections.singletonMap(SmartCameraCrudService.PATCH_CITY, city(threadRandom));
+    }
+}
@@ -0,0 +1,115 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.context.SpringConfig;
+import com.tymoshenko.controller.repository.CoalescingCrudService;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of single camera lookups, like a map view loading its markers: 32 threads call readOne on the CrudService
+ * below the cache, so every call is a cache miss. Fewer hot cameras mean more lookups of the same camera at once.
+ * <ul>
+ * <li>off - every lookup is its own query</li>
+ * <li>inflight - lookups of a camera which is already being read wait for that read (window 0)</li>
+ * <li>window - in addition, lookups arriving within 200 microseconds are read with one IN query</li>
+ * </ul>
+ * readMany is what the batch endpoint does: 50 cameras with one query, whatever the coalescing setting.
+ * After every iteration the number of DB queries per lookup is printed.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ReadCoalescingBenchmark {
+
+    private static final int MAP_TILE_CAMERAS = 50;
+
+    @Param({"off", "inflight", "window"})
+    public String coalescing;
+
+    @Param({"16", "10000"})
+    public int hotCameras;
+
+    private AnnotationConfigApplicationContext applicationContext;
+    private CoalescingCrudService<SmartCamera> crudService;
+    private List<Long> ids;
+    private long lookupsBefore;
+    private long queriesBefore;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        System.setProperty(SpringConfig.CRUD_COALESCING_ENABLED, String.valueOf(!"off".equals(coalescing)));
+        System.setProperty(SpringConfig.CRUD_COALESCING_WINDOW_MICROS, "window".equals(coalescing) ? "200" : "0");
+        applicationContext = EmbeddedApplicationContext.start("read-coalescing-benchmark");
+        crudService = applicationContext.getBean(CoalescingCrudService.class);
+        ids = SyntheticCameras.populate(applicationContext.getBean(CrudService.class), hotCameras, 42L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        applicationContext.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting() {
+        JsonObject stats = crudService.stats();
+        lookupsBefore = stats.getLong("lookups");
+        queriesBefore = stats.getLong("queries");
+    }
+
+    @TearDown(Level.Iteration)
+    public void printQueriesPerLookup() {
+        JsonObject stats = crudService.stats();
+        long lookups = stats.getLong("lookups") - lookupsBefore;
+        long queries = stats.getLong("queries") - queriesBefore;
+        System.out.printf("%n%s, %d hot cameras: %d lookups, %d queries, %.3f queries/lookup%n",
+                coalescing, hotCameras, lookups, queries, lookups == 0 ? 0.0 : (double) queries / lookups);
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        private final Random random = new Random();
+    }
+
+    @Benchmark
+    public SmartCamera readOne(ThreadRandom threadRandom) {
+        return crudService.readOne(ids.get(threadRandom.random.nextInt(ids.size())));
+    }
+
+    @Benchmark
+    public List<SmartCamera> readMany(ThreadRandom threadRandom) {
+        List<Long> tile = new ArrayList<>(MAP_TILE_CAMERAS);
+        for (int i = 0; i < MAP_TILE_CAMERAS; i++) {
+            tile.add(ids.get(threadRandom.random.nextInt(ids.size())));
+        }
+        return crudService.readMany(tile);
+    }
+}
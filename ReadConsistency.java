@@ -0,0 +1,40 @@
+package com.tymoshenko.controller.context;
+
+/**
+ * The read-your-writes requirement of the request the current thread works for: the time its session last wrote.
+ * {@link ReplicaRoutingDataSource} sends a read to a replica only if that replica has replicated past this time.
+ * <p>
+ * Set on the event loop for the duration of a request handler and carried over to the worker thread which runs
+ * the CrudService call, see {@link com.tymoshenko.controller.repository.WorkerAsyncCrudService}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class ReadConsistency {
+
+    private static final ThreadLocal<Long> LAST_WRITE_MILLIS = new ThreadLocal<>();
+
+    private ReadConsistency() {
+    }
+
+    /**
+     * @return when the session of the current request last wrote (System.currentTimeMillis), 0 if it did not
+     * or so long ago that every usable replica has its writes
+     */
+    public static long lastWrite() {
+        Long lastWriteMillis = LAST_WRITE_MILLIS.get();
+        return lastWriteMillis == null ? 0 : lastWriteMillis;
+    }
+
+    public static void set(long lastWriteMillis) {
+        if (lastWriteMillis == 0) {
+            LAST_WRITE_MILLIS.remove();
+        } else {
+            LAST_WRITE_MILLIS.set(lastWriteMillis);
+        }
+    }
+
+    public static void clear() {
+        LAST_WRITE_MILLIS.remove();
+    }
+}
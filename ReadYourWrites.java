@@ -0,0 +1,71 @@
+package com.tymoshenko.controller.verticle;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.tymoshenko.controller.context.ReadConsistency;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import io.vertx.ext.web.Session;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets every session read its own writes when reads may be answered by a lagging replica.
+ * <p>
+ * Remembers when each session (the web session if there is one, otherwise the authenticated user or the remote
+ * address) last completed a successful write and runs the route handlers of its later requests with that time as
+ * their {@link ReadConsistency}. Entries are dropped after maxLagMillis: by then every replica which may be read from
+ * has the write anyway.
+ * <p>
+ * One instance is shared by every verticle instance.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class ReadYourWrites {
+
+    private final Cache<String, Long> lastWrites;
+
+    /**
+     * @param maxLagMillis the replication lag reads tolerate, see
+     *                     {@link com.tymoshenko.controller.context.ReplicaRoutingDataSource}
+     */
+    public ReadYourWrites(long maxLagMillis) {
+        this.lastWrites = Caffeine.newBuilder()
+                .expireAfterWrite(maxLagMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Route handler, to be registered after authentication and before the routes it applies to.
+     */
+    public void handle(RoutingContext routingContext) {
+        String session = sessionOf(routingContext);
+        HttpMethod method = routingContext.request().method();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD) {
+            // the response is only sent once the write is committed
+            routingContext.addBodyEndHandler(v -> {
+                if (routingContext.response().getStatusCode() < 400) {
+                    lastWrites.put(session, System.currentTimeMillis());
+                }
+            });
+        }
+        Long lastWrite = lastWrites.getIfPresent(session);
+        if (lastWrite == null) {
+            routingContext.next();
+            return;
+        }
+        // the CrudService calls of the route handler are submitted before next() returns
+        ReadConsistency.set(lastWrite);
+        try {
+            routingContext.next();
+        } finally {
+            ReadConsistency.clear();
+        }
+    }
+
+    private static String sessionOf(RoutingContext routingContext) {
+        Session session = routingContext.session();
+        return session != null ? session.id() : AdmissionControl.clientOf(routingContext);
+    }
+}
@@ -0,0 +1,152 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.context.ReadConsistency;
+import com.tymoshenko.controller.context.ReplicaRoutingDataSource;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SmartCameraCrudService (no cache in between) with its reads spread over 0, 1 or 2 read replicas, all of them
+ * in-memory databases; {@link EmbeddedReplication} copies the primary to the replicas every 250 ms.
+ * <ul>
+ * <li>readOne, readPage - read-only transactions, answered by the replicas if there are any</li>
+ * <li>saveThenReadOwnWrite - a write followed by a read which must see it: the read goes to a replica only once that
+ * replica has replicated the write, in this benchmark almost always to the primary. Fails if the write is not seen</li>
+ * </ul>
+ * After every iteration the routing counters (reads per replica, reads and fallbacks to the primary) are printed.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ReplicaRoutingBenchmark {
+
+    private static final String DATABASE_NAME = "replica-routing-benchmark";
+    private static final long REPLICATION_DELAY_MILLIS = 250;
+    private static final long CATCH_UP_TIMEOUT_MILLIS = 10000;
+
+    @Param({"0", "1", "2"})
+    public int replicas;
+
+    @Param({"10000"})
+    public int cameras;
+
+    private AnnotationConfigApplicationContext applicationContext;
+    private EmbeddedReplication replication;
+    private CrudService<SmartCamera> crudService;
+    private List<Long> ids;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws InterruptedException {
+        applicationContext = EmbeddedApplicationContext.start(DATABASE_NAME, replicas);
+        replication = new EmbeddedReplication(DATABASE_NAME, replicas, REPLICATION_DELAY_MILLIS);
+        crudService = applicationContext.getBean(SmartCameraCrudService.class);
+        ids = SyntheticCameras.populate(applicationContext.getBean(CrudService.class), cameras, 42L);
+        awaitReplicas(System.currentTimeMillis());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        replication.close();
+        applicationContext.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printRouting() {
+        JsonObject routing = routingStats();
+        if (routing != null) {
+            System.out.printf("%n%d replicas: %s%n", replicas, routing.encode());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadRandom {
+        private final Random random = new Random();
+    }
+
+    @Benchmark
+    public SmartCamera readOne(ThreadRandom threadRandom) {
+        return crudService.readOne(ids.get(threadRandom.random.nextInt(ids.size())));
+    }
+
+    @Benchmark
+    public List<SmartCamera> readPage(ThreadRandom threadRandom) {
+        return crudService.readPage(Collections.emptyMap(), ids.get(threadRandom.random.nextInt(ids.size())), 100);
+    }
+
+    @Benchmark
+    public SmartCamera saveThenReadOwnWrite(ThreadRandom threadRandom) {
+        SmartCamera saved = crudService.save(SyntheticCameras.next(threadRandom.random));
+        ReadConsistency.set(System.currentTimeMillis());
+        try {
+            SmartCamera read = crudService.readOne(saved.getId());
+            if (read == null) {
+                throw new IllegalStateException("SmartCamera " + saved.getId() + " was saved but not found");
+            }
+            return read;
+        } finally {
+            ReadConsistency.clear();
+        }
+    }
+
+    private JsonObject routingStats() {
+        DataSource dataSource = applicationContext.getBean(DataSource.class);
+        return dataSource instanceof ReplicaRoutingDataSource ? ((ReplicaRoutingDataSource) dataSource).stats() : null;
+    }
+
+    // the populated cameras reach the replicas with the next copy, until then readOne would find nothing there
+    private void awaitReplicas(long populated) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CATCH_UP_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            long now = System.currentTimeMillis();
+            JsonObject routing = routingStats();
+            if (routing == null || replicatedSince(routing.getJsonArray("replicas"), now, populated)) {
+                return;
+            }
+            Thread.sleep(REPLICATION_DELAY_MILLIS);
+        }
+        throw new IllegalStateException("Replicas did not catch up: " + routingStats().encode());
+    }
+
+    private static boolean replicatedSince(JsonArray replicas, long now, long since) {
+        for (int i = 0; i < replicas.size(); i++) {
+            JsonObject replica = replicas.getJsonObject(i);
+            Long lagMillis = replica.getLong("lagMillis");
+            if (!replica.getBoolean("usable") || lagMillis == null || now - lagMillis <= since) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
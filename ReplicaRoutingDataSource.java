@@ -0,0 +1,245 @@
+package com.tymoshenko.controller.context;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends read-only transactions to replicas and everything else to the primary.
+ * <p>
+ * A transaction is read-only if it was started with readOnly=true (the Spring Data repository methods and the
+ * read methods of SmartCameraCrudService are). The physical connection is fetched lazily, on the first statement,
+ * when the read-only flag of the transaction is known. Reads are spread round robin over the replicas which are
+ * <ul>
+ * <li>healthy - the last health check could query them</li>
+ * <li>at most maxLagMillis behind the primary</li>
+ * <li>past the last write of the session, see {@link ReadConsistency}</li>
+ * </ul>
+ * If no replica qualifies the read falls back to the primary.
+ * <p>
+ * Lag is measured with a heartbeat: every checkIntervalMillis the current time is written to the
+ * REPLICATION_HEARTBEAT table of the primary and read back from every replica. The value a replica returns is the
+ * time up to which it has replicated; a replica which can not be queried is unhealthy until the next successful
+ * check. maxLagMillis must be well above checkIntervalMillis.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class ReplicaRoutingDataSource extends LazyConnectionDataSourceProxy implements Closeable {
+
+    public static final String PRIMARY = "primary";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    private static final String WRITE_HEARTBEAT = "UPDATE replication_heartbeat SET ts = ? WHERE id = 1";
+    private static final String READ_HEARTBEAT = "SELECT ts FROM replication_heartbeat WHERE id = 1";
+
+    private final Routing routing;
+    private final ScheduledExecutorService healthChecks;
+
+    /**
+     * @param primary             receives writes and the reads no replica can take
+     * @param replicas            replica name to replica
+     * @param maxLagMillis        replicas further behind are not read from
+     * @param checkIntervalMillis how often the heartbeat is written and the replicas are checked
+     */
+    public ReplicaRoutingDataSource(DataSource primary, Map<String, DataSource> replicas, long maxLagMillis,
+                                    long checkIntervalMillis) {
+        this(new Routing(primary, replicas, maxLagMillis), checkIntervalMillis);
+    }
+
+    private ReplicaRoutingDataSource(Routing routing, long checkIntervalMillis) {
+        super(routing);
+        this.routing = routing;
+        healthChecks = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecks.scheduleWithFixedDelay(routing::check, 0, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public long getMaxLagMillis() {
+        return routing.maxLagMillis;
+    }
+
+    /**
+     * @return routing counters and the state of every replica, suitable for rendering as a REST response
+     */
+    public JsonObject stats() {
+        long now = System.currentTimeMillis();
+        JsonArray replicas = new JsonArray();
+        for (Replica replica : routing.replicas) {
+            replicas.add(new JsonObject()
+                    .put("name", replica.name)
+                    .put("healthy", replica.healthy)
+                    .put("usable", replica.isUsable(now, routing.maxLagMillis, 0))
+                    .put("lagMillis", replica.replicatedAt == 0 ? null : now - replica.replicatedAt)
+                    .put("reads", replica.reads.sum())
+                    .put("lastError", replica.lastError));
+        }
+        return new JsonObject()
+                .put("maxLagMillis", routing.maxLagMillis)
+                .put("readWriteConnections", routing.readWriteConnections.sum())
+                .put("primaryReads", routing.primaryReads.sum())
+                .put("fallbacks", routing.fallbacks.sum())
+                .put("replicas", replicas);
+    }
+
+    /**
+     * Stops the health checks and closes the pools of the primary and the replicas.
+     */
+    @Override
+    public void close() {
+        healthChecks.shutdownNow();
+        close(routing.primary);
+        for (Replica replica : routing.replicas) {
+            close(replica.dataSource);
+        }
+    }
+
+    private static void close(DataSource dataSource) {
+        if (dataSource instanceof Closeable) {
+            try {
+                ((Closeable) dataSource).close();
+            } catch (Exception e) {
+                LOG.error("Closing a DataSource failed: " + e.getLocalizedMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Picks the DataSource of a new physical connection.
+     */
+    private static final class Routing extends AbstractRoutingDataSource {
+
+        private final DataSource primary;
+        private final List<Replica> replicas = new ArrayList<>();
+        private final long maxLagMillis;
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final LongAdder readWriteConnections = new LongAdder();
+        private final LongAdder primaryReads = new LongAdder();
+        private final LongAdder fallbacks = new LongAdder();
+
+        private Routing(DataSource primary, Map<String, DataSource> replicas, long maxLagMillis) {
+            this.primary = primary;
+            this.maxLagMillis = maxLagMillis;
+            Map<Object, Object> targets = new HashMap<>();
+            targets.put(PRIMARY, primary);
+            for (Map.Entry<String, DataSource> replica : replicas.entrySet()) {
+                this.replicas.add(new Replica(replica.getKey(), replica.getValue()));
+                targets.put(replica.getKey(), replica.getValue());
+            }
+            setTargetDataSources(targets);
+            setDefaultTargetDataSource(primary);
+            afterPropertiesSet();
+        }
+
+        @Override
+        protected Object determineCurrentLookupKey() {
+            if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly()) {
+                readWriteConnections.increment();
+                return PRIMARY;
+            }
+            long now = System.currentTimeMillis();
+            long lastWrite = ReadConsistency.lastWrite();
+            int size = replicas.size();
+            for (int i = 0; i < size; i++) {
+                Replica replica = replicas.get(Math.floorMod(next.getAndIncrement(), size));
+                if (replica.isUsable(now, maxLagMillis, lastWrite)) {
+                    replica.reads.increment();
+                    return replica.name;
+                }
+            }
+            if (size > 0) {
+                fallbacks.increment();
+            }
+            primaryReads.increment();
+            return PRIMARY;
+        }
+
+        private void check() {
+            long now = System.currentTimeMillis();
+            try (Connection connection = primary.getConnection();
+                 PreparedStatement update = connection.prepareStatement(WRITE_HEARTBEAT)) {
+                update.setLong(1, now);
+                update.executeUpdate();
+            } catch (SQLException | RuntimeException e) {
+                // replicas fall behind the heartbeat and are not read from until it is written again
+                LOG.error("Writing the replication heartbeat failed: " + e.getLocalizedMessage(), e);
+            }
+            for (Replica replica : replicas) {
+                replica.check(maxLagMillis);
+            }
+        }
+    }
+
+    /**
+     * One replica and what its last health check found.
+     */
+    private static final class Replica {
+
+        private final String name;
+        private final DataSource dataSource;
+        private final LongAdder reads = new LongAdder();
+
+        // written by the health check only
+        private volatile boolean healthy;
+        private volatile long replicatedAt;
+        private volatile String lastError;
+
+        private Replica(String name, DataSource dataSource) {
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+
+        private boolean isUsable(long now, long maxLagMillis, long lastWrite) {
+            long replicated = replicatedAt;
+            return healthy && now - replicated <= maxLagMillis && replicated > lastWrite;
+        }
+
+        private void check(long maxLagMillis) {
+            boolean wasUsable = isUsable(System.currentTimeMillis(), maxLagMillis, 0);
+            try (Connection connection = dataSource.getConnection();
+                 PreparedStatement query = connection.prepareStatement(READ_HEARTBEAT)) {
+                query.setQueryTimeout((int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(maxLagMillis)));
+                try (ResultSet heartbeat = query.executeQuery()) {
+                    replicatedAt = heartbeat.next() ? heartbeat.getLong(1) : 0;
+                }
+                healthy = true;
+                lastError = null;
+            } catch (SQLException | RuntimeException e) {
+                healthy = false;
+                lastError = e.getLocalizedMessage();
+            }
+            boolean usable = isUsable(System.currentTimeMillis(), maxLagMillis, 0);
+            if (wasUsable && !usable) {
+                LOG.warn("Replica " + name + " is not read from any more: "
+                        + (healthy ? "lag above " + maxLagMillis + " ms" : lastError));
+            } else if (!wasUsable && usable) {
+                LOG.info("Replica " + name + " is read from");
+            }
+        }
+    }
+}
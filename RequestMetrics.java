@@ -0,0 +1,202 @@
+package com.tymoshenko.controller.metrics;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency and throughput metrics of the REST layer, rendered in the Prometheus text exposition format.
+ * <p>
+ * Three families of metrics are kept:
+ * <ul>
+ * <li>HTTP requests per route, method and status: latency summary and in-flight gauge</li>
+ * <li>Authentication of API requests, accepted and rejected: latency summary, not included in the request latency</li>
+ * <li>CrudService calls per operation: latency summary (see {@link com.tymoshenko.controller.repository.TimedCrudService})</li>
+ * <li>JSON encoding of response bodies: latency summary</li>
+ * </ul>
+ * Request rates are derived from the summary counters by Prometheus (rate(..._count[1m])).
+ * Everything is looked up when a route is registered, so recording a request costs a few atomic increments.
+ * One instance is shared by every verticle instance.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@Component
+public class RequestMetrics {
+
+    public static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final int MAX_STATUS_CODE = 599;
+    private static final String AUTHENTICATION_START = "metrics.authenticationStart";
+
+    // sorted, so the scrape output is stable
+    private final Map<String, RouteMetrics> routes = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> crudOperations = new ConcurrentSkipListMap<>();
+    private final LatencyHistogram jsonEncoding = new LatencyHistogram();
+    private final LatencyHistogram authenticationAccepted = new LatencyHistogram();
+    private final LatencyHistogram authenticationRejected = new LatencyHistogram();
+    private final Map<String, String> escapedLabels = new ConcurrentHashMap<>();
+
+    /**
+     * Wraps a route handler so that every request it serves is timed until the response is written.
+     *
+     * @param method  HTTP method of the route
+     * @param path    path of the route, e.g. "/rest/SmartCamera/:id"
+     * @param handler the actual handler
+     * @return the timed handler
+     */
+    public Handler<RoutingContext> timed(HttpMethod method, String path, Handler<RoutingContext> handler) {
+        RouteMetrics route = routes.computeIfAbsent(method + " " + path, key -> new RouteMetrics(method.name(), path));
+        return routingContext -> {
+            long start = System.nanoTime();
+            route.inFlight.increment();
+            routingContext.addBodyEndHandler(v -> {
+                route.inFlight.decrement();
+                route.histogram(routingContext.response().getStatusCode()).recordNanos(System.nanoTime() - start);
+            });
+            handler.handle(routingContext);
+        };
+    }
+
+    /**
+     * Wraps an auth handler so that the time until it either lets the request through or rejects it is recorded.
+     * {@link #authenticated(RoutingContext)} must be routed right after it.
+     *
+     * @param authHandler e.g. a BasicAuthHandler
+     * @return the timed auth handler
+     */
+    public Handler<RoutingContext> timedAuthentication(Handler<RoutingContext> authHandler) {
+        return routingContext -> {
+            long start = System.nanoTime();
+            routingContext.put(AUTHENTICATION_START, start);
+            routingContext.addBodyEndHandler(v -> {
+                // still there if the request never got past the auth handler
+                Long rejectedStart = routingContext.get(AUTHENTICATION_START);
+                if (rejectedStart != null) {
+                    authenticationRejected.recordNanos(System.nanoTime() - rejectedStart);
+                }
+            });
+            authHandler.handle(routingContext);
+        };
+    }
+
+    /**
+     * Route handler which records the time spent by the auth handler of {@link #timedAuthentication(Handler)}.
+     */
+    public void authenticated(RoutingContext routingContext) {
+        Long start = routingContext.remove(AUTHENTICATION_START);
+        if (start != null) {
+            authenticationAccepted.recordNanos(System.nanoTime() - start);
+        }
+        routingContext.next();
+    }
+
+    /**
+     * @param operation CrudService method name
+     * @return the histogram of the given operation, created on first use
+     */
+    public LatencyHistogram crudOperation(String operation) {
+        return crudOperations.computeIfAbsent(operation, key -> new LatencyHistogram());
+    }
+
+    public LatencyHistogram jsonEncoding() {
+        return jsonEncoding;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+
+        out.append("# HELP http_server_requests_seconds Latency of HTTP requests from the route handler until the response is written, authentication excluded\n");
+        out.append("# TYPE http_server_requests_seconds summary\n");
+        for (RouteMetrics route : routes.values()) {
+            for (int status = 0; status <= MAX_STATUS_CODE; status++) {
+                LatencyHistogram histogram = route.byStatus.get(status);
+                if (histogram != null) {
+                    String labels = "method=\"" + route.method + "\",route=\"" + escape(route.path) + "\",status=\"" + status + "\"";
+                    appendSummary(out, "http_server_requests_seconds", labels, histogram);
+                }
+            }
+        }
+
+        out.append("# HELP http_server_requests_in_flight HTTP requests being served\n");
+        out.append("# TYPE http_server_requests_in_flight gauge\n");
+        for (RouteMetrics route : routes.values()) {
+            out.append("http_server_requests_in_flight{method=\"").append(route.method)
+                    .append("\",route=\"").append(escape(route.path)).append("\"} ")
+                    .append(route.inFlight.sum()).append('\n');
+        }
+
+        out.append("# HELP http_server_authentication_seconds Time spent authenticating and authorising API requests\n");
+        out.append("# TYPE http_server_authentication_seconds summary\n");
+        appendSummary(out, "http_server_authentication_seconds", "outcome=\"accepted\"", authenticationAccepted);
+        appendSummary(out, "http_server_authentication_seconds", "outcome=\"rejected\"", authenticationRejected);
+
+        out.append("# HELP crud_service_seconds Latency of CrudService calls, measured on the worker thread\n");
+        out.append("# TYPE crud_service_seconds summary\n");
+        for (Map.Entry<String, LatencyHistogram> operation : crudOperations.entrySet()) {
+            appendSummary(out, "crud_service_seconds", "operation=\"" + escape(operation.getKey()) + "\"", operation.getValue());
+        }
+
+        out.append("# HELP json_encoding_seconds Time spent encoding response bodies to JSON\n");
+        out.append("# TYPE json_encoding_seconds summary\n");
+        appendSummary(out, "json_encoding_seconds", null, jsonEncoding);
+        return out.toString();
+    }
+
+    private static void appendSummary(StringBuilder out, String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels == null ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.quantileMicros(quantile))).append('\n');
+        }
+        String suffix = labels == null ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.sumMicros())).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000.0);
+    }
+
+    private String escape(String label) {
+        return escapedLabels.computeIfAbsent(label,
+                value -> value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+    }
+
+    /**
+     * Metrics of one route. Histograms are created for a status code when it is first returned.
+     */
+    private static final class RouteMetrics {
+
+        private final String method;
+        private final String path;
+        private final LongAdder inFlight = new LongAdder();
+        private final AtomicReferenceArray<LatencyHistogram> byStatus = new AtomicReferenceArray<>(MAX_STATUS_CODE + 1);
+
+        private RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+        }
+
+        private LatencyHistogram histogram(int status) {
+            int index = status < 0 || status > MAX_STATUS_CODE ? 0 : status;
+            LatencyHistogram histogram = byStatus.get(index);
+            if (histogram == null) {
+                byStatus.compareAndSet(index, null, new LatencyHistogram());
+                histogram = byStatus.get(index);
+            }
+            return histogram;
+        }
+    }
+}
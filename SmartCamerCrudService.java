@@ -1,39 +1,327 @@
 
 package com.tymoshenko.controller.repository;
 
-import com.tymoshenko.model.Whisky;
+import com.tymoshenko.model.SmartCamera;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Exposes CRUD API for Whisky entity.
+ * Exposes CRUD API for SmartCamera entity.
  *
  * @author Yakiv Tymoshenko
  * @since 15.03.2016
  */
 @Service
-public class SmartCameraCrudService implements CrudService<Whisky> {
+public class SmartCameraCrudService implements CrudService<SmartCamera> {
+
+    // Filterable attributes (REST/filter name -> entity field), every combination is backed by a DB index:
+    // domain[+state[+city]], state[+city], city and domain+city
+    public static final String FILTER_DOMAIN = "domain";
+    public static final String FILTER_STATE = "state";
+    public static final String FILTER_CITY = "city";
+
+    private static final Map<String, String> FILTERABLE_FIELDS;
+
+    static {
+        Map<String, String> fields = new HashMap<>();
+        fields.put(FILTER_DOMAIN, "DOMAIN");
+        fields.put(FILTER_STATE, "STATE");
+        fields.put(FILTER_CITY, "CITY");
+        FILTERABLE_FIELDS = Collections.unmodifiableMap(fields);
+    }
+
+    // Attributes a PATCH may update (REST/JSON name -> entity field)
+    public static final String PATCH_DOMAIN = FILTER_DOMAIN;
+    public static final String PATCH_STATE = FILTER_STATE;
+    public static final String PATCH_CITY = FILTER_CITY;
+    public static final String PATCH_LATITUDE = "latitude";
+    public static final String PATCH_LONGITUDE = "longitude";
+    public static final String PATCH_DEVICE_TYPE = "deviceType";
+
+    private static final Map<String, String> PATCHABLE_FIELDS;
+
+    static {
+        Map<String, String> fields = new HashMap<>();
+        fields.put(PATCH_DOMAIN, "DOMAIN");
+        fields.put(PATCH_STATE, "STATE");
+        fields.put(PATCH_CITY, "CITY");
+        fields.put(PATCH_LATITUDE, "latitude");
+        fields.put(PATCH_LONGITUDE, "longitude");
+        fields.put(PATCH_DEVICE_TYPE, "deviceType");
+        PATCHABLE_FIELDS = Collections.unmodifiableMap(fields);
+    }
+
+    // Longest IN list of one readMany query, longer lists are split
+    public static final int MAX_IN_LIST_SIZE = 1000;
+
+    private static final String ID_FIELD = "deviceID";
+    private static final String VERSION_FIELD = "version";
+
+    @PersistenceContext
+    private EntityManager entityManager;
 
     @Autowired
-    private SmartCameraRepository whiskyRepository;
+    private SmartCameraRepository smartcameraRepository;
 
-    public  save(SmartCamera smartcamera) {
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    public SmartCamera save(SmartCamera smartcamera) {
         return smartcameraRepository.saveAndFlush(smartcamera);
     }
 
+    /**
+     * One UPDATE statement which sets only the given attributes and increments the version, guarded by the expected
+     * version if there is one, followed by reading the updated row in the same transaction. Nothing is read before
+     * the update and concurrent patches can not overwrite each other unnoticed.
+     */
+    public SmartCamera patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        Map<String, Object> values = patchValues(changes);
+        StringBuilder jpql = new StringBuilder("UPDATE SmartCamera c SET c.")
+                .append(VERSION_FIELD).append(" = c.").append(VERSION_FIELD).append(" + 1");
+        for (String name : values.keySet()) {
+            String field = PATCHABLE_FIELDS.get(name);
+            jpql.append(", c.").append(field).append(" = :").append(field);
+        }
+        jpql.append(" WHERE c.").append(ID_FIELD).append(" = :id");
+        if (expectedVersion != null) {
+            jpql.append(" AND c.").append(VERSION_FIELD).append(" = :version");
+        }
+        return transactionTemplate().execute(status -> {
+            Query update = entityManager.createQuery(jpql.toString()).setParameter("id", id);
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                update.setParameter(PATCHABLE_FIELDS.get(value.getKey()), value.getValue());
+            }
+            if (expectedVersion != null) {
+                update.setParameter("version", expectedVersion);
+            }
+            int updated = update.executeUpdate();
+            SmartCamera patched = entityManager.find(SmartCamera.class, id);
+            if (updated == 0 && patched != null) {
+                throw new OptimisticLockingFailureException("SmartCamera " + id + " has version " + patched.getVersion()
+                        + ", expected " + expectedVersion);
+            }
+            if (patched != null) {
+                // the returned entity must not be tied to the persistence context of this transaction
+                entityManager.detach(patched);
+            }
+            return patched;
+        });
+    }
+
+    /**
+     * Applies a patch to a copy of a camera, for stores which do not update in place.
+     *
+     * @return a copy of smartcamera with the changes applied and the version incremented
+     * @throws IllegalArgumentException if an attribute can not be updated or gets a value of the wrong type
+     */
+    public static SmartCamera patched(SmartCamera smartcamera, Map<String, Object> changes) {
+        SmartCamera patched = new SmartCamera(smartcamera.getId(), smartcamera.getVersion() + 1, smartcamera);
+        for (Map.Entry<String, Object> value : patchValues(changes).entrySet()) {
+            switch (value.getKey()) {
+                case PATCH_DOMAIN:
+                    patched.setDomain((String) value.getValue());
+                    break;
+                case PATCH_STATE:
+                    patched.setState((String) value.getValue());
+                    break;
+                case PATCH_CITY:
+                    patched.setCity((String) value.getValue());
+                    break;
+                case PATCH_LATITUDE:
+                    patched.setLatitude((Double) value.getValue());
+                    break;
+                case PATCH_LONGITUDE:
+                    patched.setLongitude((Double) value.getValue());
+                    break;
+                default:
+                    patched.setDeviceType((String) value.getValue());
+            }
+        }
+        return patched;
+    }
+
     public SmartCamera readOne(Long id) {
         return smartcameraRepository.findOne(id);
     }
 
+    /**
+     * One "WHERE deviceID IN (...)" query per {@value #MAX_IN_LIST_SIZE} ids, answered from the primary key index.
+     */
+    public List<SmartCamera> readMany(Collection<Long> ids) {
+        List<Long> idList = new ArrayList<>(ids);
+        List<SmartCamera> found = new ArrayList<>(idList.size());
+        for (int from = 0; from < idList.size(); from += MAX_IN_LIST_SIZE) {
+            found.addAll(smartcameraRepository.findAll(idList.subList(from, Math.min(idList.size(), from + MAX_IN_LIST_SIZE))));
+        }
+        return found;
+    }
+
     public List<SmartCamera> readAll() {
         return smartcameraRepository.findAll();
     }
 
+    /**
+     * Keyset (cursor) pagination: the next page starts right after the last seen deviceID,
+     * so every page is an index range scan instead of OFFSET skipping.
+     * Only the supplied filters end up in the WHERE clause, so MySQL can pick the matching index.
+     * Runs in a read-only transaction, which a replica may answer.
+     */
+    public List<SmartCamera> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return readOnlyTransactionTemplate().execute(status -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<SmartCamera> query = builder.createQuery(SmartCamera.class);
+            Root<SmartCamera> root = query.from(SmartCamera.class);
+            List<Predicate> predicates = filterPredicates(builder, root, filters);
+            if (afterId != null) {
+                predicates.add(builder.greaterThan(root.<Long>get(ID_FIELD), afterId));
+            }
+            query.select(root)
+                    .where(predicates.toArray(new Predicate[predicates.size()]))
+                    .orderBy(builder.asc(root.get(ID_FIELD)));
+            return entityManager.createQuery(query).setMaxResults(limit).getResultList();
+        });
+    }
+
+    public long count(Map<String, String> filters) {
+        return readOnlyTransactionTemplate().execute(status -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<Long> query = builder.createQuery(Long.class);
+            Root<SmartCamera> root = query.from(SmartCamera.class);
+            List<Predicate> predicates = filterPredicates(builder, root, filters);
+            query.select(builder.count(root)).where(predicates.toArray(new Predicate[predicates.size()]));
+            return entityManager.createQuery(query).getSingleResult();
+        });
+    }
+
+    /**
+     * Inserts/updates the whole list in one transaction and a single flush, so Hibernate sends the inserts
+     * as JDBC batches (hibernate.jdbc.batch_size) instead of one round trip per entity.
+     * If the transaction fails, the entities are retried one by one to find out which of them are bad.
+     */
+    public List<BatchResult<SmartCamera>> saveAll(List<SmartCamera> smartcameras) {
+        List<BatchResult<SmartCamera>> results = new ArrayList<>(smartcameras.size());
+        try {
+            List<SmartCamera> saved = transactionTemplate().execute(status -> {
+                List<SmartCamera> entities = smartcameraRepository.save(smartcameras);
+                smartcameraRepository.flush();
+                return entities;
+            });
+            for (SmartCamera smartcamera : saved) {
+                results.add(BatchResult.succeeded(smartcamera));
+            }
+        } catch (RuntimeException batchFailure) {
+            results.clear();
+            if (isConnectionFailure(batchFailure)) {
+                // retrying record by record would only wait for the pool timeout once per record
+                for (SmartCamera smartcamera : smartcameras) {
+                    results.add(BatchResult.failed(smartcamera, batchFailure));
+                }
+                return results;
+            }
+            // a data error (constraint violation, stale version, invalid value) of some record, find out which one
+            for (SmartCamera smartcamera : smartcameras) {
+                try {
+                    results.add(BatchResult.succeeded(save(smartcamera)));
+                } catch (RuntimeException e) {
+                    results.add(BatchResult.failed(smartcamera, e));
+                }
+            }
+        }
+        return results;
+    }
+
     public void delete(Long id) {
         smartcameraRepository.delete(id);
     }
+
+    // the database or the pool is not available, as opposed to an error caused by the data of a record
+    private static boolean isConnectionFailure(Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof CannotCreateTransactionException
+                    || e instanceof DataAccessResourceFailureException
+                    || e instanceof TransientDataAccessResourceException
+                    || e instanceof NonTransientDataAccessResourceException
+                    || e instanceof RecoverableDataAccessException
+                    || e instanceof SQLTransientConnectionException
+                    || e instanceof SQLNonTransientConnectionException
+                    || e instanceof SQLRecoverableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // checks the attribute names and converts JSON numbers to the types of the entity fields
+    private static Map<String, Object> patchValues(Map<String, Object> changes) {
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, Object> change : changes.entrySet()) {
+            String name = change.getKey();
+            Object value = change.getValue();
+            if (!PATCHABLE_FIELDS.containsKey(name)) {
+                throw new IllegalArgumentException("Can not update " + name);
+            }
+            if (PATCH_LATITUDE.equals(name) || PATCH_LONGITUDE.equals(name)) {
+                if (value != null && !(value instanceof Number)) {
+                    throw new IllegalArgumentException(name + " must be a number");
+                }
+                values.put(name, value == null ? null : ((Number) value).doubleValue());
+            } else {
+                if (value != null && !(value instanceof String)) {
+                    throw new IllegalArgumentException(name + " must be a string");
+                }
+                values.put(name, value);
+            }
+        }
+        return values;
+    }
+
+    private static List<Predicate> filterPredicates(CriteriaBuilder builder, Root<SmartCamera> root, Map<String, String> filters) {
+        List<Predicate> predicates = new ArrayList<>();
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            String field = FILTERABLE_FIELDS.get(filter.getKey());
+            if (field == null) {
+                throw new IllegalArgumentException("Can not filter on " + filter.getKey());
+            }
+            predicates.add(builder.equal(root.get(field), filter.getValue()));
+        }
+        return predicates;
+    }
+
+    private TransactionTemplate transactionTemplate() {
+        return new TransactionTemplate(transactionManager);
+    }
+
+    private TransactionTemplate readOnlyTransactionTemplate() {
+        TransactionTemplate template = transactionTemplate();
+        template.setReadOnly(true);
+        return template;
+    }
 }
 
 
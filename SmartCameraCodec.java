@@ -0,0 +1,58 @@
+package com.tymoshenko.controller.repository;
+
+import com.tymoshenko.model.SmartCamera;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Compact binary form of a SmartCamera for {@link InMemoryCrudService}: the version, a presence byte per nullable
+ * field, strings as modified UTF-8, coordinates as doubles.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class SmartCameraCodec implements InMemoryCrudService.Codec<SmartCamera> {
+
+    @Override
+    public void write(SmartCamera smartcamera, DataOutput out) throws IOException {
+        out.writeLong(smartcamera.getVersion());
+        writeString(smartcamera.getDomain(), out);
+        writeString(smartcamera.getState(), out);
+        writeString(smartcamera.getCity(), out);
+        writeDouble(smartcamera.getLatitude(), out);
+        writeDouble(smartcamera.getLongitude(), out);
+        writeString(smartcamera.getDeviceType(), out);
+    }
+
+    @Override
+    public SmartCamera read(long id, DataInput in) throws IOException {
+        long version = in.readLong();
+        SmartCamera smartcamera = new SmartCamera(readString(in), readString(in), readString(in),
+                readDouble(in), readDouble(in), readString(in));
+        return new SmartCamera(id, version, smartcamera);
+    }
+
+    private static void writeString(String value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeDouble(Double value, DataOutput out) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static Double readDouble(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readDouble() : null;
+    }
+}
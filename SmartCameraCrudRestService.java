@@ -1,14 +1,36 @@
 
 package com.tymoshenko.controller.verticle;
 
+import com.tymoshenko.controller.auth.CachingAuthProvider;
+import com.tymoshenko.controller.context.ConnectionPoolMetrics;
+import com.tymoshenko.controller.context.ReplicaRoutingDataSource;
+import com.tymoshenko.controller.export.SnapshotExporter;
+import com.tymoshenko.controller.metrics.RequestMetrics;
+import com.tymoshenko.controller.metrics.StartupTimings;
+import com.tymoshenko.controller.repository.CachingCrudService;
+import com.tymoshenko.controller.repository.CoalescingCrudService;
+import com.tymoshenko.controller.repository.CrudExecutors;
 import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.EventPublishingCrudService;
+import com.tymoshenko.controller.repository.GeoIndexingCrudService;
+import com.tymoshenko.controller.repository.SmartCameraCodec;
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.tymoshenko.controller.repository.TimedCrudService;
+import com.tymoshenko.controller.repository.WorkerAsyncCrudService;
+import com.tymoshenko.controller.telemetry.DeviceStatusTable;
+import com.tymoshenko.controller.telemetry.HeartbeatStore;
 import com.tymoshenko.model.SmartCamera;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.auth.AuthProvider;
 import io.vertx.ext.auth.shiro.ShiroAuth;
 import io.vertx.ext.auth.shiro.ShiroAuthRealmType;
 import io.vertx.ext.web.Router;
@@ -19,9 +41,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Creates a Router object which routes HTTP requests to first matching URL.
@@ -31,29 +70,179 @@ import java.util.List;
  * @since 15.03.2016
  */
 @Service
-public class WhiskyCrudRestService {
+public class SmartCameraCrudRestService {
 
     // REST endpoint URLs
     public static final String REST_SMARTCAMERA_URL = "/rest/SmartCamera";
     public static final String REST_SMARTCAMERA_URL_WITH_ID = REST_SMARTCAMERA_URL + "/:id";
+    public static final String REST_SMARTCAMERA_BULK_URL = REST_SMARTCAMERA_URL + "/_bulk";
+    public static final String REST_SMARTCAMERA_BATCH_URL = REST_SMARTCAMERA_URL + "/_batch";
+    public static final String REST_SMARTCAMERA_NEAREST_URL = REST_SMARTCAMERA_URL + "/_nearest";
+    public static final String REST_SMARTCAMERA_WITHIN_URL = REST_SMARTCAMERA_URL + "/_within";
+    public static final String REST_SMARTCAMERA_CHANGES_URL = REST_SMARTCAMERA_URL + "/_changes";
+    public static final String REST_SMARTCAMERA_SNAPSHOT_URL = REST_SMARTCAMERA_URL + "/_snapshot";
+    public static final String HEARTBEAT_PATH_SUFFIX = "/heartbeat";
+    public static final String REST_SMARTCAMERA_HEARTBEAT_URL = REST_SMARTCAMERA_URL_WITH_ID + HEARTBEAT_PATH_SUFFIX;
+
+    // Monitoring endpoint URLs
+    public static final String METRICS_DATASOURCE_URL = "/metrics/datasource";
+    public static final String METRICS_CACHE_URL = "/metrics/cache";
+    public static final String METRICS_ADMISSION_URL = "/metrics/admission";
+    public static final String METRICS_STARTUP_URL = "/metrics/startup";
+    public static final String METRICS_PROMETHEUS_URL = "/metrics";
 
     // HTTP req/res constants
     public static final String CONTENT_TYPE = "content-type";
     public static final String APPLICATION_JSON_CHARSET_UTF_8 = "application/json; charset=utf-8";
     public static final String TEXT_HTML = "text/html";
+    public static final String LINK = "link";
+    public static final String X_TOTAL_COUNT = "x-total-count";
+    public static final String AUTHORIZATION = "authorization";
+    public static final String COOKIE = "cookie";
+    public static final String ETAG = "etag";
+    public static final String IF_NONE_MATCH = "if-none-match";
+    public static final String IF_MATCH = "if-match";
+    public static final String UPGRADE = "upgrade";
+    public static final String WEBSOCKET = "websocket";
+    public static final String CONTENT_ENCODING = "content-encoding";
+    public static final String IDENTITY = "identity";
+    public static final String CONTENT_DISPOSITION = "content-disposition";
+    public static final String RANGE = "range";
+    public static final String IF_RANGE = "if-range";
+    public static final String ACCEPT_RANGES = "accept-ranges";
+    public static final String CONTENT_RANGE = "content-range";
+    public static final String BYTES = "bytes";
+    public static final String APPLICATION_GZIP = "application/gzip";
+    public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+
+    // Response encoding: compact JSON unless ?pretty=true
+    public static final String PARAM_PRETTY = "pretty";
+    public static final String CONF_JSON_CACHE_MAX_SIZE = "http.json-cache.max-size";
+    public static final String CONF_JSON_CACHE_TTL_SECONDS = "http.json-cache.ttl-seconds";
+    public static final long DEFAULT_JSON_CACHE_MAX_SIZE = 100000L;
+    public static final long DEFAULT_JSON_CACHE_TTL_SECONDS = 300L;
+
+    // Paging of the list endpoint
+    public static final String PARAM_LIMIT = "limit";
+    public static final String PARAM_AFTER = "after";
+    public static final String PARAM_STREAM = "stream";
+    public static final int DEFAULT_PAGE_LIMIT = 100;
+    public static final int MAX_PAGE_LIMIT = 1000;
+    public static final int STREAM_CHUNK_SIZE = 500;
+    public static final String[] FILTER_PARAMS = {
+            SmartCameraCrudService.FILTER_DOMAIN, SmartCameraCrudService.FILTER_STATE, SmartCameraCrudService.FILTER_CITY};
+
+    // Batch lookup by id
+    public static final String PARAM_IDS = "ids";
+    public static final int MAX_BATCH_IDS = 1000;
+
+    // Geo queries
+    public static final String PARAM_LATITUDE = "lat";
+    public static final String PARAM_LONGITUDE = "lon";
+    public static final String PARAM_K = "k";
+    public static final String PARAM_RADIUS = "radius";
+    public static final String PARAM_MIN_LATITUDE = "minLat";
+    public static final String PARAM_MIN_LONGITUDE = "minLon";
+    public static final String PARAM_MAX_LATITUDE = "maxLat";
+    public static final String PARAM_MAX_LONGITUDE = "maxLon";
+    public static final int DEFAULT_NEAREST_K = 10;
+    public static final double MAX_GEO_RADIUS_METERS = 500_000.0;
+    public static final double MAX_GEO_BOX_SPAN_DEGREES = 10.0;
+
+    // Bulk ingestion
+    public static final String CONF_BULK_BATCH_SIZE = "crud.bulk.batch-size";
+    public static final int DEFAULT_BULK_BATCH_SIZE = 500;
+
+    // Registry export, see SnapshotExporter
+    public static final String PARAM_FORMAT = "format";
+    public static final String CONF_EXPORT_ENABLED = "export.enabled";
+    public static final String CONF_EXPORT_DIR = "export.dir";
+    public static final String CONF_EXPORT_INTERVAL_SECONDS = "export.interval-seconds";
+    public static final String DEFAULT_EXPORT_DIR = "smartcamera-export";
+    public static final long DEFAULT_EXPORT_INTERVAL_SECONDS = 300L;
+
+    // Heartbeats
+    public static final String HEARTBEAT_DEVICE_ID = "deviceId";
+    public static final String HEARTBEAT_TIMESTAMP = "timestamp";
+    public static final String HEARTBEAT_STATUS = "status";
+    public static final String HEARTBEAT_TEMPERATURE = "temperature";
+
+    // Authentication
+    public static final String ROLE_ADMIN = "role:admin";
+    public static final String CONF_AUTH_CACHE_MAX_SIZE = "auth.cache.max-size";
+    public static final String CONF_AUTH_CACHE_TTL_SECONDS = "auth.cache.ttl-seconds";
+    public static final String CONF_STATELESS_API = "http.stateless-api";
+    public static final long DEFAULT_AUTH_CACHE_MAX_SIZE = 10000L;
+    public static final long DEFAULT_AUTH_CACHE_TTL_SECONDS = 60L;
 
     // HTTP status codes
     public static final int STATUS_CODE_OK = 200;
     public static final int STATUS_CODE_OK_CREATED = 201;
     public static final int STATUS_CODE_OK_NO_CONTENT = 204;
+    public static final int STATUS_CODE_PARTIAL_CONTENT = 206;
+    public static final int STATUS_CODE_NOT_MODIFIED = 304;
     public static final int STATUS_CODE_BAD_REQUEST = 400;
     public static final int STATUS_CODE_NOT_FOUND = 404;
+    public static final int STATUS_CODE_CONFLICT = 409;
+    public static final int STATUS_CODE_PRECONDITION_FAILED = 412;
+    public static final int STATUS_CODE_RANGE_NOT_SATISFIABLE = 416;
+    public static final int STATUS_CODE_INTERNAL_SERVER_ERROR = 500;
+    public static final int STATUS_CODE_SERVICE_UNAVAILABLE = 503;
 
     private static final Logger LOG = LoggerFactory.getLogger(SmartCameraCrudRestService.class);
 
     @Autowired
     private CrudService<SmartCamera> smartcameraCrudService;
 
+    @Autowired
+    private ConnectionPoolMetrics connectionPoolMetrics;
+
+    // none with crud.engine=memory
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Autowired
+    private RequestMetrics requestMetrics;
+
+    @Autowired
+    private CachingCrudService<SmartCamera> cachingCrudService;
+
+    @Autowired
+    private CoalescingCrudService<SmartCamera> coalescingCrudService;
+
+    @Autowired
+    private GeoIndexingCrudService<SmartCamera> geoIndexingCrudService;
+
+    @Autowired
+    private HeartbeatStore heartbeatStore;
+
+    // This bean is shared by every HttpServerVerticle instance, so is the state below.
+    // It is created together with the first router and only read afterwards.
+
+    // Runs smartcameraCrudService off the event loop
+    private volatile WorkerAsyncCrudService<SmartCamera> asyncCrudService;
+
+    // Number of cameras persisted per saveAll call of the bulk endpoint
+    private volatile int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+
+    // Verifies Basic auth credentials, successful authentications are cached for a short time
+    private volatile CachingAuthProvider authProvider;
+
+    // Encoded cameras and ETags, invalidated by every write of asyncCrudService
+    private volatile JsonResponseCache<SmartCamera> responseCache;
+
+    // Files of the whole registry, rebuilt in the background; null if the export is disabled
+    private volatile SnapshotExporter<SmartCamera> snapshotExporter;
+
+    // In-flight limits of the CRUD routes, global to the server
+    private volatile AdmissionControl admissionControl;
+
+    // Last writes of the sessions, null unless reads are routed to replicas
+    private volatile ReadYourWrites readYourWrites;
+
+    // Requests with credentials and without cookies get no cookie/session handling
+    private volatile boolean statelessApi = true;
+
     /**
      * Creates a Router which routs REST (HTTP) requests to the first matching URL.
      *
@@ -64,12 +253,37 @@ public class WhiskyCrudRestService {
      * Routers are also used for routing failures.
      */
     public Router createHttpRequestRouter(Vertx vertx) {
+        return createHttpRequestRouter(vertx, new JsonObject());
+    }
+
+    /**
+     * Creates a Router which routs REST (HTTP) requests to the first matching URL.
+     *
+     * @param vertx  HttpServer Vertex
+     * @param config the verticle configuration, see my-application-conf.json
+     * @return a REST request router.
+     */
+    public Router createHttpRequestRouter(Vertx vertx, JsonObject config) {
+        initSharedState(vertx, config);
+
         Router router = Router.router(vertx);
+        // camera changes of this verticle's subscribers, consumed on this verticle's event loop
+        ChangeFeed changeFeed = new ChangeFeed(vertx, config);
 
-        // We need cookies, sessions and request bodies
-        router.route().handler(CookieHandler.create());
-        router.route().handler(BodyHandler.create());
-        router.route().handler(SessionHandler.create(LocalSessionStore.create(vertx)));
+        // We need cookies, sessions and request bodies.
+        // Stateless API clients send their credentials with every request, they get neither cookies nor a session.
+        router.route().handler(skipIfStateless(CookieHandler.create()));
+        // The bulk endpoint parses its body while it streams in, everything else gets the whole body buffered
+        BodyHandler bodyHandler = BodyHandler.create();
+        router.route().handler(routingContext -> {
+            if (isBulkRequest(routingContext)) {
+                routingContext.request().pause();
+                routingContext.next();
+            } else {
+                bodyHandler.handle(routingContext);
+            }
+        });
+        router.route().handler(skipIfStateless(SessionHandler.create(LocalSessionStore.create(vertx))));
 
         // Bind "/" to our hello message.
         router.route("/").handler(routingContext -> {
@@ -80,45 +294,80 @@ public class WhiskyCrudRestService {
                     .end(_helloMessage);
         });
 
-        // Simple auth service which uses a properties file for user/role info
-        AuthProvider authProvider = ShiroAuth.create(vertx, ShiroAuthRealmType.PROPERTIES, new JsonObject());
-        // protect the API
-        router.route(REST_SMARTCAMERA_URL + "/*").handler(BasicAuthHandler.create(authProvider).addAuthority("role:admin"));
+        // protect the API, the time spent in authentication is recorded apart from the route handlers
+        router.route(REST_SMARTCAMERA_URL + "/*").handler(requestMetrics.timedAuthentication(
+                BasicAuthHandler.create(authProvider).addAuthority(ROLE_ADMIN)));
+        router.route(REST_SMARTCAMERA_URL + "/*").handler(requestMetrics::authenticated);
+        // shed load before it reaches the CrudService, reads and writes are limited separately
+        router.route(REST_SMARTCAMERA_URL + "/*").handler(routingContext -> {
+            if (isAdmissionExempt(routingContext)) {
+                routingContext.next();
+            } else {
+                admissionControl.handle(routingContext);
+            }
+        });
+        // reads which may go to a replica see the writes of their own session
+        if (readYourWrites != null) {
+            router.route(REST_SMARTCAMERA_URL + "/*").handler(readYourWrites::handle);
+        }
+        // metrics reveal the pool, cache and load of the service, they need the same credentials as the API
+        router.route(METRICS_PROMETHEUS_URL).handler(BasicAuthHandler.create(authProvider).addAuthority(ROLE_ADMIN));
+        router.route(METRICS_PROMETHEUS_URL + "/*").handler(BasicAuthHandler.create(authProvider).addAuthority(ROLE_ADMIN));
         // We need a user session handler too to make sure the user is stored in the session between requests
-        router.route().handler(UserSessionHandler.create(authProvider));
+        router.route().handler(skipIfStateless(UserSessionHandler.create(authProvider)));
 
 
         // Register REST methods for CRUD operations
         // Create
-        router.post(REST_SMARTCAMERA_URL).handler(this::addOne);
+        router.post(REST_SMARTCAMERA_URL).handler(requestMetrics.timed(HttpMethod.POST, REST_SMARTCAMERA_URL, this::addOne));
+        // Create many (JSON array or NDJSON)
+        router.post(REST_SMARTCAMERA_BULK_URL).handler(requestMetrics.timed(HttpMethod.POST, REST_SMARTCAMERA_BULK_URL, this::addMany));
+        // Read many by id (registered before "/:id" which would match it too)
+        router.get(REST_SMARTCAMERA_BATCH_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_BATCH_URL, this::getMany));
+        // Geo queries, served from the in-memory index (registered before "/:id" which would match them too)
+        router.get(REST_SMARTCAMERA_NEAREST_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_NEAREST_URL, this::getNearest));
+        router.get(REST_SMARTCAMERA_WITHIN_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_WITHIN_URL, this::getWithin));
+        // Download of the whole registry, from the latest export file
+        router.get(REST_SMARTCAMERA_SNAPSHOT_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_SNAPSHOT_URL, this::getSnapshot));
+        // Change feed, Server-Sent Events or WebSocket (not timed, the requests last as long as the subscription)
+        router.get(REST_SMARTCAMERA_CHANGES_URL).handler(routingContext -> subscribeToChanges(routingContext, changeFeed));
+        // Heartbeats, appended to the heartbeat log instead of updating the camera in the DB
+        router.post(REST_SMARTCAMERA_HEARTBEAT_URL).handler(requestMetrics.timed(HttpMethod.POST, REST_SMARTCAMERA_HEARTBEAT_URL, this::addHeartbeat));
+        router.get(REST_SMARTCAMERA_HEARTBEAT_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_HEARTBEAT_URL, this::getHeartbeat));
         // Read one
-        router.get(REST_SMARTCAMERA_URL_WITH_ID).handler(this::getOne);
+        router.get(REST_SMARTCAMERA_URL_WITH_ID).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_URL_WITH_ID, this::getOne));
         // Read all
-        router.get(REST_SMARTCAMERA_URL).handler(this::getAll);
+        router.get(REST_SMARTCAMERA_URL).handler(requestMetrics.timed(HttpMethod.GET, REST_SMARTCAMERA_URL, this::getAll));
         // Update
-        router.put(REST_SMARTCAMERA_URL_WITH_ID).handler(this::updateOne);
+        router.put(REST_SMARTCAMERA_URL_WITH_ID).handler(requestMetrics.timed(HttpMethod.PUT, REST_SMARTCAMERA_URL_WITH_ID, this::updateOne));
+        // Partial update, a single UPDATE statement guarded by If-Match
+        router.patch(REST_SMARTCAMERA_URL_WITH_ID).handler(requestMetrics.timed(HttpMethod.PATCH, REST_SMARTCAMERA_URL_WITH_ID, this::patchOne));
         // Delete
-        router.delete(REST_SMARTCAMERA_URL_WITH_ID).handler(this::deleteOne);
+        router.delete(REST_SMARTCAMERA_URL_WITH_ID).handler(requestMetrics.timed(HttpMethod.DELETE, REST_SMARTCAMERA_URL_WITH_ID, this::deleteOne));
+
+        // JDBC connection pool occupancy and wait times
+        router.get(METRICS_DATASOURCE_URL).handler(this::getDataSourceMetrics);
+        // SmartCamera and authentication cache hit/miss/eviction counters
+        router.get(METRICS_CACHE_URL).handler(this::getCacheMetrics);
+        // Adaptive in-flight limits and rejections
+        router.get(METRICS_ADMISSION_URL).handler(this::getAdmissionMetrics);
+        // Start-up phases and the slowest beans
+        router.get(METRICS_STARTUP_URL).handler(this::getStartupMetrics);
+        // Latency/throughput of the routes above, Prometheus text format
+        router.get(METRICS_PROMETHEUS_URL).handler(this::getPrometheusMetrics);
 
         return router;
     }
 
     /**
-     * Create an Whisky entity.
+     * Create a SmartCamera entity.
      *
      * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
      */
     private void addOne(RoutingContext routingContext) {
-        final Whisky whisky;
+        final SmartCamera smartcamera;
         try {
             smartcamera = Json.decodeValue(routingContext.getBodyAsString(), SmartCamera.class);
-
-            smartcameraCrudService.save(whisky);
-
-            routingContext.response()
-                    .setStatusCode(STATUS_CODE_OK_CREATED)
-                    .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
-                    .end(Json.encodePrettily(whisky));
         } catch (DecodeException e) {
             LOG.error(e.getLocalizedMessage());
             routingContext.response()
@@ -127,45 +376,516 @@ public class WhiskyCrudRestService {
                     .write("Malformed SmartCamera object")
                     .setStatusCode(STATUS_CODE_BAD_REQUEST)
                     .end();
+            return;
         }
+        asyncCrudService.save(smartcamera).setHandler(result -> {
+            if (result.failed()) {
+                endWithFailure(routingContext, result.cause());
+                return;
+            }
+            routingContext.response()
+                    .setStatusCode(STATUS_CODE_OK_CREATED)
+                    .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                    .end(toJson(routingContext, result.result()));
+        });
+    }
+
+    /**
+     * Create many SmartCamera entities from a JSON array or NDJSON body, see {@link BulkIngestion}.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void addMany(RoutingContext routingContext) {
+        new BulkIngestion(routingContext, asyncCrudService, bulkBatchSize).start();
     }
 
     /**
-     * Get a Whisky by ID.
+     * Get a SmartCamera by ID.
      * Should provide an ID in the request URL.
+     * The compact JSON of a camera is cached until the camera is written, together with its ETag.
+     * A request with a matching If-None-Match header is answered with 304 from that cache.
      *
      * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
      */
     private void getOne(RoutingContext routingContext) {
         Long id = getSmartCameraId(routingContext);
-        if (id != null) {
-            SmartCamera smartcamera = smartcameraCrudService.readOne(id);
-            if (smartcamera == null) {
-                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("SmartcCamera not found for id=" + id);
+        if (id == null) {
+            return;
+        }
+        boolean pretty = isPretty(routingContext);
+        JsonResponseCache.Encoded cached = pretty ? null : responseCache.get(id);
+        if (cached != null) {
+            endWithEncoded(routingContext, cached);
+            return;
+        }
+        long generation = responseCache.generation();
+        asyncCrudService.readOne(id).setHandler(result -> {
+            if (result.failed()) {
+                endWithFailure(routingContext, result.cause());
+            } else if (result.result() == null) {
+                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("SmartCamera not found for id=" + id);
+            } else if (pretty) {
+                routingContext.response()
+                        .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                        .end(toJson(routingContext, result.result()));
             } else {
+                JsonResponseCache.Encoded encoded = encode(result.result());
+                responseCache.put(result.result(), encoded, generation);
+                endWithEncoded(routingContext, encoded);
+            }
+        });
+    }
+
+    /**
+     * Get many SmartCameras by ID with one request, e.g. GET /rest/SmartCamera/_batch?ids=1,2,3
+     * (at most {@value #MAX_BATCH_IDS} ids, repeating the parameter works too).
+     * Returns a JSON array of the cameras found, in the order of the ids; unknown ids are skipped.
+     * Cameras in the JSON cache are not read again, the others are read with one IN query.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getMany(RoutingContext routingContext) {
+        Set<Long> ids = getSmartCameraIds(routingContext);
+        if (ids == null) {
+            return;
+        }
+        boolean pretty = isPretty(routingContext);
+        Map<Long, JsonResponseCache.Encoded> encodings = new HashMap<>();
+        List<Long> missing = new ArrayList<>();
+        for (Long id : ids) {
+            JsonResponseCache.Encoded cached = pretty ? null : responseCache.get(id);
+            if (cached == null) {
+                missing.add(id);
+            } else {
+                encodings.put(id, cached);
+            }
+        }
+        if (missing.isEmpty()) {
+            endWithEncodedArray(routingContext, ids, encodings);
+            return;
+        }
+        long generation = responseCache.generation();
+        asyncCrudService.readMany(missing).setHandler(result -> {
+            if (result.failed()) {
+                endWithFailure(routingContext, result.cause());
+                return;
+            }
+            if (pretty) {
+                Map<Long, SmartCamera> found = new HashMap<>();
+                for (SmartCamera smartcamera : result.result()) {
+                    found.put(smartcamera.getId(), smartcamera);
+                }
+                List<SmartCamera> smartCameraList = new ArrayList<>(found.size());
+                for (Long id : ids) {
+                    if (found.containsKey(id)) {
+                        smartCameraList.add(found.get(id));
+                    }
+                }
                 routingContext.response()
                         .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
-                        .end(Json.encodePrettily(whisky));
+                        .end(toJson(routingContext, smartCameraList));
+                return;
             }
+            for (SmartCamera smartcamera : result.result()) {
+                JsonResponseCache.Encoded encoded = encode(smartcamera);
+                responseCache.put(smartcamera, encoded, generation);
+                encodings.put(smartcamera.getId(), encoded);
+            }
+            endWithEncodedArray(routingContext, ids, encodings);
+        });
+    }
+
+    /**
+     * Download every SmartCamera from the latest export, see {@link SnapshotExporter}.
+     * format=ndjson (default) is gzip compressed NDJSON, format=binary the compact binary form.
+     * The file is sent as is (zero-copy where the platform allows it), a single byte range (Range, If-Range) is
+     * supported so interrupted downloads can be resumed. The ETag changes with every export.
+     * Answered with 503 until the first export after startup is complete.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getSnapshot(RoutingContext routingContext) {
+        HttpServerResponse response = routingContext.response();
+        if (snapshotExporter == null) {
+            response.setStatusCode(STATUS_CODE_NOT_FOUND).end("Registry export is disabled.");
+            return;
+        }
+        SnapshotExporter.Snapshot snapshot = snapshotExporter.latest();
+        if (snapshot == null) {
+            response.setStatusCode(STATUS_CODE_SERVICE_UNAVAILABLE)
+                    .putHeader(AdmissionControl.RETRY_AFTER, "10")
+                    .end("Registry export is in progress, try again later.");
+            return;
+        }
+        String format = routingContext.request().getParam(PARAM_FORMAT);
+        if (format == null) {
+            format = SnapshotExporter.NDJSON;
+        }
+        boolean binary = SnapshotExporter.BINARY.equals(format);
+        if (!binary && !SnapshotExporter.NDJSON.equals(format)) {
+            response.setStatusCode(STATUS_CODE_BAD_REQUEST).end("format must be ndjson or binary");
+            return;
+        }
+        String etag = snapshot.getETag();
+        response.putHeader(ETAG, etag).putHeader(ACCEPT_RANGES, BYTES);
+        if (JsonResponseCache.matches(routingContext.request().getHeader(IF_NONE_MATCH), etag)) {
+            response.setStatusCode(STATUS_CODE_NOT_MODIFIED).end();
+            return;
+        }
+        response.putHeader(CONTENT_TYPE, binary ? APPLICATION_OCTET_STREAM : APPLICATION_GZIP)
+                .putHeader(CONTENT_DISPOSITION, "attachment; filename=\"smartcameras" + (binary ? ".bin" : ".ndjson.gz") + "\"")
+                // the file is compressed or binary already, and range offsets are offsets in the file
+                .putHeader(CONTENT_ENCODING, IDENTITY);
+        String file = snapshot.getFile(format);
+        long length = snapshot.getLength(format);
+        String ifRange = routingContext.request().getHeader(IF_RANGE);
+        long[] range = ifRange == null || ifRange.equals(etag) ? getByteRange(routingContext, length) : null;
+        if (range == null) {
+            response.sendFile(file);
+        } else if (range.length == 0) {
+            response.setStatusCode(STATUS_CODE_RANGE_NOT_SATISFIABLE).putHeader(CONTENT_RANGE, BYTES + " */" + length).end();
+        } else {
+            response.setStatusCode(STATUS_CODE_PARTIAL_CONTENT)
+                    .putHeader(CONTENT_RANGE, BYTES + " " + range[0] + "-" + range[1] + "/" + length)
+                    .sendFile(file, range[0], range[1] - range[0] + 1);
         }
     }
 
     /**
-     * Get all Whisky instances from the DB.
+     * Get SmartCamera instances from the DB, one page at a time.
+     * Query parameters:
+     * <ul>
+     * <li>limit - page size, {@value #DEFAULT_PAGE_LIMIT} by default, at most {@value #MAX_PAGE_LIMIT}</li>
+     * <li>after - deviceID of the last camera of the previous page</li>
+     * <li>domain, state, city - optional filters, answered with indexed queries</li>
+     * <li>stream=true - return all (matching) cameras as chunked JSON instead of a single page</li>
+     * </ul>
+     * The cursor of the next page is returned in the Link header (rel="next").
+     * Filtered pages also carry the total number of matching cameras in the X-Total-Count header.
+     * Pages are tagged with an ETag which changes with every write and differs per query, so If-None-Match is
+     * answered with 304 without querying the DB as long as no camera was written.
      *
      * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
      */
     private void getAll(RoutingContext routingContext) {
-        List<SmartCamera> smartCameraList = smartCameraCrudService.readAll();
+        Map<String, String> filters = getFilters(routingContext);
+        if (Boolean.parseBoolean(routingContext.request().getParam(PARAM_STREAM))) {
+            streamAll(routingContext, filters);
+            return;
+        }
+        final Long after;
+        final int limit;
+        try {
+            String afterParam = routingContext.request().getParam(PARAM_AFTER);
+            String limitParam = routingContext.request().getParam(PARAM_LIMIT);
+            after = afterParam == null ? null : Long.valueOf(afterParam);
+            limit = limitParam == null ? DEFAULT_PAGE_LIMIT : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Bad paging parameters.");
+            return;
+        }
+        if (limit < 1 || limit > MAX_PAGE_LIMIT) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("limit must be between 1 and " + MAX_PAGE_LIMIT);
+            return;
+        }
+        String query = listQuery(filters, after, limit, isPretty(routingContext));
+        String etag = responseCache.listETag(query);
+        if (JsonResponseCache.matches(routingContext.request().getHeader(IF_NONE_MATCH), etag)) {
+            routingContext.response().setStatusCode(STATUS_CODE_NOT_MODIFIED).putHeader(ETAG, etag).end();
+            return;
+        }
+        Future<List<SmartCamera>> page = asyncCrudService.readPage(filters, after, limit);
+        Future<Long> count = filters.isEmpty() ? Future.succeededFuture() : asyncCrudService.count(filters);
+        CompositeFuture.all(page, count).setHandler(result -> {
+            if (result.failed()) {
+                endWithFailure(routingContext, result.cause());
+                return;
+            }
+            List<SmartCamera> smartCameraList = page.result();
+            HttpServerResponse response = routingContext.response();
+            if (smartCameraList.size() == limit) {
+                long nextAfter = smartCameraList.get(smartCameraList.size() - 1).getId();
+                StringBuilder next = new StringBuilder(REST_SMARTCAMERA_URL)
+                        .append('?').append(PARAM_AFTER).append('=').append(nextAfter)
+                        .append('&').append(PARAM_LIMIT).append('=').append(limit);
+                for (Map.Entry<String, String> filter : filters.entrySet()) {
+                    next.append('&').append(filter.getKey()).append('=').append(urlEncode(filter.getValue()));
+                }
+                response.putHeader(LINK, "<" + next + ">; rel=\"next\"");
+            }
+            if (!filters.isEmpty()) {
+                response.putHeader(X_TOTAL_COUNT, String.valueOf(count.result()));
+            }
+            // a camera written while the page was read may or may not be in it, such a page gets no ETag,
+            // neither does a page read from a replica which may not have the last write yet
+            if (etag.equals(responseCache.listETag(query)) && !mayBeBehindLastWrite()) {
+                response.putHeader(ETAG, etag);
+            }
+            response
+                    .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                    .end(toJson(routingContext, smartCameraList));
+        });
+    }
+
+    /**
+     * Writes every SmartCamera as one chunked JSON array.
+     * Rows are pulled from the DB {@value #STREAM_CHUNK_SIZE} at a time and the next chunk is requested only
+     * once the write queue has room, so memory usage does not depend on the table size.
+     */
+    private void streamAll(RoutingContext routingContext, Map<String, String> filters) {
+        HttpServerResponse response = routingContext.response();
+        AtomicBoolean closed = new AtomicBoolean();
+        response.closeHandler(v -> closed.set(true));
+        streamChunk(routingContext, filters, null, closed);
+    }
+
+    private void streamChunk(RoutingContext routingContext, Map<String, String> filters, Long after, AtomicBoolean closed) {
+        asyncCrudService.readPage(filters, after, STREAM_CHUNK_SIZE).setHandler(result -> {
+            HttpServerResponse response = routingContext.response();
+            if (closed.get()) {
+                return;
+            }
+            boolean first = after == null;
+            if (result.failed()) {
+                if (first) {
+                    endWithFailure(routingContext, result.cause());
+                } else {
+                    // Headers are already sent, the only way to signal the failure is to cut the connection
+                    LOG.error(result.cause().getLocalizedMessage(), result.cause());
+                    response.close();
+                }
+                return;
+            }
+            List<SmartCamera> chunk = result.result();
+            if (first) {
+                response.setChunked(true).putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8);
+            }
+            StringBuilder json = new StringBuilder(first ? "[" : "");
+            for (int i = 0; i < chunk.size(); i++) {
+                if (!first || i > 0) {
+                    json.append(',');
+                }
+                json.append(toJsonCompact(chunk.get(i)));
+            }
+            if (chunk.size() < STREAM_CHUNK_SIZE) {
+                response.end(json.append(']').toString());
+                return;
+            }
+            response.write(json.toString());
+            Long nextAfter = chunk.get(chunk.size() - 1).getId();
+            if (response.writeQueueFull()) {
+                response.drainHandler(v -> streamChunk(routingContext, filters, nextAfter, closed));
+            } else {
+                streamChunk(routingContext, filters, nextAfter, closed);
+            }
+        });
+    }
+
+    /**
+     * Get the k SmartCameras closest to a point, closest first.
+     * Query parameters: lat (-90..90), lon (-180..180), k ({@value #DEFAULT_NEAREST_K} by default,
+     * at most {@value #MAX_PAGE_LIMIT}).
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getNearest(RoutingContext routingContext) {
+        final Double latitude;
+        final Double longitude;
+        final int k;
+        try {
+            latitude = getDoubleParam(routingContext, PARAM_LATITUDE);
+            longitude = getDoubleParam(routingContext, PARAM_LONGITUDE);
+            String kParam = routingContext.request().getParam(PARAM_K);
+            k = kParam == null ? DEFAULT_NEAREST_K : Integer.parseInt(kParam);
+        } catch (NumberFormatException e) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Bad geo query parameters.");
+            return;
+        }
+        if (!isLatitude(latitude) || !isLongitude(longitude) || k < 1 || k > MAX_PAGE_LIMIT) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST)
+                    .end("-90 <= lat <= 90, -180 <= lon <= 180 and 1 <= k <= " + MAX_PAGE_LIMIT + " are required.");
+            return;
+        }
+        // visits up to the whole grid when there are few cameras, never on the event loop
+        endWithGeoResult(routingContext,
+                asyncCrudService.execute(() -> geoIndexingCrudService.getIndex().nearest(latitude, longitude, k)));
+    }
+
+    /**
+     * Get the SmartCameras within a radius (lat, lon, radius in meters up to {@value #MAX_GEO_RADIUS_METERS};
+     * closest first) or inside a bounding box (minLat, minLon, maxLat, maxLon; at most
+     * {@value #MAX_GEO_BOX_SPAN_DEGREES} degrees each way, minLon > maxLon crosses the antimeridian).
+     * At most limit cameras are returned, {@value #DEFAULT_PAGE_LIMIT} by default.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getWithin(RoutingContext routingContext) {
+        Callable<Object> query;
+        try {
+            String limitParam = routingContext.request().getParam(PARAM_LIMIT);
+            int limit = limitParam == null ? DEFAULT_PAGE_LIMIT : Integer.parseInt(limitParam);
+            Double radius = getDoubleParam(routingContext, PARAM_RADIUS);
+            if (limit < 1 || limit > MAX_PAGE_LIMIT) {
+                query = null;
+            } else if (radius != null) {
+                Double latitude = getDoubleParam(routingContext, PARAM_LATITUDE);
+                Double longitude = getDoubleParam(routingContext, PARAM_LONGITUDE);
+                query = !isLatitude(latitude) || !isLongitude(longitude) || !(radius >= 0 && radius <= MAX_GEO_RADIUS_METERS) ? null
+                        : () -> geoIndexingCrudService.getIndex().withinRadius(latitude, longitude, radius, limit);
+            } else {
+                Double minLatitude = getDoubleParam(routingContext, PARAM_MIN_LATITUDE);
+                Double minLongitude = getDoubleParam(routingContext, PARAM_MIN_LONGITUDE);
+                Double maxLatitude = getDoubleParam(routingContext, PARAM_MAX_LATITUDE);
+                Double maxLongitude = getDoubleParam(routingContext, PARAM_MAX_LONGITUDE);
+                query = !isLatitude(minLatitude) || !isLongitude(minLongitude) || !isLatitude(maxLatitude) || !isLongitude(maxLongitude)
+                        || minLatitude > maxLatitude || maxLatitude - minLatitude > MAX_GEO_BOX_SPAN_DEGREES
+                        || longitudeSpan(minLongitude, maxLongitude) > MAX_GEO_BOX_SPAN_DEGREES ? null
+                        : () -> geoIndexingCrudService.getIndex().withinBox(minLatitude, minLongitude, maxLatitude, maxLongitude, limit);
+            }
+        } catch (NumberFormatException e) {
+            query = null;
+        }
+        if (query == null) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST)
+                    .end("Either lat, lon and radius <= " + MAX_GEO_RADIUS_METERS + " or minLat, minLon, maxLat and maxLon spanning at most "
+                            + MAX_GEO_BOX_SPAN_DEGREES + " degrees are required.");
+            return;
+        }
+        endWithGeoResult(routingContext, asyncCrudService.execute(query));
+    }
+
+    private void endWithGeoResult(RoutingContext routingContext, Future<?> result) {
+        result.setHandler(query -> {
+            if (query.failed()) {
+                endWithFailure(routingContext, query.cause());
+            } else {
+                routingContext.response()
+                        .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                        .end(toJson(routingContext, query.result()));
+            }
+        });
+    }
+
+    // false for null and NaN too
+    private static boolean isLatitude(Double latitude) {
+        return latitude != null && latitude >= -90.0 && latitude <= 90.0;
+    }
+
+    private static boolean isLongitude(Double longitude) {
+        return longitude != null && longitude >= -180.0 && longitude <= 180.0;
+    }
+
+    // degrees from minLongitude east to maxLongitude, across the antimeridian when minLongitude > maxLongitude
+    private static double longitudeSpan(double minLongitude, double maxLongitude) {
+        return minLongitude <= maxLongitude ? maxLongitude - minLongitude : maxLongitude + 360.0 - minLongitude;
+    }
+
+    /**
+     * Subscribes to created/updated/deleted SmartCameras, see {@link ChangeFeed}.
+     * A WebSocket upgrade request gets the events as WebSocket messages, any other request as Server-Sent Events.
+     * Query parameters domain, state, city - optional filters, only changes of matching cameras are sent.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void subscribeToChanges(RoutingContext routingContext, ChangeFeed changeFeed) {
+        Map<String, String> filters = getFilters(routingContext);
+        if (WEBSOCKET.equalsIgnoreCase(routingContext.request().getHeader(UPGRADE))) {
+            changeFeed.subscribe(routingContext.request().upgrade(), filters);
+        } else {
+            changeFeed.subscribe(routingContext.response(), filters);
+        }
+    }
+
+    /**
+     * Record a heartbeat of a SmartCamera, see {@link HeartbeatStore}.
+     * Should provide an ID in the request URL and a JSON body: status (int, required), temperature (optional),
+     * timestamp (epoch millis, the time of arrival by default).
+     * Unknown cameras are answered with 404. 204 is sent once the heartbeat is on disk.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void addHeartbeat(RoutingContext routingContext) {
+        Long id = getSmartCameraId(routingContext);
+        if (id == null) {
+            return;
+        }
+        final long timestamp;
+        final int status;
+        final float temperature;
+        try {
+            JsonObject json = routingContext.getBodyAsJson();
+            Integer statusValue = json == null ? null : json.getInteger(HEARTBEAT_STATUS);
+            if (statusValue == null) {
+                routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Heartbeat status is required.");
+                return;
+            }
+            status = statusValue;
+            temperature = json.getFloat(HEARTBEAT_TEMPERATURE, Float.NaN);
+            timestamp = json.getLong(HEARTBEAT_TIMESTAMP, System.currentTimeMillis());
+        } catch (DecodeException | ClassCastException e) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed heartbeat.");
+            return;
+        }
+        Future<Boolean> registered = Future.future();
+        if (heartbeatStore.isRegistryBlocking()) {
+            routingContext.vertx().<Boolean>executeBlocking(
+                    future -> future.complete(heartbeatStore.isRegistered(id)), false, registered.completer());
+        } else {
+            registered.complete(heartbeatStore.isRegistered(id));
+        }
+        registered.setHandler(lookup -> {
+            if (lookup.failed()) {
+                endWithFailure(routingContext, lookup.cause());
+                return;
+            }
+            if (!lookup.result()) {
+                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("SmartCamera not found for id=" + id);
+                return;
+            }
+            // the log completes on its committer thread
+            Context context = routingContext.vertx().getOrCreateContext();
+            heartbeatStore.record(id, timestamp, status, temperature).whenComplete((v, e) -> context.runOnContext(done -> {
+                if (e != null) {
+                    endWithFailure(routingContext, e);
+                } else {
+                    routingContext.response().setStatusCode(STATUS_CODE_OK_NO_CONTENT).end();
+                }
+            }));
+        });
+    }
+
+    /**
+     * Get the latest heartbeat of a SmartCamera, from memory.
+     * Should provide an ID in the request URL.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getHeartbeat(RoutingContext routingContext) {
+        Long id = getSmartCameraId(routingContext);
+        if (id == null) {
+            return;
+        }
+        DeviceStatusTable.Status latest = heartbeatStore.latest(id);
+        if (latest == null) {
+            routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("No heartbeat for id=" + id);
+            return;
+        }
+        JsonObject json = new JsonObject()
+                .put(HEARTBEAT_DEVICE_ID, latest.getDeviceId())
+                .put(HEARTBEAT_TIMESTAMP, latest.getTimestamp())
+                .put(HEARTBEAT_STATUS, latest.getStatus());
+        if (!Float.isNaN(latest.getTemperature())) {
+            json.put(HEARTBEAT_TEMPERATURE, latest.getTemperature());
+        }
         routingContext.response()
                 .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
-                .end(Json.encodePrettily(whiskyList));
+                .end(isPretty(routingContext) ? json.encodePrettily() : json.encode());
     }
 
     /**
-     * Update a Whisky instance.
+     * Update a SmartCamera instance.
      * Should provide an ID in the request URL and
-     * new values for Whisky.name and Whisky.origin in the request body (json).
+     * new values for the SmartCamera fields in the request body (json).
      *
      * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
      */
@@ -174,48 +894,469 @@ public class WhiskyCrudRestService {
         if (id == null) {
             return;
         }
+        final JsonObject json;
         try {
-            JsonObject json = routingContext.getBodyAsJson();
-            if (json == null) {
-                routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed Whisky object.");
-            } else {
-                SmartCamera smartcamera = smartcameraCrudService.readOne(id);
-                if (smartcamera == null) {
-                    routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end();
-                } else {
-                    smartcamera.setName(json.getString("name"));
-                    smartcamera.setOrigin(json.getString("origin"));
-
-                    smartcamera = smartcameraCrudService.save(smartcamera);
+            json = routingContext.getBodyAsJson();
+        } catch (DecodeException e) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed Smart Camera object.");
+            return;
+        }
+        if (json == null) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed SmartCamera object.");
+            return;
+        }
+        asyncCrudService.readOne(id).setHandler(read -> {
+            if (read.failed()) {
+                endWithFailure(routingContext, read.cause());
+                return;
+            }
+            SmartCamera smartcamera = read.result();
+            if (smartcamera == null) {
+                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end();
+                return;
+            }
+            smartcamera.setDomain(json.getString("domain"));
+            smartcamera.setState(json.getString("state"));
+            smartcamera.setCity(json.getString("city"));
+            smartcamera.setLatitude(json.getDouble("latitude"));
+            smartcamera.setLongitude(json.getDouble("longitude"));
+            smartcamera.setDeviceType(json.getString("deviceType"));
 
-                    routingContext.response()
-                            .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
-                            .end(Json.encodePrettily(smartcamera));
+            asyncCrudService.save(smartcamera).setHandler(saved -> {
+                if (saved.failed()) {
+                    endWithFailure(routingContext, saved.cause());
+                    return;
                 }
-            }
+                routingContext.response()
+                        .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                        .end(toJson(routingContext, saved.result()));
+            });
+        });
+    }
+
+    /**
+     * Update some fields of a SmartCamera instance, without reading it first.
+     * Should provide an ID in the request URL and the fields to change in the request body (json):
+     * domain, state, city, latitude, longitude, deviceType; fields which are not in the body keep their value.
+     * With an If-Match header (the ETag of getOne, i.e. the version) the update is only applied to that version
+     * of the camera, a concurrent update in between is answered with 412 Precondition Failed.
+     * The updated camera is returned with its new ETag, a weak one for ?pretty=true.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void patchOne(RoutingContext routingContext) {
+        Long id = getSmartCameraId(routingContext);
+        if (id == null) {
+            return;
+        }
+        final JsonObject json;
+        try {
+            json = routingContext.getBodyAsJson();
         } catch (DecodeException e) {
-            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed Smart Camera object.");
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Malformed SmartCamera patch.");
+            return;
+        }
+        if (json == null || json.isEmpty()) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Nothing to update.");
+            return;
         }
+        String ifMatch = routingContext.request().getHeader(IF_MATCH);
+        final Long expectedVersion;
+        if (ifMatch == null || ifMatch.trim().equals("*")) {
+            expectedVersion = null;
+        } else {
+            expectedVersion = JsonResponseCache.versionOf(ifMatch);
+            if (expectedVersion == null) {
+                // not an ETag of any version, so it can not match the current one
+                routingContext.response().setStatusCode(STATUS_CODE_PRECONDITION_FAILED).end();
+                return;
+            }
+        }
+        asyncCrudService.patch(id, json.getMap(), expectedVersion).setHandler(result -> {
+            if (result.failed()) {
+                if (result.cause() instanceof IllegalArgumentException) {
+                    routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end(result.cause().getLocalizedMessage());
+                } else if (result.cause() instanceof OptimisticLockingFailureException) {
+                    routingContext.response().setStatusCode(STATUS_CODE_PRECONDITION_FAILED).end();
+                } else {
+                    endWithFailure(routingContext, result.cause());
+                }
+                return;
+            }
+            if (result.result() == null) {
+                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("SmartCamera not found for id=" + id);
+                return;
+            }
+            HttpServerResponse response = routingContext.response().putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8);
+            if (isPretty(routingContext)) {
+                // the strong ETag stands for the compact bytes, the pretty body is only semantically the same
+                response.putHeader(ETAG, "W/" + JsonResponseCache.etagOf(result.result().getVersion()))
+                        .end(toJson(routingContext, result.result()));
+            } else {
+                JsonResponseCache.Encoded encoded = encode(result.result());
+                response.putHeader(ETAG, encoded.getETag()).end(encoded.getBody());
+            }
+        });
     }
 
     /**
-     * Deletes a Whisky instance by ID.
+     * Deletes a SmartCamera instance by ID.
      * Should provide an ID in the request URL.
      *
      * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
      */
     private void deleteOne(RoutingContext routingContext) {
         Long id = getSmartCameraId(routingContext);
-        if (id != null) {
-            try {
-                smartcameraCrudService.delete(id);
-            } catch (EmptyResultDataAccessException e) {
-                // Trying to delete an entity which not exists
-                routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("Can not delete Whisky because it does not exist. ID=" + id);
+        if (id == null) {
+            return;
+        }
+        asyncCrudService.delete(id).setHandler(result -> {
+            if (result.failed()) {
+                if (result.cause() instanceof EmptyResultDataAccessException) {
+                    // Trying to delete an entity which not exists
+                    routingContext.response().setStatusCode(STATUS_CODE_NOT_FOUND).end("Can not delete SmartCamera because it does not exist. ID=" + id);
+                } else {
+                    endWithFailure(routingContext, result.cause());
+                }
                 return;
             }
             routingContext.response().setStatusCode(STATUS_CODE_OK_NO_CONTENT).end("Deleted.");
+        });
+    }
+
+    /**
+     * Renders JDBC connection pool metrics.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getDataSourceMetrics(RoutingContext routingContext) {
+        JsonObject metrics = connectionPoolMetrics.snapshot();
+        if (dataSource instanceof ReplicaRoutingDataSource) {
+            metrics.put("routing", ((ReplicaRoutingDataSource) dataSource).stats());
+        }
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .end(metrics.encodePrettily());
+    }
+
+    /**
+     * Renders SmartCamera, read coalescing and authentication cache metrics.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getCacheMetrics(RoutingContext routingContext) {
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .end(cachingCrudService.stats()
+                        .put("coalescing", coalescingCrudService.stats())
+                        .put("auth", authProvider.stats())
+                        .encodePrettily());
+    }
+
+    /**
+     * Renders the in-flight limits of {@link AdmissionControl}.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getAdmissionMetrics(RoutingContext routingContext) {
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .end(admissionControl.stats().encodePrettily());
+    }
+
+    /**
+     * Renders the {@link StartupTimings} of this process.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getStartupMetrics(RoutingContext routingContext) {
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .end(StartupTimings.snapshot().encodePrettily());
+    }
+
+    /**
+     * Renders request, CrudService and JSON encoding metrics for Prometheus.
+     *
+     * @param routingContext Represents the context for the handling of a request in Vert.x-Web.
+     */
+    private void getPrometheusMetrics(RoutingContext routingContext) {
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, RequestMetrics.CONTENT_TYPE_PROMETHEUS)
+                .end(requestMetrics.scrape());
+    }
+
+    /**
+     * Encodes a response body, compact unless the request asks for ?pretty=true.
+     * The time it takes is recorded in {@link RequestMetrics}.
+     */
+    private String toJson(RoutingContext routingContext, Object value) {
+        if (!isPretty(routingContext)) {
+            return toJsonCompact(value);
+        }
+        long start = System.nanoTime();
+        try {
+            return Json.encodePrettily(value);
+        } finally {
+            requestMetrics.jsonEncoding().recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private String toJsonCompact(Object value) {
+        long start = System.nanoTime();
+        try {
+            return Json.encode(value);
+        } finally {
+            requestMetrics.jsonEncoding().recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    private JsonResponseCache.Encoded encode(SmartCamera smartcamera) {
+        long start = System.nanoTime();
+        try {
+            return responseCache.encode(smartcamera);
+        } finally {
+            requestMetrics.jsonEncoding().recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Ends the response with an encoded entity, or with 304 if the client already has it (If-None-Match).
+     */
+    private static void endWithEncoded(RoutingContext routingContext, JsonResponseCache.Encoded encoded) {
+        HttpServerResponse response = routingContext.response().putHeader(ETAG, encoded.getETag());
+        if (JsonResponseCache.matches(routingContext.request().getHeader(IF_NONE_MATCH), encoded.getETag())) {
+            response.setStatusCode(STATUS_CODE_NOT_MODIFIED).end();
+        } else {
+            response.putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8).end(encoded.getBody());
+        }
+    }
+
+    /**
+     * Ends the response with a JSON array of the encoded entities, in the order of ids.
+     */
+    private static void endWithEncodedArray(RoutingContext routingContext, Set<Long> ids,
+                                            Map<Long, JsonResponseCache.Encoded> encodings) {
+        Buffer body = Buffer.buffer().appendString("[");
+        boolean first = true;
+        for (Long id : ids) {
+            JsonResponseCache.Encoded encoded = encodings.get(id);
+            if (encoded != null) {
+                if (!first) {
+                    body.appendString(",");
+                }
+                body.appendBuffer(encoded.getBody());
+                first = false;
+            }
+        }
+        routingContext.response()
+                .putHeader(CONTENT_TYPE, APPLICATION_JSON_CHARSET_UTF_8)
+                .end(body.appendString("]"));
+    }
+
+    /**
+     * Ends the response of a failed CRUD call.
+     * Calls rejected by the saturated worker pool are answered with 503 so clients can back off,
+     * updates of a camera which was updated concurrently with 409.
+     */
+    private void endWithFailure(RoutingContext routingContext, Throwable cause) {
+        if (cause instanceof RejectedExecutionException) {
+            routingContext.response().setStatusCode(STATUS_CODE_SERVICE_UNAVAILABLE).end("Server is busy, try again later.");
+            return;
+        }
+        if (cause instanceof OptimisticLockingFailureException) {
+            routingContext.response().setStatusCode(STATUS_CODE_CONFLICT).end("SmartCamera was updated concurrently, read it and try again.");
+            return;
+        }
+        LOG.error(cause.getLocalizedMessage(), cause);
+        routingContext.response().setStatusCode(STATUS_CODE_INTERNAL_SERVER_ERROR).end();
+    }
+
+    /**
+     * Verticle instances build their routers concurrently on different event loops,
+     * the worker pool must still be created only once.
+     */
+    private synchronized void initSharedState(Vertx vertx, JsonObject config) {
+        if (asyncCrudService == null) {
+            bulkBatchSize = config.getInteger(CONF_BULK_BATCH_SIZE, DEFAULT_BULK_BATCH_SIZE);
+            statelessApi = config.getBoolean(CONF_STATELESS_API, true);
+            admissionControl = new AdmissionControl(config);
+            if (dataSource instanceof ReplicaRoutingDataSource) {
+                readYourWrites = new ReadYourWrites(((ReplicaRoutingDataSource) dataSource).getMaxLagMillis());
+            }
+            // Simple auth service which uses a properties file for user/role info
+            authProvider = new CachingAuthProvider(ShiroAuth.create(vertx, ShiroAuthRealmType.PROPERTIES, new JsonObject()),
+                    config.getLong(CONF_AUTH_CACHE_MAX_SIZE, DEFAULT_AUTH_CACHE_MAX_SIZE),
+                    config.getLong(CONF_AUTH_CACHE_TTL_SECONDS, DEFAULT_AUTH_CACHE_TTL_SECONDS));
+            responseCache = new JsonResponseCache<>(SmartCamera::getId, SmartCamera::getVersion,
+                    config.getLong(CONF_JSON_CACHE_MAX_SIZE, DEFAULT_JSON_CACHE_MAX_SIZE),
+                    config.getLong(CONF_JSON_CACHE_TTL_SECONDS, DEFAULT_JSON_CACHE_TTL_SECONDS));
+            asyncCrudService = new WorkerAsyncCrudService<>(vertx,
+                    new TimedCrudService<>(new EventPublishingCrudService<>(responseCache.invalidating(smartcameraCrudService),
+                            vertx.eventBus(), ChangeFeed.SMARTCAMERA_CHANGES_ADDRESS, SmartCamera::getId), requestMetrics),
+                    CrudExecutors.create(config));
+            if (config.getBoolean(CONF_EXPORT_ENABLED, true)) {
+                try {
+                    snapshotExporter = new SnapshotExporter<>(smartcameraCrudService, SmartCamera::getId, new SmartCameraCodec(),
+                            Paths.get(config.getString(CONF_EXPORT_DIR, DEFAULT_EXPORT_DIR)),
+                            config.getLong(CONF_EXPORT_INTERVAL_SECONDS, DEFAULT_EXPORT_INTERVAL_SECONDS));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                // every written camera is exported again with the next export
+                vertx.eventBus().<JsonObject>consumer(ChangeFeed.SMARTCAMERA_CHANGES_ADDRESS,
+                        message -> snapshotExporter.changed(message.body().getLong(EventPublishingCrudService.ID)));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (asyncCrudService != null) {
+            asyncCrudService.close();
+        }
+        if (snapshotExporter != null) {
+            snapshotExporter.close();
+        }
+    }
+
+    // reads may be routed to replicas which lag at most maxLagMillis behind
+    private boolean mayBeBehindLastWrite() {
+        return dataSource instanceof ReplicaRoutingDataSource && System.currentTimeMillis() - responseCache.lastWriteMillis()
+                <= ((ReplicaRoutingDataSource) dataSource).getMaxLagMillis();
+    }
+
+    private Handler<RoutingContext> skipIfStateless(Handler<RoutingContext> handler) {
+        return routingContext -> {
+            if (isStatelessRequest(routingContext)) {
+                routingContext.next();
+            } else {
+                handler.handle(routingContext);
+            }
+        };
+    }
+
+    // credentials on the request and no cookie to carry a session
+    private boolean isStatelessRequest(RoutingContext routingContext) {
+        return statelessApi
+                && routingContext.request().headers().contains(AUTHORIZATION)
+                && !routingContext.request().headers().contains(COOKIE);
+    }
+
+    private static boolean isBulkRequest(RoutingContext routingContext) {
+        return routingContext.request().method() == HttpMethod.POST
+                && REST_SMARTCAMERA_BULK_URL.equals(routingContext.request().path());
+    }
+
+    // subscriptions and downloads last as long as the client wants them, downloads and heartbeats never reach
+    // the CrudService
+    private static boolean isAdmissionExempt(RoutingContext routingContext) {
+        String path = routingContext.request().path();
+        return REST_SMARTCAMERA_CHANGES_URL.equals(path) || REST_SMARTCAMERA_SNAPSHOT_URL.equals(path)
+                || path.endsWith(HEARTBEAT_PATH_SUFFIX);
+    }
+
+    // the parameters a page depends on, in a fixed order: "domain=x&after=1&limit=100&pretty=false"
+    private static String listQuery(Map<String, String> filters, Long after, int limit, boolean pretty) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> filter : filters.entrySet()) {
+            query.append(filter.getKey()).append('=').append(urlEncode(filter.getValue())).append('&');
+        }
+        return query.append(PARAM_AFTER).append('=').append(after)
+                .append('&').append(PARAM_LIMIT).append('=').append(limit)
+                .append('&').append(PARAM_PRETTY).append('=').append(pretty)
+                .toString();
+    }
+
+    private static boolean isPretty(RoutingContext routingContext) {
+        return Boolean.parseBoolean(routingContext.request().getParam(PARAM_PRETTY));
+    }
+
+    private static Map<String, String> getFilters(RoutingContext routingContext) {
+        Map<String, String> filters = new LinkedHashMap<>();
+        for (String name : FILTER_PARAMS) {
+            String value = routingContext.request().getParam(name);
+            if (value != null && !value.isEmpty()) {
+                filters.put(name, value);
+            }
+        }
+        return filters;
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Double getDoubleParam(RoutingContext routingContext, String name) {
+        String value = routingContext.request().getParam(name);
+        return value == null ? null : Double.valueOf(value);
+    }
+
+    /**
+     * Parses a Range header with a single byte range: "bytes=first-last", "bytes=first-" or "bytes=-suffixLength".
+     * Anything else is ignored, as HTTP allows.
+     *
+     * @return first and last byte of the range, an empty array if the range is not satisfiable,
+     * null to send the whole file
+     */
+    private static long[] getByteRange(RoutingContext routingContext, long length) {
+        String header = routingContext.request().getHeader(RANGE);
+        if (header == null || !header.startsWith(BYTES + "=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring(BYTES.length() + 1).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffixLength = Long.parseLong(spec.substring(1));
+                first = Math.max(0, length - suffixLength);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first > last && dash != 0 && first < length) {
+            // "bytes=5-3" is invalid, not unsatisfiable
+            return null;
+        }
+        return first >= length || first > last ? new long[0] : new long[]{first, last};
+    }
+
+    /**
+     * @return the distinct ids of the "ids" parameter in request order, null if the request was already answered
+     * with 400
+     */
+    private Set<Long> getSmartCameraIds(RoutingContext routingContext) {
+        Set<Long> ids = new LinkedHashSet<>();
+        try {
+            for (String param : routingContext.request().params().getAll(PARAM_IDS)) {
+                for (String id : param.split(",")) {
+                    if (!id.trim().isEmpty()) {
+                        ids.add(Long.valueOf(id.trim()));
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("Bad ids parameter.");
+            return null;
+        }
+        if (ids.isEmpty() || ids.size() > MAX_BATCH_IDS) {
+            routingContext.response().setStatusCode(STATUS_CODE_BAD_REQUEST).end("ids must list between 1 and " + MAX_BATCH_IDS + " IDs");
+            return null;
         }
+        return ids;
     }
 
     private Long getSmartCameraId(RoutingContext routingContext) {
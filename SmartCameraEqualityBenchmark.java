@@ -0,0 +1,58 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.model.SmartCamera;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SmartCamera.equals/hashCode, used by every hash based collection and cache holding cameras.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartCameraEqualityBenchmark {
+
+    private SmartCamera camera;
+    private SmartCamera equalCamera;
+    private SmartCamera otherCamera;
+
+    @Setup
+    public void setUp() {
+        List<SmartCamera> cameras = SyntheticCameras.generate(2, 42L);
+        camera = cameras.get(0);
+        equalCamera = new SmartCamera(camera);
+        otherCamera = cameras.get(1);
+    }
+
+    @Benchmark
+    public int hashCodeOfCamera() {
+        return camera.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsEqual() {
+        return camera.equals(equalCamera);
+    }
+
+    @Benchmark
+    public boolean equalsDifferent() {
+        return camera.equals(otherCamera);
+    }
+}
@@ -0,0 +1,395 @@
+package com.tymoshenko.controller.export;
+
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.InMemoryCrudService;
+import io.vertx.core.json.Json;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports every entity of a {@link CrudService} to files on local disk, in the background, so downloads of the
+ * whole registry are served with sendFile instead of reading and encoding every entity per request.
+ * <p>
+ * Every export writes one generation of two files, both ordered by id:
+ * <ul>
+ * <li>"export-&lt;generation&gt;.ndjson.gz" - one JSON object per line, gzip compressed</li>
+ * <li>"export-&lt;generation&gt;.bin" - the int {@value #MAGIC}, then per entity its id (long), the length of its
+ * binary form (int) and the binary form written by the codec</li>
+ * </ul>
+ * The first export after startup reads every entity page by page. Later ones only read the entities reported by
+ * {@link #changed(long)} since the previous export and merge them into the files of the previous generation:
+ * unchanged entities are copied as bytes, changed ones re-encoded, deleted ones dropped. An export with no
+ * changes writes nothing.
+ * <p>
+ * Files are written under a temporary name and renamed when complete, older generations are deleted afterwards.
+ * A download which already opened an older file keeps reading it.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class SnapshotExporter<T> implements Closeable {
+
+    public static final String NDJSON = "ndjson";
+    public static final String BINARY = "binary";
+
+    public static final int MAGIC = 0x53435331;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SnapshotExporter.class);
+
+    private static final String PREFIX = "export-";
+    private static final String NDJSON_SUFFIX = ".ndjson.gz";
+    private static final String BINARY_SUFFIX = ".bin";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int PAGE_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CrudService<T> crudService;
+    private final Function<T, Long> idOf;
+    private final InMemoryCrudService.Codec<T> codec;
+    private final Path directory;
+    private final ScheduledExecutorService exports;
+
+    // ids written since the last export started
+    private final Set<Long> changed = ConcurrentHashMap.newKeySet();
+
+    private volatile Snapshot latest;
+    // guarded by this
+    private long generation;
+
+    /**
+     * @param crudService     the entities to export
+     * @param idOf            extracts the id of an entity
+     * @param codec           binary form of an entity
+     * @param directory       where the files are written
+     * @param intervalSeconds how often changes are exported; the first export starts right away
+     */
+    public SnapshotExporter(CrudService<T> crudService, Function<T, Long> idOf, InMemoryCrudService.Codec<T> codec,
+                            Path directory, long intervalSeconds) throws IOException {
+        this.crudService = crudService;
+        this.idOf = idOf;
+        this.codec = codec;
+        this.directory = directory;
+
+        Files.createDirectories(directory);
+        // files of an earlier run are replaced by the first export, the changes since them are unknown
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                generation = Math.max(generation, generationOf(file));
+            }
+        }
+
+        exports = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshot-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        exports.scheduleWithFixedDelay(() -> {
+            try {
+                export();
+            } catch (IOException | RuntimeException e) {
+                // the changed ids are kept, the next attempt may succeed
+                LOG.error("Snapshot export failed: " + e.getLocalizedMessage(), e);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Marks an entity as created, updated or deleted, so the next export reads it again. Thread safe, never blocks.
+     */
+    public void changed(long id) {
+        changed.add(id);
+    }
+
+    /**
+     * @return the newest complete export, null until the first export finished
+     */
+    public Snapshot latest() {
+        return latest;
+    }
+
+    /**
+     * Exports the changes since the previous export, or everything if there was none.
+     */
+    public synchronized void export() throws IOException {
+        Snapshot previous = latest;
+        if (previous != null && changed.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // ids changed from now on are exported next time, even if this export already sees their change
+        List<Long> ids = new ArrayList<>(changed);
+        changed.removeAll(ids);
+
+        long next = generation + 1;
+        Path ndjsonTmp = directory.resolve(PREFIX + next + NDJSON_SUFFIX + TMP_SUFFIX);
+        Path binaryTmp = directory.resolve(PREFIX + next + BINARY_SUFFIX + TMP_SUFFIX);
+        long rows;
+        try {
+            try (SnapshotWriter writer = new SnapshotWriter(ndjsonTmp, binaryTmp)) {
+                if (previous == null) {
+                    writeAll(writer);
+                } else {
+                    merge(previous, ids, writer);
+                }
+                rows = writer.rows;
+            }
+        } catch (IOException | RuntimeException e) {
+            changed.addAll(ids);
+            Files.deleteIfExists(ndjsonTmp);
+            Files.deleteIfExists(binaryTmp);
+            throw e;
+        }
+        Path ndjson = directory.resolve(PREFIX + next + NDJSON_SUFFIX);
+        Path binary = directory.resolve(PREFIX + next + BINARY_SUFFIX);
+        Files.move(ndjsonTmp, ndjson, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(binaryTmp, binary, StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        latest = new Snapshot(next, rows, previous == null ? rows : ids.size(), System.currentTimeMillis(),
+                System.currentTimeMillis() - start, ndjson, Files.size(ndjson), binary, Files.size(binary));
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                if (generationOf(file) < next) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        exports.shutdown();
+    }
+
+    private void writeAll(SnapshotWriter writer) throws IOException {
+        Long after = null;
+        List<T> page;
+        do {
+            page = crudService.readPage(Collections.emptyMap(), after, PAGE_SIZE);
+            for (T entity : page) {
+                writer.write(idOf.apply(entity), entity);
+            }
+            if (!page.isEmpty()) {
+                after = idOf.apply(page.get(page.size() - 1));
+            }
+        } while (page.size() == PAGE_SIZE);
+    }
+
+    // both files of the previous generation are read in lockstep, record i of one is line i of the other
+    private void merge(Snapshot previous, List<Long> ids, SnapshotWriter writer) throws IOException {
+        TreeMap<Long, T> current = new TreeMap<>();
+        for (int from = 0; from < ids.size(); from += PAGE_SIZE) {
+            for (T entity : crudService.readMany(ids.subList(from, Math.min(ids.size(), from + PAGE_SIZE)))) {
+                current.put(idOf.apply(entity), entity);
+            }
+        }
+        Iterator<Long> changes = new TreeSet<>(ids).iterator();
+        Long change = changes.hasNext() ? changes.next() : null;
+        try (DataInputStream binary = new DataInputStream(new BufferedInputStream(Files.newInputStream(previous.binary), BUFFER_SIZE));
+             BufferedReader ndjson = new BufferedReader(new InputStreamReader(
+                     new GZIPInputStream(Files.newInputStream(previous.ndjson), BUFFER_SIZE), StandardCharsets.UTF_8))) {
+            if (binary.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + previous.binary);
+            }
+            while (true) {
+                long id;
+                try {
+                    id = binary.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                byte[] record = new byte[binary.readInt()];
+                binary.readFully(record);
+                String line = ndjson.readLine();
+                // changed entities before this one are new
+                while (change != null && change < id) {
+                    writeIfPresent(change, current, writer);
+                    change = changes.hasNext() ? changes.next() : null;
+                }
+                if (change != null && change == id) {
+                    writeIfPresent(change, current, writer);
+                    change = changes.hasNext() ? changes.next() : null;
+                } else {
+                    writer.copy(id, record, line);
+                }
+            }
+        }
+        while (change != null) {
+            writeIfPresent(change, current, writer);
+            change = changes.hasNext() ? changes.next() : null;
+        }
+    }
+
+    // a changed id which is not found any more was deleted
+    private void writeIfPresent(Long id, TreeMap<Long, T> current, SnapshotWriter writer) throws IOException {
+        T entity = current.get(id);
+        if (entity != null) {
+            writer.write(id, entity);
+        }
+    }
+
+    private static long generationOf(Path file) {
+        String name = file.getFileName().toString();
+        int end = name.indexOf('.');
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes both files of one generation.
+     */
+    private final class SnapshotWriter implements Closeable {
+
+        private final Writer ndjson;
+        private final DataOutputStream binary;
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+        private long rows;
+
+        private SnapshotWriter(Path ndjsonFile, Path binaryFile) throws IOException {
+            this.ndjson = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(ndjsonFile), BUFFER_SIZE), StandardCharsets.UTF_8), BUFFER_SIZE);
+            this.binary = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(binaryFile), BUFFER_SIZE));
+            binary.writeInt(MAGIC);
+        }
+
+        private void write(long id, T entity) throws IOException {
+            recordBytes.reset();
+            codec.write(entity, recordOut);
+            recordOut.flush();
+            binary.writeLong(id);
+            binary.writeInt(recordBytes.size());
+            recordBytes.writeTo(binary);
+            ndjson.write(Json.encode(entity));
+            ndjson.write('\n');
+            rows++;
+        }
+
+        private void copy(long id, byte[] record, String line) throws IOException {
+            binary.writeLong(id);
+            binary.writeInt(record.length);
+            binary.write(record);
+            ndjson.write(line);
+            ndjson.write('\n');
+            rows++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                ndjson.close();
+            } finally {
+                binary.close();
+            }
+        }
+    }
+
+    /**
+     * One complete export.
+     */
+    public static final class Snapshot {
+
+        private final long generation;
+        private final long rows;
+        private final long changedRows;
+        private final long createdMillis;
+        private final long durationMillis;
+        private final Path ndjson;
+        private final long ndjsonLength;
+        private final Path binary;
+        private final long binaryLength;
+
+        private Snapshot(long generation, long rows, long changedRows, long createdMillis, long durationMillis,
+                         Path ndjson, long ndjsonLength, Path binary, long binaryLength) {
+            this.generation = generation;
+            this.rows = rows;
+            this.changedRows = changedRows;
+            this.createdMillis = createdMillis;
+            this.durationMillis = durationMillis;
+            this.ndjson = ndjson;
+            this.ndjsonLength = ndjsonLength;
+            this.binary = binary;
+            this.binaryLength = binaryLength;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return entities read from the CrudService for this export, all of them for the first one
+         */
+        public long getChangedRows() {
+            return changedRows;
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * @param format {@link #NDJSON} or {@link #BINARY}
+         */
+        public String getFile(String format) {
+            return (BINARY.equals(format) ? binary : ndjson).toString();
+        }
+
+        /**
+         * @param format {@link #NDJSON} or {@link #BINARY}
+         */
+        public long getLength(String format) {
+            return BINARY.equals(format) ? binaryLength : ndjsonLength;
+        }
+
+        /**
+         * @return the strong ETag of this generation, the same for both formats
+         */
+        public String getETag() {
+            return "\"" + generation + "\"";
+        }
+    }
+}
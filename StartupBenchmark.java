@@ -0,0 +1,118 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.Application;
+import com.tymoshenko.controller.context.SpringConfig;
+import com.tymoshenko.controller.metrics.StartupTimings;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first request: from Application.start until the first GET /rest/SmartCamera is answered with 200, in a
+ * fresh JVM every time (one fork per measurement), so class loading and JIT warm-up are part of it, as they are in
+ * production. The client retries every {@value #RETRY_MILLIS} ms while the connection is refused or the server
+ * answers 503.
+ * <p>
+ * "development" creates the Spring context before listening and runs the schema script, "production" listens
+ * first and creates a trimmed context in the background, see {@link SpringConfig}. The embedded database gets its
+ * schema before the measurement, production boot mode does not create it. After every measurement the start-up
+ * phases of the fork are printed.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+public class StartupBenchmark {
+
+    private static final String DATABASE_NAME = "startup-benchmark";
+    private static final int PORT = 8093;
+    private static final String PATH = "/rest/SmartCamera?limit=1";
+    private static final String AUTHORIZATION = "Basic " + Base64.getEncoder()
+            .encodeToString("tim:preetys".getBytes(StandardCharsets.UTF_8));
+    private static final long RETRY_MILLIS = 5;
+    private static final long TIMEOUT_MILLIS = 120000;
+
+    @Param({SpringConfig.BOOT_MODE_DEVELOPMENT, SpringConfig.BOOT_MODE_PRODUCTION})
+    public String bootMode;
+
+    private Vertx clientVertx;
+    private HttpClient client;
+    private Application application;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        EmbeddedApplicationContext.configure(DATABASE_NAME, 0);
+        System.setProperty(SpringConfig.BOOT_MODE, bootMode);
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                EmbeddedApplicationContext.primaryUrl(DATABASE_NAME), "sa", "");
+        DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(
+                new ClassPathResource(EmbeddedApplicationContext.EMBEDDED_INIT_DB_SQL)), dataSource);
+        clientVertx = Vertx.vertx();
+        client = clientVertx.createHttpClient(new HttpClientOptions()
+                .setDefaultHost("localhost")
+                .setDefaultPort(PORT));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.printf("%n%s: %s%n", bootMode, StartupTimings.snapshot().encode());
+        if (application != null) {
+            application.close();
+        }
+        clientVertx.close();
+    }
+
+    @Benchmark
+    public int firstRequest() throws Exception {
+        application = Application.start(new JsonObject()
+                .put("http.port", PORT)
+                .put("export.enabled", false));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            int status = get();
+            if (status == 200) {
+                return status;
+            }
+            Thread.sleep(RETRY_MILLIS);
+        }
+        throw new IllegalStateException("No successful response within " + TIMEOUT_MILLIS + " ms");
+    }
+
+    // status code of one request, 0 if the connection failed
+    private int get() throws Exception {
+        CompletableFuture<Integer> status = new CompletableFuture<>();
+        client.get(PATH, response -> response.bodyHandler(body -> status.complete(response.statusCode())))
+                .exceptionHandler(e -> status.complete(0))
+                .putHeader("Authorization", AUTHORIZATION)
+                .end();
+        return status.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
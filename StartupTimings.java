@@ -0,0 +1,118 @@
+package com.tymoshenko.controller.metrics;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * When the phases of the start-up of this process completed, in milliseconds since the JVM started, and the Spring
+ * beans which took longest to create.
+ * <p>
+ * Phases are marked once, by whoever completes them first:
+ * <ul>
+ * <li>{@value #MAIN} - Application.main was entered, everything before is JVM start-up and class loading</li>
+ * <li>{@value #VERTX} - the Vert.x instance is created</li>
+ * <li>{@value #SPRING_CONTEXT} - the Spring context is refreshed (eager singletons created)</li>
+ * <li>{@value #SPRING_BEANS} - the REST service and everything it depends on are created</li>
+ * <li>{@value #LISTENING} - the first verticle instance accepts connections</li>
+ * <li>{@value #READY} - the first verticle instance serves the REST routes</li>
+ * <li>{@value #FIRST_REQUEST} - the first request reached the REST routes</li>
+ * </ul>
+ * The state is global to the process, like start-up itself.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class StartupTimings {
+
+    public static final String MAIN = "main";
+    public static final String VERTX = "vertx";
+    public static final String SPRING_CONTEXT = "spring-context";
+    public static final String SPRING_BEANS = "spring-beans";
+    public static final String LISTENING = "listening";
+    public static final String READY = "ready";
+    public static final String FIRST_REQUEST = "first-request";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StartupTimings.class);
+
+    private static final int SLOWEST_BEANS = 10;
+
+    // guarded by the class
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>();
+    private static final Map<String, Long> BEAN_NANOS = new LinkedHashMap<>();
+
+    private StartupTimings() {
+    }
+
+    /**
+     * Marks a phase as completed now, unless it already is.
+     *
+     * @return true if this call marked the phase
+     */
+    public static synchronized boolean mark(String phase) {
+        if (PHASES.containsKey(phase)) {
+            return false;
+        }
+        PHASES.put(phase, ManagementFactory.getRuntimeMXBean().getUptime());
+        return true;
+    }
+
+    /**
+     * Records how long a Spring bean took to create and initialise, without the beans created on the way.
+     */
+    public static synchronized void bean(String name, long nanos) {
+        BEAN_NANOS.put(name, nanos);
+    }
+
+    /**
+     * @return the completed phases and the slowest beans, suitable for rendering as a REST response
+     */
+    public static synchronized JsonObject snapshot() {
+        JsonArray phases = new JsonArray();
+        long previous = 0;
+        for (Map.Entry<String, Long> phase : PHASES.entrySet()) {
+            phases.add(new JsonObject()
+                    .put("phase", phase.getKey())
+                    .put("atMillis", phase.getValue())
+                    .put("tookMillis", phase.getValue() - previous));
+            previous = phase.getValue();
+        }
+        JsonArray beans = new JsonArray();
+        for (Map.Entry<String, Long> bean : slowestBeans()) {
+            beans.add(new JsonObject()
+                    .put("bean", bean.getKey())
+                    .put("millis", bean.getValue() / 1_000_000.0));
+        }
+        return new JsonObject()
+                .put("phases", phases)
+                .put("slowestBeans", beans);
+    }
+
+    /**
+     * Logs the phases completed so far and the slowest beans.
+     */
+    public static synchronized void log() {
+        StringBuilder message = new StringBuilder("Start-up, milliseconds since the JVM started:");
+        for (Map.Entry<String, Long> phase : PHASES.entrySet()) {
+            message.append(' ').append(phase.getKey()).append('=').append(phase.getValue());
+        }
+        message.append("; slowest beans (ms):");
+        for (Map.Entry<String, Long> bean : slowestBeans()) {
+            message.append(' ').append(bean.getKey()).append('=').append(bean.getValue() / 1_000_000);
+        }
+        LOG.info(message.toString());
+    }
+
+    private static List<Map.Entry<String, Long>> slowestBeans() {
+        List<Map.Entry<String, Long>> beans = new ArrayList<>(BEAN_NANOS.entrySet());
+        beans.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return beans.subList(0, Math.min(SLOWEST_BEANS, beans.size()));
+    }
+}
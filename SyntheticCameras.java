@@ -0,0 +1,78 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.model.SmartCamera;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible SmartCamera test data spread over Indian cities.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public final class SyntheticCameras {
+
+    public static final String[] DOMAINS = {"smart-transport", "smart-city", "smart-parking", "smart-security"};
+
+    // city, state, latitude, longitude
+    private static final Object[][] CITIES = {
+            {"Pune", "MH", 18.52, 73.85},
+            {"Mumbai", "MH", 19.07, 72.87},
+            {"Kolkata", "WB", 22.57, 88.36},
+            {"Delhi", "DL", 28.61, 77.20},
+            {"Bengaluru", "KA", 12.97, 77.59},
+            {"Chennai", "TN", 13.08, 80.27},
+            {"Hyderabad", "TG", 17.38, 78.48},
+            {"Ahmedabad", "GJ", 23.02, 72.57}
+    };
+
+    private static final int SAVE_BATCH_SIZE = 1000;
+
+    private SyntheticCameras() {
+    }
+
+    /**
+     * @param count number of cameras
+     * @param seed  random seed, the same seed gives the same cameras
+     * @return new (unsaved) cameras
+     */
+    public static List<SmartCamera> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<SmartCamera> cameras = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cameras.add(next(random));
+        }
+        return cameras;
+    }
+
+    public static SmartCamera next(Random random) {
+        Object[] city = CITIES[random.nextInt(CITIES.length)];
+        // within ~20 km of the city centre
+        double latitude = (Double) city[2] + (random.nextDouble() - 0.5) * 0.4;
+        double longitude = (Double) city[3] + (random.nextDouble() - 0.5) * 0.4;
+        return new SmartCamera(DOMAINS[random.nextInt(DOMAINS.length)], (String) city[1], (String) city[0],
+                latitude, longitude, "smart-camera");
+    }
+
+    /**
+     * Saves count generated cameras in batches.
+     *
+     * @return ids of the saved cameras
+     */
+    public static List<Long> populate(CrudService<SmartCamera> crudService, int count, long seed) {
+        List<Long> ids = new ArrayList<>(count);
+        List<SmartCamera> cameras = generate(count, seed);
+        for (int from = 0; from < count; from += SAVE_BATCH_SIZE) {
+            List<SmartCamera> batch = cameras.subList(from, Math.min(count, from + SAVE_BATCH_SIZE));
+            crudService.saveAll(new ArrayList<>(batch)).forEach(result -> {
+                if (result.succeeded()) {
+                    ids.add(result.getEntity().getId());
+                }
+            });
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,132 @@
+
+package com.tymoshenko.controller.repository;
+
+import com.tymoshenko.controller.metrics.LatencyHistogram;
+import com.tymoshenko.controller.metrics.RequestMetrics;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the latency of every call of another {@link CrudService} in {@link RequestMetrics}.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class TimedCrudService<T> implements CrudService<T> {
+
+    private final CrudService<T> delegate;
+    private final LatencyHistogram save;
+    private final LatencyHistogram saveAll;
+    private final LatencyHistogram patch;
+    private final LatencyHistogram readOne;
+    private final LatencyHistogram readMany;
+    private final LatencyHistogram readAll;
+    private final LatencyHistogram readPage;
+    private final LatencyHistogram count;
+    private final LatencyHistogram delete;
+
+    public TimedCrudService(CrudService<T> delegate, RequestMetrics metrics) {
+        this.delegate = delegate;
+        this.save = metrics.crudOperation("save");
+        this.saveAll = metrics.crudOperation("saveAll");
+        this.patch = metrics.crudOperation("patch");
+        this.readOne = metrics.crudOperation("readOne");
+        this.readMany = metrics.crudOperation("readMany");
+        this.readAll = metrics.crudOperation("readAll");
+        this.readPage = metrics.crudOperation("readPage");
+        this.count = metrics.crudOperation("count");
+        this.delete = metrics.crudOperation("delete");
+    }
+
+    @Override
+    public T save(T entity) {
+        long start = System.nanoTime();
+        try {
+            return delegate.save(entity);
+        } finally {
+            save.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<BatchResult<T>> saveAll(List<T> entities) {
+        long start = System.nanoTime();
+        try {
+            return delegate.saveAll(entities);
+        } finally {
+            saveAll.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public T patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        long start = System.nanoTime();
+        try {
+            return delegate.patch(id, changes, expectedVersion);
+        } finally {
+            patch.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public T readOne(Long id) {
+        long start = System.nanoTime();
+        try {
+            return delegate.readOne(id);
+        } finally {
+            readOne.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<T> readMany(Collection<Long> ids) {
+        long start = System.nanoTime();
+        try {
+            return delegate.readMany(ids);
+        } finally {
+            readMany.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<T> readAll() {
+        long start = System.nanoTime();
+        try {
+            return delegate.readAll();
+        } finally {
+            readAll.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<T> readPage(Map<String, String> filters, Long afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            return delegate.readPage(filters, afterId, limit);
+        } finally {
+            readPage.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public long count(Map<String, String> filters) {
+        long start = System.nanoTime();
+        try {
+            return delegate.count(filters);
+        } finally {
+            count.recordNanos(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void delete(Long id) {
+        long start = System.nanoTime();
+        try {
+            delegate.delete(id);
+        } finally {
+            delete.recordNanos(System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.tymoshenko.benchmark;
+
+import com.tymoshenko.Application;
+import com.tymoshenko.controller.context.SpringConfig;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.json.JsonObject;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how HTTP throughput scales with the number of deployed {@link com.tymoshenko.controller.verticle.HttpServerVerticle}
+ * instances: 1, 2, 4, ... up to the number of CPU cores.
+ * <p>
+ * For every instance count the verticles are deployed, a closed-loop client keeps a fixed number of requests in flight
+ * for the measurement period and the completed requests/second are printed. The client runs on its own Vert.x instance;
+ * for exact numbers run it on another machine (-Dbench.host).
+ * <p>
+ * System properties: bench.host, bench.port, bench.path, bench.user, bench.password, bench.connections,
+ * bench.warmupSeconds, bench.seconds.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class VerticleScalingBenchmark {
+
+    private static final String HOST = System.getProperty("bench.host", "localhost");
+    private static final int PORT = Integer.getInteger("bench.port", 8082);
+    // a camera of init-db.sql, a plain CRUD read which does not depend on how many cameras are seeded
+    private static final String PATH = System.getProperty("bench.path", "/rest/SmartCamera/123");
+    private static final String USER = System.getProperty("bench.user", "tim");
+    private static final String PASSWORD = System.getProperty("bench.password", "preetys");
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 256);
+    private static final int WARMUP_SECONDS = Integer.getInteger("bench.warmupSeconds", 5);
+    private static final int SECONDS = Integer.getInteger("bench.seconds", 15);
+
+    public static void main(String[] args) throws Exception {
+        ApplicationContext applicationContext = new AnnotationConfigApplicationContext(SpringConfig.class);
+        JsonObject config = new JsonObject().put("http.port", PORT);
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("instances,requests_per_second");
+        for (int instances = 1; instances <= cores; instances = nextInstanceCount(instances, cores)) {
+            Vertx server = Vertx.vertx();
+            await(Application.deploy(server, applicationContext, config, instances));
+            double rps = measure();
+            System.out.printf("%d,%.0f%n", instances, rps);
+            CompletableFuture<Void> closed = new CompletableFuture<>();
+            server.close(v -> closed.complete(null));
+            closed.get(30, TimeUnit.SECONDS);
+        }
+        System.exit(0);
+    }
+
+    // 1, 2, 4, ... and finally the number of cores even if it is not a power of two
+    private static int nextInstanceCount(int instances, int cores) {
+        return instances < cores && instances * 2 > cores ? cores : instances * 2;
+    }
+
+    private static double measure() throws Exception {
+        Vertx clientVertx = Vertx.vertx();
+        HttpClient client = clientVertx.createHttpClient(new HttpClientOptions()
+                .setDefaultHost(HOST)
+                .setDefaultPort(PORT)
+                .setKeepAlive(true)
+                .setMaxPoolSize(CONNECTIONS));
+        String authorization = "Basic " + Base64.getEncoder()
+                .encodeToString((USER + ":" + PASSWORD).getBytes(StandardCharsets.UTF_8));
+        LongAdder completed = new LongAdder();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        for (int i = 0; i < CONNECTIONS; i++) {
+            clientVertx.runOnContext(v -> send(client, authorization, completed, running));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+        long before = completed.sum();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(SECONDS));
+        long count = completed.sum() - before;
+        long elapsed = System.nanoTime() - start;
+        running.set(false);
+
+        CompletableFuture<Void> closed = new CompletableFuture<>();
+        clientVertx.close(v -> closed.complete(null));
+        closed.get(30, TimeUnit.SECONDS);
+        return count / (elapsed / 1e9);
+    }
+
+    // one request in flight per call chain, the next one is sent when the response body arrived
+    private static void send(HttpClient client, String authorization, LongAdder completed, AtomicBoolean running) {
+        if (!running.get()) {
+            return;
+        }
+        client.get(PATH, response -> response.bodyHandler(body -> {
+            completed.increment();
+            send(client, authorization, completed, running);
+        }))
+                .exceptionHandler(e -> send(client, authorization, completed, running))
+                .putHeader("Authorization", authorization)
+                .end();
+    }
+
+    private static void await(Future<Void> future) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        future.setHandler(result -> {
+            if (result.succeeded()) {
+                done.complete(null);
+            } else {
+                done.completeExceptionally(result.cause());
+            }
+        });
+        done.get(60, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,128 @@
+
+package com.tymoshenko.controller.repository;
+
+import com.tymoshenko.controller.context.ReadConsistency;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs a blocking {@link CrudService} on a dedicated executor and hands results back to the calling Vert.x context,
+ * so JPA/JDBC round trips never block an event loop.
+ * <p>
+ * The {@link ReadConsistency} of the calling request travels with the call to the worker thread.
+ *
+ * @author Yakiv Tymoshenko
+ * @since 15.03.2016
+ */
+public class WorkerAsyncCrudService<T> implements AsyncCrudService<T> {
+
+    private final Vertx vertx;
+    private final CrudService<T> crudService;
+    private final ExecutorService executor;
+
+    /**
+     * @param vertx       Vertx instance used to find the calling context
+     * @param crudService blocking service to delegate to
+     * @param executor    bounded executor, see {@link CrudExecutors}
+     */
+    public WorkerAsyncCrudService(Vertx vertx, CrudService<T> crudService, ExecutorService executor) {
+        this.vertx = vertx;
+        this.crudService = crudService;
+        this.executor = executor;
+    }
+
+    @Override
+    public Future<T> save(T entity) {
+        return execute(() -> crudService.save(entity));
+    }
+
+    @Override
+    public Future<List<BatchResult<T>>> saveAll(List<T> entities) {
+        return execute(() -> crudService.saveAll(entities));
+    }
+
+    @Override
+    public Future<T> patch(Long id, Map<String, Object> changes, Long expectedVersion) {
+        return execute(() -> crudService.patch(id, changes, expectedVersion));
+    }
+
+    @Override
+    public Future<T> readOne(Long id) {
+        return execute(() -> crudService.readOne(id));
+    }
+
+    @Override
+    public Future<List<T>> readMany(Collection<Long> ids) {
+        return execute(() -> crudService.readMany(ids));
+    }
+
+    @Override
+    public Future<List<T>> readAll() {
+        return execute(crudService::readAll);
+    }
+
+    @Override
+    public Future<List<T>> readPage(Map<String, String> filters, Long afterId, int limit) {
+        return execute(() -> crudService.readPage(filters, afterId, limit));
+    }
+
+    @Override
+    public Future<Long> count(Map<String, String> filters) {
+        return execute(() -> crudService.count(filters));
+    }
+
+    @Override
+    public Future<Void> delete(Long id) {
+        return execute(() -> {
+            crudService.delete(id);
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting new calls. Calls already submitted are completed.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Runs another blocking call, e.g. an in-memory index query, on the same executor as the CRUD calls.
+     */
+    public <R> Future<R> execute(Callable<R> call) {
+        // the context of the calling verticle instance, whichever event loop it runs on
+        Context current = Vertx.currentContext();
+        final Context context = current != null ? current : vertx.getOrCreateContext();
+        final Future<R> future = Future.future();
+        final long lastWrite = ReadConsistency.lastWrite();
+        try {
+            executor.execute(() -> {
+                ReadConsistency.set(lastWrite);
+                try {
+                    R result = call.call();
+                    context.runOnContext(v -> future.complete(result));
+                } catch (Throwable e) {
+                    // Errors too, a request must never wait for a result which does not come
+                    context.runOnContext(v -> future.fail(e));
+                    if (e instanceof VirtualMachineError) {
+                        throw (VirtualMachineError) e;
+                    }
+                } finally {
+                    ReadConsistency.clear();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Pool and queue are full - fail fast instead of piling up requests
+            future.fail(e);
+        }
+        return future;
+    }
+}
@@ -1,7 +1,9 @@
 
 package com.tymoshenko.controller.repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Exposes CRUD API of wrapped Spring JpaRepository.
@@ -20,6 +22,27 @@ public interface CrudService<T> {
      */
     T save(T entity);
 
+    /**
+     * Saves a batch of entities with as few DB round trips as possible.
+     *
+     * @param entities the entities to insert/update into DB
+     * @return one result per entity, in the order of the given list
+     */
+    List<BatchResult<T>> saveAll(List<T> entities);
+
+    /**
+     * Updates some attributes of an entity in place, without reading it first.
+     * The version of the entity is incremented.
+     *
+     * @param id              must not be {@literal null}.
+     * @param changes         attribute name to new value, only these attributes are written
+     * @param expectedVersion the version the entity must have, {@literal null} to update whichever version it has
+     * @return the updated entity or null if none found
+     * @throws org.springframework.dao.OptimisticLockingFailureException if the entity has another version
+     * @throws IllegalArgumentException if an attribute can not be updated or gets a value of the wrong type
+     */
+    T patch(Long id, Map<String, Object> changes, Long expectedVersion);
+
     /**
      * Retrieves an entity by its id.
      *
@@ -28,6 +51,14 @@ public interface CrudService<T> {
      */
     T readOne(Long id);
 
+    /**
+     * Retrieves the entities with the given ids in as few DB round trips as possible.
+     *
+     * @param ids must not be {@literal null} nor contain {@literal null}.
+     * @return the entities found, in no particular order; ids without an entity are skipped
+     */
+    List<T> readMany(Collection<Long> ids);
+
     /**
      * Returns all instances of the type.
      *
@@ -35,6 +66,26 @@ public interface CrudService<T> {
      */
     List<T> readAll();
 
+    /**
+     * Returns one page of entities ordered by id (keyset pagination).
+     *
+     * @param filters attribute name to required value, empty to read every entity
+     * @param afterId exclusive lower bound of the page, {@literal null} to start from the first entity
+     * @param limit   max number of entities in the page
+     * @return entities matching all filters with id greater than afterId, ordered by id
+     * @throws IllegalArgumentException if an attribute can not be filtered on
+     */
+    List<T> readPage(Map<String, String> filters, Long afterId, int limit);
+
+    /**
+     * Counts the entities matching all filters.
+     *
+     * @param filters attribute name to required value, empty to count every entity
+     * @return number of matching entities
+     * @throws IllegalArgumentException if an attribute can not be filtered on
+     */
+    long count(Map<String, String> filters);
+
     /**
      * Deletes the entity with the given id.
      *
@@ -3,14 +3,33 @@ CREATE DATABASE IF NOT EXISTS whisky_db CHARSET utf8;
 DROP TABLE IF EXISTS smartcamera ;
 
 CREATE TABLE smartcamera  (
-    deviceid VARCHAR(255),
+    deviceID BIGINT NOT NULL,
     domain VARCHAR(255),
+    state VARCHAR(255),
     city VARCHAR(255),
-    location VARCHAR(255),
+    latitude DOUBLE,
+    longitude DOUBLE,
     deviceType VARCHAR(255),
-    PRIMARY KEY (deviceid)
+    version BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (deviceID)
 );
 
-INSERT INTO smartcamera (deviceid, domain, state, city, location, deviceType) VALUES ("123-asdasd-123", "smart-transport","MH","Pune",[34.56,76.34],"smart-camera");
-INSERT INTO smartcamera (deviceid, domain, state, city, location, deviceType) VALUES ("123-asdasd-256", "smart-transport","Maharastra","Mumbai",[39.56,74.43],"smart-camera");
-INSERT INTO smartcamera (deviceid, domain, state, city, location, deviceType) VALUES ("123-asdasd-546", "smart-transport",""West Bengal","Kolkata",[55.56,88.34],"smart-camera");
\ No newline at end of file
+-- Back the DOMAIN/STATE/CITY filters of GET /rest/SmartCamera; deviceID is last for keyset pagination
+CREATE INDEX idx_smartcamera_domain_state_city ON smartcamera (domain, state, city, deviceID);
+CREATE INDEX idx_smartcamera_state_city ON smartcamera (state, city, deviceID);
+CREATE INDEX idx_smartcamera_city ON smartcamera (city, deviceID);
+CREATE INDEX idx_smartcamera_domain_city ON smartcamera (domain, city, deviceID);
+
+-- Id generator of SmartCamera (hibernate.id.new_generator_mappings)
+DROP TABLE IF EXISTS hibernate_sequence ;
+CREATE TABLE hibernate_sequence (next_val BIGINT);
+INSERT INTO hibernate_sequence VALUES (1000);
+
+-- Replication lag probe: the primary writes the current time, replicas are read back, see ReplicaRoutingDataSource
+DROP TABLE IF EXISTS replication_heartbeat;
+CREATE TABLE replication_heartbeat (id INT NOT NULL, ts BIGINT NOT NULL, PRIMARY KEY (id));
+INSERT INTO replication_heartbeat VALUES (1, 0);
+
+INSERT INTO smartcamera (deviceID, domain, state, city, latitude, longitude, deviceType) VALUES (123, "smart-transport","MH","Pune",34.56,76.34,"smart-camera");
+INSERT INTO smartcamera (deviceID, domain, state, city, latitude, longitude, deviceType) VALUES (256, "smart-transport","Maharastra","Mumbai",39.56,74.43,"smart-camera");
+INSERT INTO smartcamera (deviceID, domain, state, city, latitude, longitude, deviceType) VALUES (546, "smart-transport","West Bengal","Kolkata",55.56,88.34,"smart-camera");
\ No newline at end of file
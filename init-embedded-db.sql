@@ -0,0 +1,29 @@
+-- Schema of the embedded (H2, MySQL mode) database used by benchmarks and load tests.
+-- Same table and indexes as init-db.sql, without seed data.
+
+DROP TABLE IF EXISTS smartcamera;
+
+CREATE TABLE smartcamera  (
+    deviceID BIGINT NOT NULL,
+    domain VARCHAR(255),
+    state VARCHAR(255),
+    city VARCHAR(255),
+    latitude DOUBLE,
+    longitude DOUBLE,
+    deviceType VARCHAR(255),
+    version BIGINT NOT NULL DEFAULT 0,
+    PRIMARY KEY (deviceID)
+);
+
+CREATE INDEX idx_smartcamera_domain_state_city ON smartcamera (domain, state, city, deviceID);
+CREATE INDEX idx_smartcamera_state_city ON smartcamera (state, city, deviceID);
+CREATE INDEX idx_smartcamera_city ON smartcamera (city, deviceID);
+CREATE INDEX idx_smartcamera_domain_city ON smartcamera (domain, city, deviceID);
+
+DROP SEQUENCE IF EXISTS hibernate_sequence;
+CREATE SEQUENCE hibernate_sequence START WITH 1 INCREMENT BY 50;
+
+-- Replication lag probe: the primary writes the current time, replicas are read back, see ReplicaRoutingDataSource
+DROP TABLE IF EXISTS replication_heartbeat;
+CREATE TABLE replication_heartbeat (id INT NOT NULL, ts BIGINT NOT NULL, PRIMARY KEY (id));
+INSERT INTO replication_heartbeat VALUES (1, 0);
@@ -8,11 +8,19 @@ import java.io.Serializable;
  * @since 07.03.2016
  */
 @Entity
-@Table(name = "SmartCamera")
+@Table(name = "SmartCamera", indexes = {
+        @Index(name = "idx_smartcamera_domain_state_city", columnList = "DOMAIN,STATE,CITY,deviceID"),
+        @Index(name = "idx_smartcamera_state_city", columnList = "STATE,CITY,deviceID"),
+        @Index(name = "idx_smartcamera_city", columnList = "CITY,deviceID"),
+        @Index(name = "idx_smartcamera_domain_city", columnList = "DOMAIN,CITY,deviceID")
+})
 public class SmartCamera implements Serializable {
 
+    // pooled allocation of 50 ids per round trip, not less than hibernate.jdbc.batch_size, so the inserts of
+    // saveAll() are not interleaved with id selects and are batched by the JDBC driver
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @SequenceGenerator(name = "smartcamera_id", sequenceName = "hibernate_sequence", allocationSize = 50)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "smartcamera_id")
     @Column(name = "deviceID")
     private long deviceID;
 
@@ -24,19 +32,57 @@ public class SmartCamera implements Serializable {
 
     @Column(name = "CITY")
     private String CITY;
+
+    @Column(name = "LATITUDE")
+    private Double latitude;
+
+    @Column(name = "LONGITUDE")
+    private Double longitude;
+
+    @Column(name = "DEVICETYPE")
+    private String deviceType;
+
+    // Incremented by every update, updates of an outdated copy fail (optimistic locking)
+    @Version
+    @Column(name = "VERSION")
+    private long version;
+
     public SmartCamera() {
 
     }
 
-    public location(String name, String origin) {
-        this.name = name;
-        this.origin = origin;
+    public SmartCamera(String domain, String state, String city, Double latitude, Double longitude, String deviceType) {
+        this.DOMAIN = domain;
+        this.STATE = state;
+        this.CITY = city;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.deviceType = deviceType;
     }
 
     public SmartCamera(SmartCamera smartcamera) {
-        this.id = SmartCamera.getId();
-        this.name = SmartCamera.getName();
-        this.origin = SmartCamera.getOrigin();
+        this(smartcamera.getId(), smartcamera);
+    }
+
+    /**
+     * Copy with another id, for stores which assign ids themselves.
+     */
+    public SmartCamera(long deviceID, SmartCamera smartcamera) {
+        this(deviceID, smartcamera.getVersion(), smartcamera);
+    }
+
+    /**
+     * Copy with another id and version, for stores which assign ids and versions themselves.
+     */
+    public SmartCamera(long deviceID, long version, SmartCamera smartcamera) {
+        this.deviceID = deviceID;
+        this.version = version;
+        this.DOMAIN = smartcamera.getDomain();
+        this.STATE = smartcamera.getState();
+        this.CITY = smartcamera.getCity();
+        this.latitude = smartcamera.getLatitude();
+        this.longitude = smartcamera.getLongitude();
+        this.deviceType = smartcamera.getDeviceType();
     }
 
 
@@ -49,38 +95,82 @@ public class SmartCamera implements Serializable {
         SmartCamera smartcamera = (SmartCamera) o;
 
         if (getId() != smartcamera.getId()) return false;
-        if (getName() != null ? !getName().equals(smartcamera.getName()) : .getName() != null) return false;
-        return !(getOrigin() != null ? !getOrigin().equals(smartcamera.getOrigin()) : smartcamera.getOrigin() != null);
+        if (getDomain() != null ? !getDomain().equals(smartcamera.getDomain()) : smartcamera.getDomain() != null) return false;
+        if (getState() != null ? !getState().equals(smartcamera.getState()) : smartcamera.getState() != null) return false;
+        if (getCity() != null ? !getCity().equals(smartcamera.getCity()) : smartcamera.getCity() != null) return false;
+        if (getLatitude() != null ? !getLatitude().equals(smartcamera.getLatitude()) : smartcamera.getLatitude() != null) return false;
+        if (getLongitude() != null ? !getLongitude().equals(smartcamera.getLongitude()) : smartcamera.getLongitude() != null) return false;
+        return !(getDeviceType() != null ? !getDeviceType().equals(smartcamera.getDeviceType()) : smartcamera.getDeviceType() != null);
     }
 
     @Override
     public int hashCode() {
         int result = (int) (getId() ^ (getId() >>> 32));
-        result = 31 * result + (getName() != null ? getName().hashCode() : 0);
-        result = 31 * result + (getOrigin() != null ? getOrigin().hashCode() : 0);
+        result = 31 * result + (getDomain() != null ? getDomain().hashCode() : 0);
+        result = 31 * result + (getState() != null ? getState().hashCode() : 0);
+        result = 31 * result + (getCity() != null ? getCity().hashCode() : 0);
+        result = 31 * result + (getLatitude() != null ? getLatitude().hashCode() : 0);
+        result = 31 * result + (getLongitude() != null ? getLongitude().hashCode() : 0);
+        result = 31 * result + (getDeviceType() != null ? getDeviceType().hashCode() : 0);
         return result;
     }
 
     //=========== Getters ==============================================================================================
-    public String getName() {
-        return name;
+    public long getId() {
+        return deviceID;
     }
 
-    public String getOrigin() {
-        return origin;
+    public String getDomain() {
+        return DOMAIN;
     }
 
-    public long getId() {
-        return id;
+    public String getState() {
+        return STATE;
+    }
+
+    public String getCity() {
+        return CITY;
+    }
+
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public String getDeviceType() {
+        return deviceType;
+    }
+
+    public long getVersion() {
+        return version;
     }
 
     //=========== Setters ==============================================================================================
-    public void setName(String name) {
-        this.name = name;
+    public void setDomain(String domain) {
+        this.DOMAIN = domain;
+    }
+
+    public void setState(String state) {
+        this.STATE = state;
+    }
+
+    public void setCity(String city) {
+        this.CITY = city;
+    }
+
+    public void setLatitude(Double latitude) {
+        this.latitude = latitude;
+    }
+
+    public void setLongitude(Double longitude) {
+        this.longitude = longitude;
     }
 
-    public void setOrigin(String origin) {
-        this.origin = origin;
+    public void setDeviceType(String deviceType) {
+        this.deviceType = deviceType;
     }
 }
 
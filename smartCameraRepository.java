@@ -1,10 +1,10 @@
 
 package com.tymoshenko.controller.repository;
 
-import com.tymoshenko.model.Whisky;
+import com.tymoshenko.model.SmartCamera;
 import org.springframework.data.jpa.repository.JpaRepository;
 
 
-interface smartcameraRepository extends JpaRepository<SmartCamera, Long> {
+interface SmartCameraRepository extends JpaRepository<SmartCamera, Long> {
 }
 
@@ -1,42 +1,66 @@
 package com.tymoshenko.controller.context;
 
+import com.tymoshenko.controller.metrics.RequestMetrics;
+import com.tymoshenko.controller.repository.CachingCrudService;
+import com.tymoshenko.controller.repository.CoalescingCrudService;
+import com.tymoshenko.controller.repository.CrudService;
+import com.tymoshenko.controller.repository.GeoGridIndex;
+import com.tymoshenko.controller.repository.GeoIndexingCrudService;
+import com.tymoshenko.controller.repository.InMemoryCrudService;
+import com.tymoshenko.controller.repository.InvertedIndexCrudService;
+import com.tymoshenko.controller.repository.SmartCameraCodec;
+import com.tymoshenko.controller.repository.SmartCameraCrudService;
+import com.tymoshenko.controller.telemetry.DeviceStatusTable;
+import com.tymoshenko.controller.telemetry.HeartbeatLog;
+import com.tymoshenko.controller.telemetry.HeartbeatStore;
+import com.tymoshenko.controller.verticle.SmartCameraCrudRestService;
+import com.tymoshenko.model.SmartCamera;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
-import org.springframework.jdbc.datasource.init.DatabasePopulator;
-import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
-import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
-import org.springframework.orm.jpa.JpaTransactionManager;
-import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
-import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
-import org.springframework.transaction.PlatformTransactionManager;
-
-import javax.sql.DataSource;
-import java.util.Properties;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Simple Java Spring configuration to be used for the Spring example application. This configuration is mainly
  * composed of a database configuration and initial population via the script "products.sql" of the database for
  * querying by our Spring service bean.
  * <p>
- * The Spring service bean and repository are scanned for via @EnableJpaRepositories and @ComponentScan annotations
+ * The annotated service beans are imported by name instead of scanning the classpath for them. The DataSource,
+ * JPA and the repository come from {@link JpaConfig}, which is only loaded for crud.engine=jpa.
+ * <p>
+ * "boot.mode" (a system property, set by Application from my-application-conf.json) trims start-up in production:
+ * the schema script is not run, Hibernate neither validates the schema nor scans for entities or reads JDBC
+ * metadata, and singletons are created lazily, when they are first needed.
  *
  * @author Yakiv Tymoshenko
  * @since 15.03.2016
  */
 @Configuration
-@ComponentScan("com.tymoshenko.controller")
-@EnableJpaRepositories(basePackages = {"com.tymoshenko.controller.repository"})
+@Import({JpaConfig.class, SmartCameraCrudRestService.class, RequestMetrics.class})
 @PropertySource(value = {"classpath:jdbc.properties"})
 public class SpringConfig {
 
     public static final String PKG_TO_SCAN = "com.tymoshenko.model";
+    // The entities of PKG_TO_SCAN, used instead of scanning it in production boot mode
+    public static final Class<?>[] ENTITY_CLASSES = {SmartCamera.class};
+
+    // "development" (default) or "production"
+    public static final String BOOT_MODE = "boot.mode";
+    public static final String BOOT_MODE_DEVELOPMENT = "development";
+    public static final String BOOT_MODE_PRODUCTION = "production";
 
     public static final String INIT_DB_SQL = "init-db.sql";
 
@@ -44,59 +68,205 @@ public class SpringConfig {
     public static final String JDBC_URL = "jdbc.url";
     public static final String JDBC_USERNAME = "jdbc.username";
     public static final String JDBC_PASSWORD = "jdbc.password";
+    // Schema script run on startup, INIT_DB_SQL by default
+    public static final String JDBC_INIT_SCRIPT = "jdbc.initScript";
+
+    public static final String POOL_NAME = "smartcamera-pool";
+    public static final String POOL_MIN_IDLE = "jdbc.pool.minIdle";
+    public static final String POOL_MAX_SIZE = "jdbc.pool.maxSize";
+    public static final String POOL_CONNECTION_TIMEOUT_MS = "jdbc.pool.connectionTimeoutMs";
+    public static final String POOL_IDLE_TIMEOUT_MS = "jdbc.pool.idleTimeoutMs";
+    public static final String POOL_MAX_LIFETIME_MS = "jdbc.pool.maxLifetimeMs";
+    public static final String POOL_LEAK_DETECTION_THRESHOLD_MS = "jdbc.pool.leakDetectionThresholdMs";
+    public static final String POOL_STATEMENT_CACHE_SIZE = "jdbc.pool.statementCacheSize";
+    public static final String POOL_STATEMENT_CACHE_SQL_LIMIT = "jdbc.pool.statementCacheSqlLimit";
+
+    // Read replicas, see ReplicaRoutingDataSource; no URLs means every query goes to jdbc.url
+    public static final String REPLICA_POOL_NAME_PREFIX = "smartcamera-replica-";
+    public static final String JDBC_REPLICA_URLS = "jdbc.replica.urls";
+    public static final String JDBC_REPLICA_USERNAME = "jdbc.replica.username";
+    public static final String JDBC_REPLICA_PASSWORD = "jdbc.replica.password";
+    // Schema script run on every replica on startup, none by default: replicas get the schema through replication
+    public static final String JDBC_REPLICA_INIT_SCRIPT = "jdbc.replica.initScript";
+    public static final String JDBC_REPLICA_POOL_MAX_SIZE = "jdbc.replica.pool.maxSize";
+    public static final String JDBC_REPLICA_MAX_LAG_MS = "jdbc.replica.maxLagMs";
+    public static final String JDBC_REPLICA_CHECK_INTERVAL_MS = "jdbc.replica.checkIntervalMs";
+
+    public static final String CACHE_SMARTCAMERA_MAX_SIZE = "cache.smartcamera.maxSize";
+    public static final String CACHE_SMARTCAMERA_TTL_SECONDS = "cache.smartcamera.ttlSeconds";
+
+    // Where cameras are stored: "jpa" (MySQL) or "memory" (InMemoryCrudService)
+    public static final String CRUD_ENGINE = "crud.engine";
+    public static final String CRUD_ENGINE_JPA = "jpa";
+    public static final String CRUD_ENGINE_MEMORY = "memory";
+    public static final String CRUD_MEMORY_DIR = "crud.memory.dir";
+    public static final String CRUD_MEMORY_SYNC_WRITES = "crud.memory.syncWrites";
+    public static final String CRUD_MEMORY_SNAPSHOT_INTERVAL_SECONDS = "crud.memory.snapshotIntervalSeconds";
+
+    // Merging of concurrent cache misses into batched queries
+    public static final String CRUD_COALESCING_ENABLED = "crud.coalescing.enabled";
+    public static final String CRUD_COALESCING_WINDOW_MICROS = "crud.coalescing.windowMicros";
+    public static final String CRUD_COALESCING_MAX_BATCH_SIZE = "crud.coalescing.maxBatchSize";
+
+    public static final String GEO_CELL_SIZE_DEGREES = "geo.cellSizeDegrees";
 
+    public static final String FILTER_INVERTED_INDEX_ENABLED = "filter.invertedIndex.enabled";
+
+    public static final String HEARTBEAT_LOG_DIR = "heartbeat.log.dir";
+    public static final String HEARTBEAT_LOG_SEGMENT_RECORDS = "heartbeat.log.segmentRecords";
+    public static final String HEARTBEAT_LOG_MAX_SEGMENTS = "heartbeat.log.maxSegments";
+    public static final String HEARTBEAT_LOG_COMMIT_INTERVAL_MS = "heartbeat.log.commitIntervalMs";
+    public static final String HEARTBEAT_EXPECTED_DEVICES = "heartbeat.expectedDevices";
+
+    public static final String HIBERNATE_DIALECT = "hibernate.dialect";
     public static final String HIBERNATE_HBM2DDL_AUTO = "hibernate.hbm2ddl.auto";
     public static final String HIBERNATE_SHOW_SQL = "hibernate.show_sql";
+    public static final String HIBERNATE_JDBC_BATCH_SIZE = "hibernate.jdbc.batch_size";
+    public static final String HIBERNATE_ORDER_INSERTS = "hibernate.order_inserts";
+    public static final String HIBERNATE_ORDER_UPDATES = "hibernate.order_updates";
+    public static final String HIBERNATE_ID_NEW_GENERATOR_MAPPINGS = "hibernate.id.new_generator_mappings";
+    public static final String HIBERNATE_USE_JDBC_METADATA_DEFAULTS = "hibernate.temp.use_jdbc_metadata_defaults";
+    public static final String HIBERNATE_ARCHIVE_AUTODETECTION = "hibernate.archive.autodetection";
 
     @Autowired
     private Environment jdbcProperties;
 
+    public static boolean isProductionBoot(Environment environment) {
+        return BOOT_MODE_PRODUCTION.equals(environment.getProperty(BOOT_MODE, BOOT_MODE_DEVELOPMENT));
+    }
+
+    public static boolean isMemoryEngine(Environment environment) {
+        return CRUD_ENGINE_MEMORY.equals(environment.getProperty(CRUD_ENGINE, CRUD_ENGINE_JPA));
+    }
+
+    /**
+     * Times the creation of every bean, see {@link com.tymoshenko.controller.metrics.StartupTimings}.
+     */
+    @Bean
+    @SuppressWarnings("unused")
+    public static BeanCreationTimer beanCreationTimer() {
+        return new BeanCreationTimer();
+    }
+
+    /**
+     * In production boot mode no singleton is created before it is needed.
+     */
     @Bean
-    @Autowired
     @SuppressWarnings("unused")
-    public DataSource dataSource(DatabasePopulator populator) {
-        final DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setDriverClassName(jdbcProperties.getProperty(JDBC_DRIVER_CLASS_NAME));
-        dataSource.setUrl(jdbcProperties.getProperty(JDBC_URL));
-        dataSource.setUsername(jdbcProperties.getProperty(JDBC_USERNAME));
-        dataSource.setPassword(jdbcProperties.getProperty(JDBC_PASSWORD));
-        DatabasePopulatorUtils.execute(populator, dataSource);
-        return dataSource;
+    public static BeanFactoryPostProcessor lazyInitialization() {
+        return beanFactory -> {
+            if (isProductionBoot(beanFactory.getBean(Environment.class))) {
+                for (String name : beanFactory.getBeanDefinitionNames()) {
+                    beanFactory.getBeanDefinition(name).setLazyInit(true);
+                }
+            }
+        };
     }
 
     @Bean
+    @SuppressWarnings("unused")
+    public ConnectionPoolMetrics connectionPoolMetrics() {
+        return new ConnectionPoolMetrics();
+    }
+
+    /**
+     * The CrudService which stores the cameras, chosen by "crud.engine" in jdbc.properties:
+     * SmartCameraCrudService (JPA/MySQL) or InMemoryCrudService (write-ahead log and snapshots on local disk).
+     * The in-memory store is loaded when the bean is created and snapshotted when the context is closed.
+     * SmartCameraCrudService only exists with the jpa engine, see {@link JpaConfig}.
+     */
+    @Bean
+    @Autowired
+    @SuppressWarnings("unused")
+    public CrudService<SmartCamera> smartCameraStore(ObjectProvider<SmartCameraCrudService> smartCameraCrudService) throws IOException {
+        if (!isMemoryEngine(jdbcProperties)) {
+            return smartCameraCrudService.getObject();
+        }
+        Map<String, Function<SmartCamera, String>> attributes = new LinkedHashMap<>();
+        attributes.put(SmartCameraCrudService.FILTER_DOMAIN, SmartCamera::getDomain);
+        attributes.put(SmartCameraCrudService.FILTER_STATE, SmartCamera::getState);
+        attributes.put(SmartCameraCrudService.FILTER_CITY, SmartCamera::getCity);
+        return new InMemoryCrudService<>(Paths.get(jdbcProperties.getProperty(CRUD_MEMORY_DIR, "smartcamera-store")),
+                SmartCamera::getId, SmartCamera::new, SmartCamera::getVersion, SmartCameraCrudService::patched,
+                attributes, new SmartCameraCodec(),
+                jdbcProperties.getProperty(CRUD_MEMORY_SYNC_WRITES, Boolean.class, true),
+                jdbcProperties.getProperty(CRUD_MEMORY_SNAPSHOT_INTERVAL_SECONDS, Long.class, 300L));
+    }
+
+    /**
+     * The camera store, keeping the in-memory spatial index of camera locations up to date.
+     * The index is loaded from the store when the bean is created.
+     */
+    @Bean(initMethod = "rebuild")
+    @Autowired
+    @SuppressWarnings("unused")
+    public GeoIndexingCrudService<SmartCamera> geoIndexingSmartCameraCrudService(@Qualifier("smartCameraStore") CrudService<SmartCamera> smartCameraStore) {
+        GeoGridIndex<SmartCamera> index = new GeoGridIndex<>(jdbcProperties.getProperty(GEO_CELL_SIZE_DEGREES, Double.class, 0.05));
+        return new GeoIndexingCrudService<>(smartCameraStore, index, SmartCamera::getId,
+                SmartCamera::getLatitude, SmartCamera::getLongitude, SmartCamera::new);
+    }
+
+    /**
+     * Counts cameras by DOMAIN/STATE/CITY from an in-memory inverted index instead of COUNT(*) queries.
+     * The index is loaded from the DB when the bean is created, unless it is disabled in jdbc.properties.
+     */
+    @Bean(initMethod = "rebuild")
     @Autowired
     @SuppressWarnings("unused")
-    public LocalContainerEntityManagerFactoryBean entityManagerFactory(final DataSource dataSource) {
-        final LocalContainerEntityManagerFactoryBean factory = new LocalContainerEntityManagerFactoryBean();
-        factory.setDataSource(dataSource);
-        HibernateJpaVendorAdapter vendorAdapter = new HibernateJpaVendorAdapter();
-        vendorAdapter.setGenerateDdl(Boolean.TRUE);
-        vendorAdapter.setShowSql(Boolean.TRUE);
-        factory.setDataSource(dataSource);
-        factory.setJpaVendorAdapter(vendorAdapter);
-        factory.setPackagesToScan(PKG_TO_SCAN);
-        Properties jpaProperties = new Properties();
-        jpaProperties.put(HIBERNATE_HBM2DDL_AUTO, jdbcProperties.getProperty(HIBERNATE_HBM2DDL_AUTO));
-        jpaProperties.put(HIBERNATE_SHOW_SQL, jdbcProperties.getProperty(HIBERNATE_SHOW_SQL));
-        factory.setJpaProperties(jpaProperties);
-        return factory;
+    public InvertedIndexCrudService<SmartCamera> invertedIndexSmartCameraCrudService(GeoIndexingCrudService<SmartCamera> geoIndexingSmartCameraCrudService) {
+        Map<String, Function<SmartCamera, String>> attributes = new LinkedHashMap<>();
+        attributes.put(SmartCameraCrudService.FILTER_DOMAIN, SmartCamera::getDomain);
+        attributes.put(SmartCameraCrudService.FILTER_STATE, SmartCamera::getState);
+        attributes.put(SmartCameraCrudService.FILTER_CITY, SmartCamera::getCity);
+        return new InvertedIndexCrudService<>(geoIndexingSmartCameraCrudService, SmartCamera::getId, attributes,
+                jdbcProperties.getProperty(FILTER_INVERTED_INDEX_ENABLED, Boolean.class, true));
     }
 
+    /**
+     * Cache misses of the same camera share one query, misses arriving within a short window are read with one
+     * IN query.
+     */
     @Bean
     @Autowired
     @SuppressWarnings("unused")
-    public PlatformTransactionManager transactionManager(LocalContainerEntityManagerFactoryBean entityManagerFactory) {
-        return new JpaTransactionManager(entityManagerFactory.getObject());
+    public CoalescingCrudService<SmartCamera> coalescingSmartCameraCrudService(InvertedIndexCrudService<SmartCamera> invertedIndexSmartCameraCrudService) {
+        return new CoalescingCrudService<>(invertedIndexSmartCameraCrudService, SmartCamera::getId, SmartCamera::new,
+                jdbcProperties.getProperty(CRUD_COALESCING_ENABLED, Boolean.class, true),
+                TimeUnit.MICROSECONDS.toNanos(jdbcProperties.getProperty(CRUD_COALESCING_WINDOW_MICROS, Long.class, 200L)),
+                jdbcProperties.getProperty(CRUD_COALESCING_MAX_BATCH_SIZE, Integer.class, 100));
     }
 
+    /**
+     * The CrudService used by the REST layer: the indexing SmartCameraCrudService behind a read-through cache.
+     */
     @Bean
+    @Primary
+    @Autowired
+    @SuppressWarnings("unused")
+    public CachingCrudService<SmartCamera> cachingSmartCameraCrudService(CoalescingCrudService<SmartCamera> coalescingSmartCameraCrudService) {
+        return new CachingCrudService<>(coalescingSmartCameraCrudService, SmartCamera::getId, SmartCamera::new,
+                jdbcProperties.getProperty(CACHE_SMARTCAMERA_MAX_SIZE, Long.class, 100000L),
+                jdbcProperties.getProperty(CACHE_SMARTCAMERA_TTL_SECONDS, Long.class, 300L));
+    }
+
+    /**
+     * Camera heartbeats: appended to a segmented log on local disk, the latest status per camera kept in memory.
+     * Cameras are looked up in the inverted index, or through the cache if the index is disabled.
+     * The latest statuses are reloaded from the log when the bean is created.
+     */
+    @Bean(initMethod = "recover", destroyMethod = "close")
     @Autowired
     @SuppressWarnings("unused")
-    public DatabasePopulator databasePopulator() {
-        final ResourceDatabasePopulator populator = new ResourceDatabasePopulator();
-        populator.setContinueOnError(false);
-        populator.addScript(new ClassPathResource(INIT_DB_SQL));
-        return populator;
+    public HeartbeatStore heartbeatStore(InvertedIndexCrudService<SmartCamera> invertedIndexSmartCameraCrudService,
+                                         CachingCrudService<SmartCamera> cachingSmartCameraCrudService) throws IOException {
+        HeartbeatLog log = new HeartbeatLog(Paths.get(jdbcProperties.getProperty(HEARTBEAT_LOG_DIR, "heartbeat-log")),
+                jdbcProperties.getProperty(HEARTBEAT_LOG_SEGMENT_RECORDS, Integer.class, 1 << 20),
+                jdbcProperties.getProperty(HEARTBEAT_LOG_MAX_SEGMENTS, Integer.class, 16),
+                jdbcProperties.getProperty(HEARTBEAT_LOG_COMMIT_INTERVAL_MS, Long.class, 5L));
+        DeviceStatusTable table = new DeviceStatusTable(jdbcProperties.getProperty(HEARTBEAT_EXPECTED_DEVICES, Integer.class, 100000));
+        if (invertedIndexSmartCameraCrudService.isEnabled()) {
+            return new HeartbeatStore(log, table, invertedIndexSmartCameraCrudService::contains, false);
+        }
+        return new HeartbeatStore(log, table, id -> cachingSmartCameraCrudService.readOne(id) != null, true);
     }
 }
\ No newline at end of file